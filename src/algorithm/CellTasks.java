@@ -0,0 +1,151 @@
+package algorithm;
+
+import stack.CellStack;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Split of the steps of a single cell, so that a few huge cells (large crops and radii) do not keep one worker busy
+ * long after the others are done. On crops above the threshold a step is split in parts (z slabs of the crop, peaks
+ * of the mean shift) which are shared with the idle workers of the run, the caller works on them too. Only idle
+ * workers help, so the run never uses more threads than its workers (-t, reduced by the memory budget); when all the
+ * workers are busy or the crop is small the parts are processed sequentially.
+ * Steps merge the parts so that results do not depend on the split
+ */
+public class CellTasks {
+
+    private static final int PARTS_PER_THREAD = 4;
+
+    private static volatile long threshold;  // crop voxels above which steps are split, 0 = never
+    private static volatile ThreadPoolExecutor workers;  // workers of the run, null = never split
+
+    /**
+     * Work on a range of parts of a step
+     */
+    @FunctionalInterface
+    public interface Range {
+        void run(int from, int to);
+    }
+
+    /**
+     * @param voxels crop size (voxels) above which the steps of a cell are split, 0 to never split
+     */
+    public static void setThreshold(long voxels) {
+        threshold = voxels;
+    }
+
+    /**
+     * @param pool workers of the run, idle ones help on the parts of the split steps
+     */
+    public static void setWorkers(ThreadPoolExecutor pool) {
+        workers = pool;
+    }
+
+    /**
+     * @return true if the steps on the given cell are split
+     */
+    public static boolean splits(CellStack cellStack) {
+        return threshold > 0 && workers != null &&
+                (long) cellStack.getWidth() * cellStack.getHeight() * cellStack.getDepth() >= threshold;
+    }
+
+    /**
+     * Run range on [0, n): shared with the idle workers if the cell is above the threshold, as a single call otherwise
+     *
+     * @param cellStack cell the step works on
+     * @param n         number of parts of the step (e.g. slices, peaks)
+     * @param range     work on the parts [from, to)
+     */
+    public static void forEach(CellStack cellStack, int n, Range range) {
+        if (n <= 1 || !splits(cellStack)) {
+            range.run(0, n);
+            return;
+        }
+        share(n, range);
+    }
+
+    /**
+     * Run range on [0, n) sharing the parts with the idle workers of the run, if any
+     *
+     * @param n     number of parts (e.g. chunks of a crop)
+     * @param range work on the parts [from, to)
+     */
+    public static void share(int n, Range range) {
+        ThreadPoolExecutor pool = workers;
+        if (n <= 1 || pool == null) {
+            range.run(0, n);
+            return;
+        }
+        //  queued cells come first, helpers would only wait behind them
+        int idle = pool.getQueue().isEmpty() ? pool.getMaximumPoolSize() - pool.getActiveCount() : 0;
+        if (idle <= 0) {
+            range.run(0, n);
+            return;
+        }
+        Parts parts = new Parts(range, n, Math.max(1, n / (PARTS_PER_THREAD * (idle + 1))));
+        try {
+            for (int i = 0; i < Math.min(idle, parts.count - 1); i++)
+                pool.execute(parts::work);
+        } catch (RejectedExecutionException e) {
+            //  the pool is shutting down, the caller does the remaining parts
+        }
+        parts.work();
+        parts.await();
+    }
+
+    /**
+     * Parts of a step claimed one at a time by the caller and the helpers. Helpers starting late find no part left
+     * and return at once, the caller waits only for the parts already claimed
+     */
+    private static class Parts {
+
+        private final Range range;
+        private final int n, grain, count;
+        private final AtomicInteger next = new AtomicInteger();
+        private final CountDownLatch done;
+        private volatile Throwable error;
+
+        Parts(Range range, int n, int grain) {
+            this.range = range;
+            this.n = n;
+            this.grain = grain;
+            count = (n + grain - 1) / grain;
+            done = new CountDownLatch(count);
+        }
+
+        void work() {
+            for (int part = next.getAndIncrement(); part < count; part = next.getAndIncrement()) {
+                try {
+                    if (error == null)
+                        range.run(part * grain, Math.min(n, (part + 1) * grain));
+                } catch (RuntimeException | Error e) {
+                    error = e;
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    //  parts are short, the caller still needs their results
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error instanceof Error)
+                throw (Error) error;
+        }
+    }
+}
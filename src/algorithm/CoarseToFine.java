@@ -0,0 +1,130 @@
+package algorithm;
+
+import stack.CellStack;
+import stack.VoxelPool;
+
+/**
+ * Multi-resolution first pass of the radius estimation: local mean and radius are computed on a downsampled copy
+ * of the cell stack, then the radius is refined at full resolution only in a window around the coarse estimate.
+ * If the radius is not found inside the tolerance window the full resolution path is used instead.
+ * Every n-th cell is also measured with the full resolution path to report the accuracy of the estimates
+ */
+public class CoarseToFine {
+
+    private int factor;
+    private int tolerance;
+    private int checkEvery;
+
+    //  report of the current image
+    private int cells;
+    private int fallbacks;
+    private int checked;
+    private int withinTolerance;
+    private int errorSum;
+    private int maxError;
+    private double thresholdErrorSum;
+
+    /**
+     * @param factor     downsampling factor on x and y (2 or 4)
+     * @param tolerance  maximum distance in voxels between coarse and refined radius
+     * @param checkEvery compare a cell every checkEvery cells with the full resolution path (0 to disable)
+     */
+    public CoarseToFine(int factor, int tolerance, int checkEvery) {
+        this.factor = factor;
+        this.tolerance = tolerance;
+        this.checkEvery = checkEvery;
+    }
+
+    /**
+     * Same as getLocalMean(r0, r1, r2, weight) followed by computeCellRadius(localMean, maxRad), the radius of the
+     * cell stack is set as computeCellRadius does
+     *
+     * @return local mean and first radius of the cell
+     */
+    public double[] estimate(CellStack cellStack, int r0, int r1, int r2, double weight, int maxRad) {
+        VoxelPool pool = cellStack.getPool();
+        CellStack coarse = cellStack.downsample(factor, pool.getPyramid());
+
+        double localMean = coarse.getLocalMean(r0 / factor, r1 / factor, r2 / factor, weight);
+        int coarseRadius = coarse.computeCellRadius(localMean, maxRad / factor);
+
+        int radius = refine(cellStack, localMean, Math.min(coarseRadius * factor, maxRad), maxRad);
+        boolean fallback = radius < 0;
+        if (fallback)
+            radius = cellStack.computeCellRadius(localMean, maxRad);
+
+        if (count(fallback)) {
+            double fullLocalMean = cellStack.getLocalMean(r0, r1, r2, weight);
+            int error = Math.abs(cellStack.computeCellRadius(fullLocalMean, maxRad) - radius);
+            double thresholdError = fullLocalMean != 0 ? Math.abs(localMean - fullLocalMean) / fullLocalMean : 0;
+            recordCheck(error, thresholdError);
+        }
+
+        cellStack.setRadius(radius);
+        return new double[]{localMean, radius};
+    }
+
+    /**
+     * Count a new cell (cells may be estimated by several threads at the same time)
+     *
+     * @return true if the cell has to be compared with the full resolution path
+     */
+    private synchronized boolean count(boolean fallback) {
+        cells++;
+        if (fallback)
+            fallbacks++;
+        return checkEvery > 0 && cells % checkEvery == 0;
+    }
+
+    private synchronized void recordCheck(int error, double thresholdError) {
+        checked++;
+        errorSum += error;
+        maxError = Math.max(maxError, error);
+        if (error <= tolerance)
+            withinTolerance++;
+        thresholdErrorSum += thresholdError;
+    }
+
+    /**
+     * Look for the first shell below the threshold walking from the estimate, as computeCellRadius does from 0
+     *
+     * @return radius found or -1 if it is farther than tolerance from the estimate
+     */
+    private int refine(CellStack cellStack, double thresh, int estimate, int maxRad) {
+        int r = estimate;
+        if (r < maxRad && Neighborhood.getMean(cellStack, r, r + 1) >= thresh) {
+            //  walk outwards
+            while (r < maxRad && Neighborhood.getMean(cellStack, r, r + 1) >= thresh) {
+                r++;
+                if (r - estimate > tolerance)
+                    return -1;
+            }
+        } else {
+            //  walk inwards while the previous shell is below threshold too
+            while (r > 0 && Neighborhood.getMean(cellStack, r - 1, r) < thresh) {
+                r--;
+                if (estimate - r > tolerance)
+                    return -1;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return summary of the estimates of the current image
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Coarse-to-fine radius (").append(factor).append("x): ").append(cells).append(" cells, ")
+                .append(fallbacks).append(" outside tolerance ").append(tolerance)
+                .append(" computed at full resolution");
+        if (checked > 0) {
+            sb.append("\nCompared with full resolution on ").append(checked).append(" cells: ")
+                    .append(String.format("mean radius error %.2f, max radius error %d, %.1f%% within tolerance, " +
+                                    "mean threshold error %.2f%%",
+                            (double) errorSum / checked, maxError, 100. * withinTolerance / checked,
+                            100 * thresholdErrorSum / checked));
+        }
+        return sb.toString();
+    }
+}
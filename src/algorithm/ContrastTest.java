@@ -0,0 +1,105 @@
+package algorithm;
+
+import java.util.Arrays;
+
+import stack.CellStack;
+
+/**
+ * Cheap pre-test of a seed before the full measure: the mean of a small core around the seed is compared with the
+ * mean and the standard deviation of an annulus around it, so seeds landing on background noise (false positive
+ * detections) can be rejected before the expensive stages. The offsets of core and annulus are computed once,
+ * the test is read-only and can be shared by all the workers
+ */
+public class ContrastTest {
+
+    private final int[] core;  // dx,dy,dz triplets
+    private final int[] annulus;
+    private final double minContrast;
+    private final double minCore;
+
+    /**
+     * @param coreRadius   radius of the core sphere (xy voxels, z scaled)
+     * @param annulusInner inner radius of the annulus
+     * @param annulusOuter outer radius of the annulus (excluded)
+     * @param scaleZ       scale of the z axis (resZ/resXY)
+     * @param minContrast  minimum of (core mean - annulus mean) / annulus standard deviation, 0 to disable
+     * @param minCore      minimum core mean, 0 to disable
+     */
+    public ContrastTest(int coreRadius, int annulusInner, int annulusOuter, double scaleZ, double minContrast,
+                        double minCore) {
+        this.minContrast = minContrast;
+        this.minCore = minCore;
+
+        double ratio2 = 1 / (scaleZ * scaleZ);
+        int vz = (int) Math.ceil(annulusOuter * scaleZ);
+        int side = 2 * annulusOuter + 1;
+        int[] coreOffsets = new int[3 * side * side * (2 * vz + 1)];
+        int[] annulusOffsets = new int[coreOffsets.length];
+        int nCore = 0, nAnnulus = 0;
+        for (int k = -vz; k <= vz; k++) {
+            for (int j = -annulusOuter; j <= annulusOuter; j++) {
+                for (int i = -annulusOuter; i <= annulusOuter; i++) {
+                    double dist = i * i + j * j + k * k * ratio2;
+                    if (dist <= coreRadius * coreRadius) {
+                        coreOffsets[nCore++] = i;
+                        coreOffsets[nCore++] = j;
+                        coreOffsets[nCore++] = k;
+                    } else if (dist >= annulusInner * annulusInner && dist < annulusOuter * annulusOuter) {
+                        annulusOffsets[nAnnulus++] = i;
+                        annulusOffsets[nAnnulus++] = j;
+                        annulusOffsets[nAnnulus++] = k;
+                    }
+                }
+            }
+        }
+        core = Arrays.copyOf(coreOffsets, nCore);
+        annulus = Arrays.copyOf(annulusOffsets, nAnnulus);
+    }
+
+    /**
+     * Measure core and annulus around the current center of the cell, voxels outside the stack are ignored
+     *
+     * @return core mean, annulus mean, contrast
+     */
+    public double[] measure(CellStack cellStack) {
+        int[] center = cellStack.getCellCenter();
+        double[] core = sum(cellStack, center, this.core);
+        double[] annulus = sum(cellStack, center, this.annulus);
+
+        double coreMean = core[2] > 0 ? core[0] / core[2] : 0;
+        double annulusMean = annulus[2] > 0 ? annulus[0] / annulus[2] : 0;
+        double variance = annulus[2] > 0 ? annulus[1] / annulus[2] - annulusMean * annulusMean : 0;
+        //  a flat annulus would make any difference infinitely significant
+        double contrast = (coreMean - annulusMean) / Math.max(Math.sqrt(Math.max(variance, 0)), 1);
+        return new double[]{coreMean, annulusMean, contrast};
+    }
+
+    /**
+     * @param measure result of measure
+     * @return true if the seed is below one of the thresholds
+     */
+    public boolean rejects(double[] measure) {
+        return (minContrast > 0 && measure[2] < minContrast) || (minCore > 0 && measure[0] < minCore);
+    }
+
+    /**
+     * @return sum, sum of squares and count of the voxels at the given offsets
+     */
+    private static double[] sum(CellStack cellStack, int[] center, int[] offsets) {
+        double sum = 0, sum2 = 0;
+        int count = 0;
+        for (int n = 0; n < offsets.length; n += 3) {
+            int x = center[0] + offsets[n];
+            int y = center[1] + offsets[n + 1];
+            int z = center[2] + offsets[n + 2];
+            if (x < 0 || y < 0 || z < 0 || x >= cellStack.getWidth() || y >= cellStack.getHeight() ||
+                    z >= cellStack.getDepth())
+                continue;
+            double v = cellStack.getVoxel(x, y, z);
+            sum += v;
+            sum2 += v * v;
+            count++;
+        }
+        return new double[]{sum, sum2, count};
+    }
+}
@@ -0,0 +1,157 @@
+package algorithm;
+
+/**
+ * In-place complex FFT of a 3D block with power of two sides, as separate real and imaginary arrays with index
+ * x + y * nx + z * nx * ny. Radix-2, iterative, with the twiddles and the bit reversal of every axis precomputed,
+ * so a transform can be shared by several threads. The inverse is not normalized (divide by getSize()) and can be
+ * pruned to the rows whose values are actually read
+ */
+public class FFT3D {
+
+    private final int nx, ny, nz;
+    private final Axis axisX, axisY, axisZ;
+
+    /**
+     * Twiddles and bit reversal of the transform of a line
+     */
+    private static class Axis {
+
+        private final int n;
+        private final double[] cos;
+        private final double[] sin;
+        private final int[] reverse;
+
+        Axis(int n) {
+            if (Integer.bitCount(n) != 1)
+                throw new IllegalArgumentException("FFT size must be a power of two: " + n);
+            this.n = n;
+            cos = new double[n / 2];
+            sin = new double[n / 2];
+            for (int i = 0; i < n / 2; i++) {
+                cos[i] = Math.cos(2 * Math.PI * i / n);
+                sin[i] = Math.sin(2 * Math.PI * i / n);
+            }
+            reverse = new int[n];
+            int bits = Integer.numberOfTrailingZeros(n);
+            for (int i = 0; i < n; i++)
+                reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        /**
+         * Transform the n values starting at offset, sign -1 forward, +1 inverse
+         */
+        void transform(double[] re, double[] im, int offset, int sign) {
+            for (int i = 0; i < n; i++) {
+                int j = reverse[i];
+                if (j > i) {
+                    double t = re[offset + i];
+                    re[offset + i] = re[offset + j];
+                    re[offset + j] = t;
+                    t = im[offset + i];
+                    im[offset + i] = im[offset + j];
+                    im[offset + j] = t;
+                }
+            }
+            for (int size = 2; size <= n; size <<= 1) {
+                int half = size / 2;
+                int step = n / size;
+                //  twiddle loaded once for all the butterflies using it, lines are short enough to stay in cache
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = sign * sin[k * step];
+                    for (int start = 0; start < n; start += size) {
+                        int a = offset + start + k;
+                        int b = a + half;
+                        double tr = re[b] * wr - im[b] * wi;
+                        double ti = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+        }
+    }
+
+    public FFT3D(int nx, int ny, int nz) {
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        axisX = new Axis(nx);
+        axisY = new Axis(ny);
+        axisZ = new Axis(nz);
+    }
+
+    public int getSize() {
+        return nx * ny * nz;
+    }
+
+    public void forward(double[] re, double[] im) {
+        for (int row = 0; row < ny * nz; row++)
+            axisX.transform(re, im, row * nx, -1);
+        transformY(re, im, -1, null);
+        transformZ(re, im, -1);
+    }
+
+    /**
+     * Inverse transform (not normalized) computing only the given rows: the z axis is transformed everywhere, the y
+     * axis only on the planes containing a row and the x axis only on the rows
+     *
+     * @param rows rows (y + z * ny) whose values are read, null for all
+     */
+    public void inverse(double[] re, double[] im, boolean[] rows) {
+        transformZ(re, im, 1);
+        boolean[] planes = null;
+        if (rows != null) {
+            planes = new boolean[nz];
+            for (int row = 0; row < rows.length; row++)
+                planes[row / ny] |= rows[row];
+        }
+        transformY(re, im, 1, planes);
+        for (int row = 0; row < ny * nz; row++)
+            if (rows == null || rows[row])
+                axisX.transform(re, im, row * nx, 1);
+    }
+
+    /**
+     * Lines on y and z are gathered in a contiguous buffer, transformed and scattered back
+     */
+    private void transformY(double[] re, double[] im, int sign, boolean[] planes) {
+        double[] lineRe = new double[ny];
+        double[] lineIm = new double[ny];
+        for (int z = 0; z < nz; z++) {
+            if (planes != null && !planes[z])
+                continue;
+            for (int x = 0; x < nx; x++) {
+                int base = z * nx * ny + x;
+                for (int y = 0; y < ny; y++) {
+                    lineRe[y] = re[base + y * nx];
+                    lineIm[y] = im[base + y * nx];
+                }
+                axisY.transform(lineRe, lineIm, 0, sign);
+                for (int y = 0; y < ny; y++) {
+                    re[base + y * nx] = lineRe[y];
+                    im[base + y * nx] = lineIm[y];
+                }
+            }
+        }
+    }
+
+    private void transformZ(double[] re, double[] im, int sign) {
+        double[] lineRe = new double[nz];
+        double[] lineIm = new double[nz];
+        int plane = nx * ny;
+        for (int i = 0; i < plane; i++) {
+            for (int z = 0; z < nz; z++) {
+                lineRe[z] = re[i + z * plane];
+                lineIm[z] = im[i + z * plane];
+            }
+            axisZ.transform(lineRe, lineIm, 0, sign);
+            for (int z = 0; z < nz; z++) {
+                re[i + z * plane] = lineRe[z];
+                im[i + z * plane] = lineIm[z];
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package algorithm;
+
+import stack.CellStack;
+import stack.VoxelPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Allocation free reimplementation of mcib3d MaximaFinder working on the voxels of a CellStack with the buffers
+ * of the thread VoxelPool. Results are the same of MaximaFinder(imh, radXY, radZ, noise).getListPeaks().
+ * On large crops the candidates are searched by z slabs in parallel (see CellTasks), flooding stays sequential
+ * Reference https://github.com/mcib3d/mcib3d-core/blob/master/src/main/java/mcib3d/image3d/processing/MaximaFinder.java
+ */
+public class LocalMaxima {
+
+    /**
+     * Find the peaks of the cell stack: voxels which are maximum in the ellipsoid of the given radii, visited by
+     * decreasing intensity and accepted only if not already flooded by a higher peak (flooding zeroes the connected
+     * region above value - noise)
+     *
+     * @param cellStack cell stack, its voxels are not modified
+     * @param radXY     search radius in xy
+     * @param radZ      search radius in z
+     * @param noise     noise tolerance
+     * @return list of peaks coordinates, in the same order of MaximaFinder
+     */
+    public static ArrayList<int[]> find(CellStack cellStack, float radXY, float radZ, float noise) {
+        VoxelPool pool = cellStack.getPool();
+        int width = cellStack.getWidth();
+        int height = cellStack.getHeight();
+        int depth = cellStack.getDepth();
+        int slice = width * height;
+        int size = slice * depth;
+
+        int[] voxels = cellStack.getVoxels();
+        int[] img = pool.getScratch();  // flooded copy
+        long[] keys = pool.getKeys();
+        int[] kernel = pool.getEllipsoid(radXY, radXY, radZ);
+        System.arraycopy(voxels, 0, img, 0, size);
+
+        //  candidates: voxels not lower than any voxel in their neighborhood, sorted by decreasing value
+        //  then by scan order (the key keeps the stable order of Collections.sort)
+        int nCandidates;
+        if (!CellTasks.splits(cellStack)) {
+            nCandidates = candidates(voxels, width, height, depth, kernel, 0, depth, keys);
+        } else {
+            //  every slab writes its candidates from its first voxel, then they are packed in slab order
+            int[] slabCandidates = new int[depth];
+            CellTasks.forEach(cellStack, depth, (from, to) ->
+                    slabCandidates[from] = candidates(voxels, width, height, depth, kernel, from, to, keys));
+            nCandidates = 0;
+            for (int z = 0; z < depth; z++) {
+                System.arraycopy(keys, z * slice, keys, nCandidates, slabCandidates[z]);
+                nCandidates += slabCandidates[z];
+            }
+        }
+        Arrays.sort(keys, 0, nCandidates);
+
+        //  NOTE: mcib3d does not flood float images, so every candidate above noise is a peak
+        boolean flood = cellStack.getBitDepth() != 32;
+        ArrayList<int[]> peaks = new ArrayList<>();
+        for (int c = 0; c < nCandidates; c++) {
+            int index = (int) keys[c];
+            int v = voxels[index];
+            if (img[index] > 0 && v > noise) {
+                int x = index % width;
+                int y = (index / width) % height;
+                int z = index / slice;
+                peaks.add(new int[]{x, y, z});
+                if (flood)
+                    flood(img, width, height, depth, index, (int) Math.max(1, v - (double) noise), pool);
+            }
+        }
+        return peaks;
+    }
+
+    /**
+     * Write the keys of the candidates of the slices [zFrom, zTo) from keys[zFrom * slice]
+     *
+     * @return number of candidates
+     */
+    private static int candidates(int[] voxels, int width, int height, int depth, int[] kernel, int zFrom, int zTo,
+                                  long[] keys) {
+        int slice = width * height;
+        int nCandidates = zFrom * slice;
+        int i = zFrom * slice;
+        for (int z = zFrom; z < zTo; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    int v = voxels[i];
+                    boolean maximum = true;
+                    for (int k = 0; k < kernel.length && maximum; k += 3) {
+                        int xx = x + kernel[k];
+                        int yy = y + kernel[k + 1];
+                        int zz = z + kernel[k + 2];
+                        if (xx >= 0 && yy >= 0 && zz >= 0 && xx < width && yy < height && zz < depth)
+                            maximum = voxels[xx + yy * width + zz * slice] <= v;
+                    }
+                    if (maximum)
+                        keys[nCandidates++] = (-(long) v << 32) | i;
+                }
+            }
+        }
+        return nCandidates - zFrom * slice;
+    }
+
+    /**
+     * Zero the 26-connected region containing seed with values not below limit (seed included)
+     * Reference https://github.com/mcib3d/mcib3d-core/blob/master/src/main/java/mcib3d/image3d/processing/Flood3D.java
+     */
+    private static void flood(int[] img, int width, int height, int depth, int seed, int limit, VoxelPool pool) {
+        int[] queue = pool.getQueue();
+        int slice = width * height;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = seed;
+        img[seed] = 0;
+
+        while (head < tail) {
+            int index = queue[head++];
+            int x = index % width;
+            int y = (index / width) % height;
+            int z = index / slice;
+            for (int k = Math.max(z - 1, 0); k <= Math.min(z + 1, depth - 1); k++) {
+                for (int j = Math.max(y - 1, 0); j <= Math.min(y + 1, height - 1); j++) {
+                    for (int i = Math.max(x - 1, 0); i <= Math.min(x + 1, width - 1); i++) {
+                        int next = i + j * width + k * slice;
+                        if (img[next] >= limit) {
+                            img[next] = 0;
+                            queue[tail++] = next;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,12 +1,9 @@
 package algorithm;
 
 import mcib3d.geom.Point3D;
-import mcib3d.geom.Voxel3D;
-import mcib3d.image3d.ImageHandler;
 import stack.CellStack;
 
 import java.util.ArrayList;
-import java.util.ListIterator;
 
 public class MeanShift {
 
@@ -40,56 +37,69 @@ public class MeanShift {
      * @return array of shifted 3D coordinates
      */
     private ArrayList<int[]> runMeanShift() {
-        ImageHandler imh = ImageHandler.wrap(cellStack);
-
 //        copy peaks list
         ArrayList<int[]> X = new ArrayList<>();
         for (int[] p : peaks) {
             X.add(p.clone());
         }
 
+        //  every point moves on its own, so on large crops the points are shifted in parallel (see CellTasks)
+        CellTasks.forEach(cellStack, X.size(), (from, to) -> {
+            for (int p = from; p < to; p++)
+                shift(X.get(p));
+        });
+        return X;
+    }
+
+    /**
+     * Move a point to its mean shift, once for every iteration
+     *
+     * @param x coordinates of the point, updated in place
+     */
+    private void shift(int[] x) {
+        double scaleZ = cellStack.getScaleZ();
+        double ratio = 1 / scaleZ;
+        double ratio2 = ratio * ratio;
+        double r2 = (float) radius * radius;
+        int vxy = radius;
+        int vz = (int) Math.ceil(radius / ratio);
+
 //        use pastX if halt condition is tolerance instead of iterations
 //        ArrayList<int[]> pastX = new ArrayList<>();
         int nIterations = 15;
         for (int it = 0; it < nIterations; it++) {
-            ListIterator<int[]> iterator = X.listIterator();
-            while (iterator.hasNext()) {
-                int i = iterator.nextIndex();
-                int[] x = iterator.next();
-
-                Point3D pointX = new Point3D(x[0], x[1], x[2]);
-
-//                for each point x in X, find the neighboring points N(x) of x
-                ArrayList<Voxel3D> neighbors = imh.getNeighborhoodLayerList(x[0], x[1], x[2], 0, radius);
-
-//                for each point x in X compute the mean shift m(x)
-                float[] numerator = new float[]{0, 0, 0};
-                float denominator = 0;
-
-                for (Voxel3D neighbor : neighbors) {
-                    if (neighbor.getValue() >= thresh) {
-//                        neighbor is a Voxel3D Object, getPosition is a Point3D. For reference,
-//                        see https://github.com/mcib3d/mcib3d-core/blob/master/src/main/java/mcib3d/geom/Voxel3D.java
-                        double[] neighPos = neighbor.getPosition().getArray();
-                        double distance = pointX.distance(neighbor, 1, cellStack.getScaleZ());
-                        double kernel = gaussianKernel(distance);
-
-                        for (int j = 0; j < 3; j++) {
-                            numerator[j] += neighPos[j] * kernel * neighbor.getValue();
+//            compute the mean shift m(x) over the neighboring points N(x) of x, i.e. the voxels inside the
+//            ellipsoid of the given radius (scaled on z axis) around x
+            float[] numerator = new float[]{0, 0, 0};
+            float denominator = 0;
+
+            for (int k = Math.max(x[2] - vz, 0); k <= Math.min(x[2] + vz, cellStack.getDepth() - 1); k++) {
+                for (int j = Math.max(x[1] - vxy, 0); j <= Math.min(x[1] + vxy, cellStack.getHeight() - 1); j++) {
+                    for (int i = Math.max(x[0] - vxy, 0); i <= Math.min(x[0] + vxy, cellStack.getWidth() - 1); i++) {
+                        int dx = x[0] - i;
+                        int dy = x[1] - j;
+                        int dz = x[2] - k;
+                        if (dx * dx + dy * dy + dz * dz * ratio2 >= r2)
+                            continue;
+
+                        double value = cellStack.getVoxel(i, j, k);
+                        if (value >= thresh) {
+                            double distance = Math.sqrt(dx * dx + dy * dy + dz * dz * scaleZ * scaleZ);
+                            double kernel = gaussianKernel(distance);
+
+                            numerator[0] += i * kernel * value;
+                            numerator[1] += j * kernel * value;
+                            numerator[2] += k * kernel * value;
+                            denominator += kernel * value;
                         }
-                        denominator += kernel * neighbor.getValue();
                     }
                 }
+            }
 
-                for (int j = 0; j < 3; j++) {
-                    X.get(i)[j] = (int) (numerator[j] / denominator);
-                }
+            for (int j = 0; j < 3; j++) {
+                x[j] = (int) (numerator[j] / denominator);
             }
-//            for (int[] c : X) {
-//                pastX.add(c.clone());
-//            }
         }
-        return X;
     }
 
     /**
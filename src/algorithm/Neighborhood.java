@@ -1,32 +1,10 @@
 package algorithm;
 
-import ij.IJ;
-
-import java.util.ArrayList;
-
 import stack.CellStack;
 
 
 public class Neighborhood {
 
-    /**
-     * @param center center of the 3x3x3 neighborhood cube
-     * @return 26 neighbors (center is not included)
-     */
-    public static ArrayList<int[]> getNeighborhood3x3x3(int[] center) {
-        ArrayList<int[]> neigh = new ArrayList<>();
-
-        for (int dz = -1; dz < 2; dz++) {
-            for (int dy = -1; dy < 2; dy++) {
-                for (int dx = -1; dx < 2; dx++) {
-                    if (!(dx == 0 && dy == 0 && dz == 0))
-                        neigh.add(new int[]{center[0] + dx, center[1] + dy, center[2] + dz});
-                }
-            }
-        }
-        return neigh;
-    }
-
     /**
      * Compute the mean of the intensity in a spherical cap (or sphere if r0 = 0) around the center of the given cell
      *
@@ -52,20 +30,14 @@ public class Neighborhood {
         int vy = (int) Math.ceil(r1);
         int vz = (int) (Math.ceil(r1 / ratio));
 
-        for (int k = z - vz; k <= z + vz; k++) {
-            for (int j = y - vy; j <= y + vy; j++) {
-                for (int i = x - vx; i <= x + vx; i++) {
-                    int[] current = new int[]{i, j, k};
-                    if (cellStack.contains(current)) {
-                        dist = ((x - i) * (x - i)) + ((y - j) * (y - j)) + ((z - k) * (z - k) * ratio2);
-                        if ((dist >= r02) && (dist < r12)) {
-                            try {
-                                total += cellStack.getVoxel(current);
-                            } catch (Exception e) {
-                                IJ.log(e.getMessage());
-                            }
-                            index++;
-                        }
+        //  loop bounds are clipped to the stack instead of checking every voxel
+        for (int k = Math.max(z - vz, 0); k <= Math.min(z + vz, cellStack.getDepth() - 1); k++) {
+            for (int j = Math.max(y - vy, 0); j <= Math.min(y + vy, cellStack.getHeight() - 1); j++) {
+                for (int i = Math.max(x - vx, 0); i <= Math.min(x + vx, cellStack.getWidth() - 1); i++) {
+                    dist = ((x - i) * (x - i)) + ((y - j) * (y - j)) + ((z - k) * (z - k) * ratio2);
+                    if ((dist >= r02) && (dist < r12)) {
+                        total += cellStack.getVoxel(i, j, k);
+                        index++;
                     }
                 }
             }
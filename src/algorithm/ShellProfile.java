@@ -0,0 +1,129 @@
+package algorithm;
+
+import stack.CellStack;
+
+/**
+ * Sums and counts of the voxels of the unit shells around the center of a cell, collected in a single sweep.
+ * Shell r holds the voxels at distance in [r, r + 1) from the center (z scaled as in Neighborhood.getMean), so the
+ * mean of any spherical cap with integer radii, the whole radial profile and the local mean are derived from the
+ * same sweep instead of scanning the cell once for every cap. Results are identical to Neighborhood.getMean
+ */
+public class ShellProfile {
+
+    private final int[] totals;  // int as in Neighborhood.getMean, wrapped sums do not depend on the order
+    private final int[] counts;
+
+    /**
+     * @param cellStack source CellStack, swept around its current center (by z slabs in parallel on large crops,
+     *                  see CellTasks)
+     * @param shells    number of shells collected, i.e. caps up to this radius can be measured
+     */
+    public ShellProfile(CellStack cellStack, int shells) {
+        totals = new int[shells];
+        counts = new int[shells];
+
+        int z = cellStack.getCellCenter()[2];
+        int vz = (int) (Math.ceil(shells / (1 / cellStack.getScaleZ())));
+        int kFrom = Math.max(z - vz, 0);
+        int kTo = Math.min(z + vz, cellStack.getDepth() - 1) + 1;
+        if (!CellTasks.splits(cellStack)) {
+            sweep(cellStack, kFrom, kTo, totals, counts);
+            return;
+        }
+        //  int sums wrap in the same way whatever the order, so the slabs can be added in any order
+        CellTasks.forEach(cellStack, kTo - kFrom, (from, to) -> {
+            int[] slabTotals = new int[shells];
+            int[] slabCounts = new int[shells];
+            sweep(cellStack, kFrom + from, kFrom + to, slabTotals, slabCounts);
+            synchronized (totals) {
+                for (int s = 0; s < shells; s++) {
+                    totals[s] += slabTotals[s];
+                    counts[s] += slabCounts[s];
+                }
+            }
+        });
+    }
+
+    /**
+     * Add the voxels of the slices [kFrom, kTo) around the cell center to the shells
+     */
+    private static void sweep(CellStack cellStack, int kFrom, int kTo, int[] totals, int[] counts) {
+        int shells = totals.length;
+        int x = cellStack.getCellCenter()[0];
+        int y = cellStack.getCellCenter()[1];
+        int z = cellStack.getCellCenter()[2];
+
+        double ratio = 1 / cellStack.getScaleZ();
+        double ratio2 = ratio * ratio;
+        double maxDist = (double) shells * shells;
+
+        for (int k = kFrom; k < kTo; k++) {
+            for (int j = Math.max(y - shells, 0); j <= Math.min(y + shells, cellStack.getHeight() - 1); j++) {
+                for (int i = Math.max(x - shells, 0); i <= Math.min(x + shells, cellStack.getWidth() - 1); i++) {
+                    //  same expression of Neighborhood.getMean, so that voxels on the boundaries fall on the same side
+                    double dist = ((x - i) * (x - i)) + ((y - j) * (y - j)) + ((z - k) * (z - k) * ratio2);
+                    if (dist >= maxDist)
+                        continue;
+                    int s = (int) Math.sqrt(dist);
+                    //  sqrt may be rounded across a square, the shell is checked on the squared distance
+                    if ((double) s * s > dist)
+                        s--;
+                    else if ((double) (s + 1) * (s + 1) <= dist)
+                        s++;
+                    totals[s] += cellStack.getVoxel(i, j, k);
+                    counts[s]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Profile of sums and counts already collected (e.g. by ShellMaps), the arrays are not copied
+     */
+    public ShellProfile(int[] totals, int[] counts) {
+        this.totals = totals;
+        this.counts = counts;
+    }
+
+    /**
+     * Same as Neighborhood.getMean(cellStack, r0, r1), r1 must not exceed the number of shells
+     *
+     * @return mean intensity of the spherical cap
+     */
+    public float getMean(int r0, int r1) {
+        //  Neighborhood.getMean visits no voxel for a negative external radius
+        if (r1 <= 0)
+            return 0;
+        int total = 0;
+        int index = 0;
+        for (int s = Math.abs(r0); s < r1; s++) {
+            total += totals[s];
+            index += counts[s];
+        }
+        if (index > 0) {
+            return (float) total / index;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Same as CellStack.getLocalMean(r0, r1, r2, weight)
+     */
+    public double getLocalMean(int r0, int r1, int r2, double weight) {
+        double mSpot = getMean(0, r0);
+        double mBack = getMean(r1, r2);
+
+        return mSpot * weight + (1 - weight) * mBack;
+    }
+
+    /**
+     * Same as CellStack.computeRadialDistribution3D(maxRad), maxRad must be less than the number of shells
+     */
+    public double[] getRadialDistribution(int maxRad) {
+        double[] tab = new double[maxRad + 1];
+        for (int r = 0; r < maxRad + 1; r++)
+            tab[r] = getMean(r, r + 1);
+        return tab;
+    }
+}
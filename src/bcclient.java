@@ -0,0 +1,139 @@
+/*
+ *     Copyright (C) 2019  Vittorio Zampinetti
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+import org.apache.commons.cli.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thin client of the bcserver daemon: submits the given bcmeasure arguments as a job and waits for it,
+ * showing its progress. Client options must come before the bcmeasure ones
+ */
+public class bcclient {
+
+    private static final int POLL_INTERVAL = 500;  // ms between two status requests
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("port")
+                .hasArg()
+                .argName("int")
+                .desc("Port of the daemon (default " + bcserver.DEFAULT_PORT + ")")
+                .build());
+        options.addOption(Option.builder("status").hasArg().argName("id").desc("Show the status of a job").build());
+        options.addOption(Option.builder("result").hasArg().argName("id").desc("Show the result of a job").build());
+        options.addOption(new Option("list", "List all the jobs"));
+        options.addOption(new Option("nowait", "Submit the job and exit without waiting for it"));
+        options.addOption(new Option("shutdown", "Stop the daemon after the queued jobs"));
+
+        try {
+            //  stop at the first bcmeasure option, the remaining arguments are the job
+            CommandLine line = new DefaultParser().parse(options, args, true);
+            int port = line.hasOption("port") ? Integer.parseInt(line.getOptionValue("port")) : bcserver.DEFAULT_PORT;
+
+            if (line.hasOption("status")) {
+                print(send(port, "STATUS\t" + line.getOptionValue("status")));
+            } else if (line.hasOption("result")) {
+                print(send(port, "RESULT\t" + line.getOptionValue("result")));
+            } else if (line.hasOption("list")) {
+                print(send(port, "LIST"));
+            } else if (line.hasOption("shutdown")) {
+                print(send(port, "SHUTDOWN"));
+            } else {
+                submit(port, line.getArgs(), !line.hasOption("nowait"));
+            }
+        } catch (ParseException | NumberFormatException exp) {
+            System.err.println("Parsing failed.  Reason: " + exp.getMessage());
+            new HelpFormatter().printHelp("bcclient [CLIENT OPTIONS] [bcmeasure OPTIONS]", options);
+        } catch (IOException e) {
+            System.err.println("Cannot reach bcserver: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void submit(int port, String[] jobArgs, boolean wait) throws IOException, InterruptedException {
+        StringBuilder request = new StringBuilder("SUBMIT");
+        for (int i = 0; i < jobArgs.length; i++) {
+            String arg = jobArgs[i];
+            //  the daemon may run in another directory
+            if (i > 0 && (jobArgs[i - 1].equals("-sd") || jobArgs[i - 1].equals("--source-dir")))
+                arg = Paths.get(arg).toAbsolutePath().toString();
+            request.append('\t').append(arg);
+        }
+
+        List<String> answer = send(port, request.toString());
+        if (answer.isEmpty() || !answer.get(0).startsWith("OK ")) {
+            print(answer);
+            System.exit(1);
+        }
+        String id = answer.get(0).substring(3);
+        System.out.println("Submitted job " + id);
+        if (!wait)
+            return;
+
+        String status;
+        do {
+            Thread.sleep(POLL_INTERVAL);
+            status = send(port, "STATUS\t" + id).get(0);
+            System.out.print(status + "                 \r");
+        } while (status.startsWith("QUEUED") || status.startsWith("RUNNING"));
+        System.out.println();
+
+        List<String> result = send(port, "RESULT\t" + id);
+        print(result);
+        if (!result.get(0).equals("DONE"))
+            System.exit(1);
+    }
+
+    /**
+     * Send a single command to the daemon
+     *
+     * @return lines of the answer
+     */
+    private static List<String> send(int port, String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.println(request);
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+            return lines;
+        }
+    }
+
+    private static void print(List<String> lines) {
+        for (String line : lines)
+            System.out.println(line);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *     Copyright (C) 2019  Vittorio Zampinetti
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import stack.ChunkedVolume;
+import utils.Params;
+import utils.TiffReader;
+
+/**
+ * Additional script converting the images to chunked volumes ([image].bcv next to the image), from which
+ * BCMeasure reads the crops of the cells touching only the chunks they need. The image is read one layer of chunks
+ * at a time, so it never has to fit in memory
+ */
+public class bcconvert {
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Options options = new Options();
+        options.addOption(Option.builder("sd").longOpt("source-dir").hasArg().argName("path")
+                .desc("Convert the images of all the image/marker pairs of the directory").build());
+        options.addOption(Option.builder("chunk").hasArg().argName("int")
+                .desc("Side of the chunks (default " + ChunkedVolume.DEFAULT_CHUNK + ")").build());
+        options.addOption(Option.builder("levels").hasArg().argName("int")
+                .desc("Number of resolution levels, each one downsampled 2x on xy, levels after the first are " +
+                        "for coarse views only (default " + ChunkedVolume.DEFAULT_LEVELS + ")").build());
+        options.addOption(Option.builder("z").longOpt("scale-z").hasArg().argName("float")
+                .desc("Scale of the z axis used for the downsampling of the levels (default 0.33)").build());
+        options.addOption(Option.builder("t").longOpt("threads").hasArg().argName("int")
+                .desc("Number of chunks compressed in parallel, default is the number of available processors")
+                .build());
+
+        try {
+            CommandLine line = new DefaultParser().parse(options, args);
+            List<String> images = new ArrayList<>(line.getArgList());
+            if (line.hasOption("sd")) {
+                Params.SOURCE_DIR = line.getOptionValue("sd");
+                images.addAll(bcmeasure.listPairs());
+            }
+            if (images.isEmpty())
+                throw new ParseException("Missing images or source dir");
+            int chunk = line.hasOption("chunk") ? Integer.parseInt(line.getOptionValue("chunk")) :
+                    ChunkedVolume.DEFAULT_CHUNK;
+            int levels = line.hasOption("levels") ? Integer.parseInt(line.getOptionValue("levels")) :
+                    ChunkedVolume.DEFAULT_LEVELS;
+            if (chunk < 1 || levels < 1)
+                throw new ParseException("Chunk side and number of levels must be positive");
+            double scaleZ = line.hasOption("z") ? Double.parseDouble(line.getOptionValue("z")) : .33;
+            int threads = line.hasOption("t") ? Integer.parseInt(line.getOptionValue("t")) :
+                    Runtime.getRuntime().availableProcessors();
+
+            ExecutorService workers = Executors.newFixedThreadPool(threads);
+            try {
+                for (String imgPath : images)
+                    convert(imgPath, chunk, levels, scaleZ, workers);
+            } finally {
+                workers.shutdown();
+            }
+        } catch (ParseException | NumberFormatException exp) {
+            System.err.println("Parsing failed.  Reason: " + exp.getMessage());
+            new HelpFormatter().printHelp("bcconvert [OPTIONS] [image...]", options);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Conversion interrupted: " + e.getMessage());
+        }
+    }
+
+    private static void convert(String imgPath, int chunk, int levels, double scaleZ, ExecutorService workers)
+            throws IOException, InterruptedException, ExecutionException {
+        //  only the header is read, slices are loaded when converted
+        String name = imgPath.toLowerCase();
+        ImagePlus imp = name.endsWith(".tif") || name.endsWith(".tiff") ?
+                TiffReader.openVirtual(imgPath) : IJ.openImage(imgPath);
+        if (imp == null)
+            throw new IOException("Cannot open " + imgPath);
+
+        long start = System.currentTimeMillis();
+        String outPath = imgPath + ChunkedVolume.EXTENSION;
+        ChunkedVolume.convert(imp, outPath, chunk, levels, scaleZ, workers);
+        System.out.println(String.format("Converted %s in %.1f s: %d MB -> %d MB", imgPath,
+                (System.currentTimeMillis() - start) / 1000.0, new File(imgPath).length() >> 20,
+                new File(outPath).length() >> 20));
+    }
+}
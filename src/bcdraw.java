@@ -18,90 +18,188 @@
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.gui.OvalRoi;
 import ij.gui.Overlay;
 import ij.gui.PointRoi;
-import ij.process.ImageProcessor;
-import mcib3d.geom.Point3D;
-import utils.Marker;
+import org.apache.commons.cli.*;
+import utils.BinaryMarker;
+import utils.CellStatistics;
+import utils.MarkerParser;
+import utils.Params;
+import utils.SliceRenderer;
+import utils.TiffReader;
 
 import java.awt.*;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  * Additional script to make 3D images which shows the results of BCMeasure drawing
- * spheres overlapped with the original image
+ * spheres overlapped with the original image, either as an overlay in the ImageJ frame or rendered headless
+ * slice by slice
  */
 public class bcdraw {
 
+    private static CellStatistics stats;
+
     public static void main(String[] args) {
-        String imgPath = args[0];
-        ImagePlus original = IJ.openImage(imgPath);
-        Overlay overlay = new Overlay();
+        Options options = new Options();
+        options.addOption(Option.builder("render")
+                .hasArg()
+                .argName("rgb|labels")
+                .desc("Render headless: spheres blended over the original slices (PNG) or label volume (TIFF)")
+                .build());
+        options.addOption(Option.builder("o").hasArg().argName("dir")
+                .desc("Output directory of the rendered slices (default [image][RAD]_render)").build());
+        options.addOption(Option.builder("t").longOpt("threads").hasArg().argName("int")
+                .desc("Number of slices rendered in parallel, default is the number of available processors")
+                .build());
+        options.addOption(Option.builder("z").longOpt("scale-z").hasArg().argName("float")
+                .desc("Scale of the z axis used for the cross sections (default 0.33)").build());
 
         try {
-            ArrayList<int[]> cellsData = Marker.readRadMarker(imgPath + "[RAD].marker");
-
-            for (int[] cellData: cellsData) {
-                int x = cellData[0];
-                int y = cellData[1];
-                //  slice selection
-                int slicePos = cellData[2] + 1;
-                int R = cellData[3];
-                int scaledR = (int) R/3;
-
-                PointRoi newCenter = new PointRoi(x, y);
-                newCenter.setPosition(slicePos + 1);
-                newCenter.setSize(3);
-                newCenter.setStrokeColor(new Color(0, 255, 0));
-
-                PointRoi oldCenter = new PointRoi(cellData[4], cellData[5]);
-                oldCenter.setPosition(cellData[6]+1);
-                oldCenter.setSize(3);
-                oldCenter.setStrokeColor(new Color(255, 0, 0));
-
-                overlay.add(newCenter);
-                overlay.add(oldCenter);
-
-                for (int i = -scaledR -1; i < scaledR + 1; i++) {
-                    //  radius of cross section at distance i from center
-                    int r = (int) Math.sqrt(R*R - Math.pow(i*3, 2));
-                    OvalRoi roi = new OvalRoi(x-r, y-r, 2*r, 2*r);
-                    roi.setPosition(slicePos+i);
-                    roi.setFillColor(new Color(255,127,0,102));
-                    roi.setStrokeWidth(.0);
-                    overlay.add(roi);
-                }
-            }
-            ImageJ ij = new ImageJ();
-            original.setOverlay(overlay);
-            original.show();
+            CommandLine line = new DefaultParser().parse(options, args);
+            if (line.getArgs().length != 1)
+                throw new ParseException("Missing image path");
+            String imgPath = line.getArgs()[0];
+            double scaleZ = line.hasOption("z") ? Double.parseDouble(line.getOptionValue("z")) : .33;
 
-            printStats(cellsData);
+            if (line.hasOption("render")) {
+                String mode = line.getOptionValue("render");
+                if (!mode.equals("rgb") && !mode.equals("labels"))
+                    throw new ParseException("Render mode " + mode + " is not valid, possible values are: rgb, labels");
+                int threads = line.hasOption("t") ? Integer.parseInt(line.getOptionValue("t")) :
+                        Runtime.getRuntime().availableProcessors();
+                if (threads < 1)
+                    throw new ParseException("Number of threads must be positive");
+                render(imgPath, mode, line.getOptionValue("o", imgPath + "[RAD]_render"), threads, scaleZ);
+            } else {
+                show(imgPath, scaleZ);
+            }
+        } catch (ParseException | NumberFormatException exp) {
+            System.err.println("Parsing failed.  Reason: " + exp.getMessage());
+            new HelpFormatter().printHelp("bcdraw [OPTIONS] image", options);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void printStats(ArrayList<int[]> cellsData) {
-        double meanDistance = 0;
-        double meanRadius = 0;
-        int count = 0;
-
-        for (int[] cellData: cellsData) {
-            Point3D newCenter = new Point3D(cellData[0], cellData[1], cellData[2]);
-            Point3D oldCenter = new Point3D(cellData[4], cellData[5], cellData[6]);
-            meanDistance += newCenter.distance(oldCenter, 1, .33);
-            meanRadius += cellData[3];
-            count++;
+    /**
+     * Show the image in the ImageJ frame with the cells drawn in the overlay
+     */
+    private static void show(String imgPath, double scaleZ) throws IOException {
+        ImagePlus original = TiffReader.load(imgPath, Runtime.getRuntime().availableProcessors());
+        Overlay overlay = new Overlay();
+        stats = new CellStatistics(scaleZ, Params.MAX_RADIUS);
+
+        int[] cells = readCells(imgPath);
+        int[] cellData = new int[SliceRenderer.STRIDE];
+        for (int i = 0; i < cells.length / SliceRenderer.STRIDE; i++) {
+            System.arraycopy(cells, i * SliceRenderer.STRIDE, cellData, 0, SliceRenderer.STRIDE);
+            drawCell(overlay, cellData);
+        }
+        ImageJ ij = new ImageJ();
+        original.setOverlay(overlay);
+        original.show();
+
+        printStats(imgPath);
+    }
+
+    /**
+     * Rasterize the cells slice by slice and write the slices in the output directory
+     */
+    private static void render(String imgPath, String mode, String outDir, int threads, double scaleZ)
+            throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        //  only the header is read, slices are loaded when rendered
+        String name = imgPath.toLowerCase();
+        ImagePlus original = name.endsWith(".tif") || name.endsWith(".tiff") ?
+                TiffReader.openVirtual(imgPath) : IJ.openImage(imgPath);
+        if (original == null)
+            throw new IOException("Cannot open " + imgPath);
+
+        int[] cells = readCells(imgPath);
+        SliceRenderer renderer = new SliceRenderer(cells, cells.length / SliceRenderer.STRIDE,
+                original.getWidth(), original.getHeight(), original.getStackSize(), scaleZ);
+        if (mode.equals("rgb"))
+            renderer.renderRGB(original, outDir, threads);
+        else
+            renderer.renderLabels(outDir, threads);
+        System.out.println("Rendered " + cells.length / SliceRenderer.STRIDE + " cells in " + outDir);
+    }
+
+    /**
+     * Read the results of the image, from the binary output if present and not older than the [RAD].marker
+     *
+     * @return x,y,z,r,oldx,oldy,oldz of every cell, one after the other
+     */
+    private static int[] readCells(String imgPath) throws IOException {
+        Path binPath = Paths.get(imgPath + "[RAD]" + BinaryMarker.EXTENSION);
+        Path markerPath = Paths.get(imgPath + "[RAD].marker");
+        if (Files.exists(binPath) && (!Files.exists(markerPath) ||
+                Files.getLastModifiedTime(binPath).compareTo(Files.getLastModifiedTime(markerPath)) >= 0)) {
+            //  read the binary output directly from the mapped file
+            BinaryMarker.Reader reader = BinaryMarker.Reader.open(binPath.toString());
+            int[] cells = new int[reader.size() * SliceRenderer.STRIDE];
+            int[] cellData = new int[SliceRenderer.STRIDE];
+            for (int i = 0; i < reader.size(); i++) {
+                reader.getRow(i, cellData);
+                System.arraycopy(cellData, 0, cells, i * SliceRenderer.STRIDE, SliceRenderer.STRIDE);
+            }
+            return cells;
+        }
+        int[][] cells = {new int[SliceRenderer.STRIDE * 1024]};
+        int[] size = {0};
+        MarkerParser.parse(markerPath.toString(), SliceRenderer.STRIDE, row -> {
+            if (size[0] + row.length > cells[0].length)
+                cells[0] = Arrays.copyOf(cells[0], cells[0].length * 2);
+            System.arraycopy(row, 0, cells[0], size[0], row.length);
+            size[0] += row.length;
+        });
+        return Arrays.copyOf(cells[0], size[0]);
+    }
+
+    private static void drawCell(Overlay overlay, int[] cellData) {
+        int x = cellData[0];
+        int y = cellData[1];
+        //  slice selection
+        int slicePos = cellData[2] + 1;
+        int R = cellData[3];
+        int scaledR = (int) R/3;
+
+        PointRoi newCenter = new PointRoi(x, y);
+        newCenter.setPosition(slicePos + 1);
+        newCenter.setSize(3);
+        newCenter.setStrokeColor(new Color(0, 255, 0));
+
+        PointRoi oldCenter = new PointRoi(cellData[4], cellData[5]);
+        oldCenter.setPosition(cellData[6]+1);
+        oldCenter.setSize(3);
+        oldCenter.setStrokeColor(new Color(255, 0, 0));
+
+        overlay.add(newCenter);
+        overlay.add(oldCenter);
+
+        for (int i = -scaledR -1; i < scaledR + 1; i++) {
+            //  radius of cross section at distance i from center
+            int r = (int) Math.sqrt(R*R - Math.pow(i*3, 2));
+            OvalRoi roi = new OvalRoi(x-r, y-r, 2*r, 2*r);
+            roi.setPosition(slicePos+i);
+            roi.setFillColor(new Color(255,127,0,102));
+            roi.setStrokeWidth(.0);
+            overlay.add(roi);
         }
 
-        meanDistance /= count;
-        meanRadius /= count;
+        stats.add(cellData[0], cellData[1], cellData[2], cellData[3], cellData[4], cellData[5], cellData[6],
+                Double.NaN);
+    }
 
-        IJ.log("Mean distance: " + Double.toString(meanDistance));
-        IJ.log("Mean radius: " + Double.toString(meanRadius));
+    private static void printStats(String imgPath) {
+        IJ.log("Mean distance: " + Double.toString(stats.getMeanShift()));
+        IJ.log("Mean radius: " + Double.toString(stats.getMeanRadius()));
+        IJ.log(stats.report(imgPath));
     }
 }
@@ -25,9 +25,21 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -35,16 +47,41 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FilenameUtils;
 
+import algorithm.CellTasks;
+import algorithm.CoarseToFine;
+import algorithm.ContrastTest;
 import algorithm.MeanShift;
+import algorithm.ShellProfile;
+import stack.BackgroundMap;
 import stack.CellStack;
+import stack.ChunkedVolume;
+import stack.ShellMaps;
+import stack.SliceWindow;
+import stack.VoxelPool;
 import utils.*;
 
 
 public class bcmeasure {
 
+    private static final int BATCH_SIZE = 1024;  // cells submitted to the workers at a time
+
     private static Progress progress;
-    private static ArrayList<CellPreview> cellPreviews = new ArrayList<>();
+    private static CoarseToFine coarseToFine;
+    private static ContrastTest contrastTest;
+    private static BackgroundMap backgroundMap;
+    private static ShellMaps shellMaps;
+    private static ImagePlus backgroundImage;  // image of the background map, kept until the image is closed
+    private static PreviewSampler previews = new PreviewSampler();
     private static Logger logger;
+    private static ExecutorService workers;
+    private static int workerCount;  // size of the pool of workers when all of them are admitted
+    private static boolean driven;  // run driven by another process: errors go to the log, no dialogs
+    private static final List<String> failedImages = new ArrayList<>();  // images of the last fullProcess not measured
+    private static MemoryBudget memory;
+    private static CostModel costModel;  // order of the cells of a batch, refined over the run
+    private static MemoryBudget.Admission admission;  // admission of the current image
+    private static CellStatistics stats;  // statistics of the image being measured
+    private static CellStatistics runStats;
 
 
     public static void main(String[] args) {
@@ -58,11 +95,35 @@ public class bcmeasure {
             if (Params.DEBUG)
                 imageJ = new ImageJ();
 
+            workers = Executors.newFixedThreadPool(Params.THREADS);
+            workerCount = Params.THREADS;
+            CellTasks.setThreshold(Params.SPLIT_CELLS);
+            CellTasks.setWorkers((ThreadPoolExecutor) workers);
+            costModel = new CostModel(Params.CUBE_DIM, Params.SCALE_Z);
+            memory = new MemoryBudget(Params.MEMORY_BUDGET * (1L << 20));
+            if (Params.DEBUG)
+                //  sampled RGB previews of the montages
+                memory.reserve(PreviewSampler.PER_CLASS * PreviewSampler.CLASS_NAMES.length * 4L *
+                        Params.CUBE_DIM * Params.CUBE_DIM);
+            progress = new Progress(0);
+            runStats = new CellStatistics(Params.SCALE_Z, Params.MAX_RADIUS);
+            //  the watcher is registered first, so files landing during the first pass are not missed
+            FolderWatcher watcher = Params.WATCH ?
+                    new FolderWatcher(Paths.get(Params.SOURCE_DIR), Params.WATCH_DEBOUNCE * 1000L) : null;
             fullProcess();
+            if (watcher != null) {
+                if (!Params.DEBUG)
+                    logger.writeLogFile(Params.SOURCE_DIR);
+                watch(watcher);
+            }
+            workers.shutdown();
+            writeRunStats();
+            logger.log(memory.summary());
+            System.out.println("\n" + memory.summary());
 
             if (Params.DEBUG) {
                 System.out.println("DEBUG: Loading previews");
-                Montage.showRandomMontages(cellPreviews, Params.CUBE_DIM);
+                Montage.showRandomMontages(previews, Params.CUBE_DIM);
             } else
                 logger.writeLogFile(Params.SOURCE_DIR);
 
@@ -75,98 +136,666 @@ public class bcmeasure {
         }
     }
 
-    private static void fullProcess() throws IOException {
-        try (Stream<Path> paths = Files.walk(Paths.get(Params.SOURCE_DIR))) {
-            List<String> files = paths
-                    .filter(Files::isRegularFile)
-                    .filter(p -> p.getFileName().toString().toLowerCase().endsWith(".marker"))
-                    .filter(p -> !(p.getFileName().toString().contains("[RAD]")))
-                    .map(Path::toString)
-                    .map(FilenameUtils::removeExtension)
-                    .sorted()
-                    .collect(Collectors.toList());
+    /**
+     * Run a whole job in the current JVM on the given workers (used by the bcserver daemon).
+     * Jobs must not run concurrently since parameters are global
+     *
+     * @param args        same arguments of the command line
+     * @param jobProgress progress of the job, updated while processing
+     * @param jobWorkers  shared pool on which the cells are processed
+     * @return paths of the written [RAD].marker files
+     * @throws ParseException if the arguments are not valid
+     * @throws IOException    if the source dir cannot be read or some image cannot be measured
+     */
+    static List<String> run(String[] args, Progress jobProgress, ExecutorService jobWorkers)
+            throws ParseException, IOException {
+        Params.parse(args);
+        init(jobProgress, jobWorkers);
+
+        try {
+            List<String> outputs = fullProcess();
+            writeRunStats();
+            logger.log(memory.summary());
+            logger.writeLogFile(Params.SOURCE_DIR);
+            if (!failedImages.isEmpty())
+                throw new IOException(failedImages.size() + " of " + progress.getImgTotal() +
+                        " images not measured (see the log): " + String.join(", ", failedImages));
+            return outputs;
+        } finally {
+            //  the next job starts with all the workers
+            resizeWorkers(workerCount);
+        }
+    }
+
+    /**
+     * Prepare a run driven by another process (bcserver jobs, bcshard workers): no previews and no console logging
+     */
+    static void init(Progress runProgress, ExecutorService runWorkers) {
+        //  previews need the ImageJ frame, not available in the daemon
+        Params.DEBUG = false;
+        driven = true;
+        logger = Logger.getInstance(false);
+        progress = runProgress;
+        workers = runWorkers;
+        workerCount = runWorkers instanceof ThreadPoolExecutor ?
+                ((ThreadPoolExecutor) runWorkers).getMaximumPoolSize() : Params.THREADS;
+        memory = new MemoryBudget(Params.MEMORY_BUDGET * (1L << 20));
+        runStats = new CellStatistics(Params.SCALE_Z, Params.MAX_RADIUS);
+        CellTasks.setThreshold(Params.SPLIT_CELLS);
+        CellTasks.setWorkers(runWorkers instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) runWorkers : null);
+        costModel = new CostModel(Params.CUBE_DIM, Params.SCALE_Z);
+    }
 
-            progress = new Progress(files.size());
+    private static List<String> fullProcess() throws IOException {
+        List<String> outputs = new ArrayList<>();
+        failedImages.clear();
+        try {
+            List<String> files = listPairs();
+
+            progress.setImgTotal(files.size());
             for (String filePath : files) {
                 try {
                     progress.stepImg();
 
-                    processImg(filePath);
+                    if (processImg(filePath))
+                        outputs.add(filePath + "[RAD].marker");
+                    else
+                        failedImages.add(filePath);
 
                 } catch (Exception e) {
                     e.printStackTrace();
-                    IJ.error(e.getMessage());
+                    failedImages.add(filePath);
+                    error(filePath + ": " + e);
                 }
             }
         } catch (NoSuchFileException nsfe) {
             nsfe.printStackTrace();
-            IJ.error("Source dir '" + nsfe.getMessage() + "' not valid");
+            failedImages.add(Params.SOURCE_DIR);
+            error("Source dir '" + nsfe.getMessage() + "' not valid");
         } catch (Exception e) {
             e.printStackTrace();
-            IJ.error("Unknown error, please check stack trace");
+            failedImages.add(Params.SOURCE_DIR);
+            error("Unknown error, please check stack trace");
+        }
+        return outputs;
+    }
+
+    /**
+     * Report an error: in a dialog, or in the log when the run is driven by another process (headless daemon,
+     * shard workers), where dialogs cannot be shown and errors come from the worker threads too
+     */
+    private static void error(String message) {
+        if (driven)
+            logger.log("ERROR: " + message.replace('\n', ' '));
+        else
+            IJ.error(message);
+    }
+
+    /**
+     * @return image paths (marker paths without extension) of the pairs to be processed in the source dir, sorted
+     * @throws IOException if the source dir cannot be read
+     */
+    static List<String> listPairs() throws IOException {
+        try (Stream<Path> paths = Files.walk(Paths.get(Params.SOURCE_DIR))) {
+            return paths
+                    .filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().toLowerCase().endsWith(".marker"))
+                    .filter(p -> !(p.getFileName().toString().contains("[RAD]")))
+                    .filter(p -> !(p.getFileName().toString().contains("[DUP]")))
+                    .filter(p -> !(p.getFileName().toString().contains("[LOW]")))
+                    .map(Path::toString)
+                    .map(FilenameUtils::removeExtension)
+                    //  in watch mode the pairs already measured are not processed again
+                    .filter(p -> !Params.WATCH || !FolderWatcher.isUpToDate(p))
+                    .sorted()
+                    .collect(Collectors.toList());
         }
     }
 
-    private static void processImg(String imgPath) {
+    /**
+     * Process the new image/marker pairs as soon as they are complete, until the program is stopped
+     */
+    private static void watch(FolderWatcher watcher) {
+        System.out.println("\nWatching " + Params.SOURCE_DIR + " for new images (Ctrl+C to stop)");
+        try {
+            watcher.watch(imgPath -> {
+                progress.setImgTotal(progress.getImgTotal() + 1);
+                progress.stepImg();
+                boolean written = processImg(imgPath);
+                //  nothing is kept in memory between two images
+                if (!Params.DEBUG)
+                    logger.writeLogFile(Params.SOURCE_DIR, true);
+                writeRunStats();
+                return written;
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the [RAD].marker file has been written
+     */
+    private static boolean processImg(String imgPath) {
         logger.log("Processing " + imgPath + "...");
 
         //  open image
-        ImagePlus imp = IJ.openImage(imgPath);
+        ImagePlus imp = openImage(imgPath);
 
         //  read relative csv file rows (coordinates of centers)
         String markerPath = imgPath + ".marker";
-        ArrayList<int[]> seeds;
+        String binPath = imgPath + "[RAD]" + BinaryMarker.EXTENSION;
+        BinaryMarker.Writer binWriter = null;
+        boolean written = false;
         try {
-            if (Params.INVERT_Y)
-                seeds = Marker.readMarker(markerPath, imp.getHeight());
-            else
-                seeds = Marker.readMarker(markerPath);
+            MarkerParser.SeedArray seeds = Marker.readSeeds(markerPath, Params.INVERT_Y ? imp.getHeight() : 0);
 
             ArrayList<List<String>> rows = new ArrayList<>();
+            List<String> lowContrast = new ArrayList<>();
+            if (Params.BINARY_OUTPUT) {
+                Map<String, String> metadata = Params.describe();
+                metadata.put("image", Paths.get(imgPath).getFileName().toString());
+                metadata.put("created", Instant.now().toString());
+                binWriter = new BinaryMarker.Writer(binPath, metadata);
+            }
 
-            progress.resetCellCount(seeds.size(), Paths.get(imgPath).getFileName().toString());
-            for (CellStack cellStack : CellStack.getCellStacksFromSeeds(imp, seeds, Params.CUBE_DIM, Params.SCALE_Z)) {
-                progress.stepCell();
-                progress.show();
-
-                if (cellStack.isOnBorder() && Params.DISCARD_EDGE_CELLS) {
-                    logger.log("Skipped on border cell " + Arrays.toString(cellStack.getCellCenter()));
-                } else {
-                    try {
-                        processCell(cellStack);
-
-                        rows.add(cellStack.getData());
-
-                        //  apply a different LUT for display
-                        if (!Params.COLOR_MAP.equals("default"))
-                            if (!Display.applyLUT(cellStack, Params.COLOR_MAP))
-                                Params.COLOR_MAP = "default";
-                        if (Params.DEBUG) {
-                            cellPreviews.add(cellStack.savePreview());
-                        }
-
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        IJ.error("Skipped cell " + Arrays.toString(cellStack.getCellCenter()) + ", reason: " + e.getMessage());
-                    }
+            BinaryMarker.Writer bin = binWriter;
+            SeedClusters clusters = measureSeeds(imgPath, imp, seeds, 0, seeds.size(), cellStack -> {
+                if (cellStack.isLowContrast()) {
+                    lowContrast.add(Marker.lowContrastRow(cellStack));
+                    return;
                 }
-            }
+                rows.add(cellStack.getData());
+                if (bin != null)
+                    bin.append(cellStack);
+            });
 
             String outMarkerPath = imgPath + "[RAD].marker";
             Marker.writeMarker(outMarkerPath, rows);
+            if (clusters != null && Params.DUPLICATE_MODE.equals("flag"))
+                Marker.writeDuplicates(imgPath + "[DUP].marker", seeds, clusters);
+            if (contrastTest != null && Params.LOW_CONTRAST_MODE.equals("flag"))
+                Marker.writeLowContrast(imgPath + "[LOW].marker", lowContrast);
+            stats.write(imgPath + "[STATS].txt", Paths.get(imgPath).getFileName().toString());
+            runStats.merge(stats);
+            if (binWriter != null)
+                binWriter.close();
+            logger.log(memory.report(admission));
+            written = true;
+            return true;
 
         } catch (IOException e) {
             e.printStackTrace();
-            IJ.error("Error with marker " + markerPath + "\nSkipped");
+            error("Error with marker " + markerPath + "\nSkipped");
         } catch (NullPointerException npe) {
             npe.printStackTrace();
-            IJ.error("Invalid img path: " + imgPath);
+            error("Invalid img path: " + imgPath);
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            error("Processing of " + imgPath + " interrupted: " + e.getMessage());
+        } finally {
+            if (binWriter != null) {
+                //  a partial binary output would be taken for the results of the image
+                try {
+                    binWriter.close();
+                    if (!written)
+                        Files.deleteIfExists(Paths.get(binPath));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            closeImage(imp);
+        }
+        return false;
+    }
+
+    /**
+     * Open the image in the way admitted by the memory budget: loaded in memory or as a virtual stack, the number
+     * of workers is reduced if needed, compressed TIFFs are decoded by the workers in parallel. The chunked copy of
+     * the image (see bcconvert) is used if up to date. In z-sweep mode the image is read through a window of slices
+     * twice as deep as the crop, so that the cells of a band are measured while the next slices are read
+     *
+     * @return the image or null if it cannot be opened
+     */
+    static ImagePlus openImage(String imgPath) {
+        long cellBytes = VoxelPool.estimateBytes(Params.CUBE_DIM, Params.SCALE_Z);
+        String chunked = Params.Z_SWEEP ? null : ChunkedVolume.find(imgPath);
+        if (chunked != null) {
+            try {
+                ChunkedVolume volume = ChunkedVolume.open(chunked);
+                admit(imgPath, memory.admitChunked(imgPath, workerCount, cellBytes, volume.getCacheBytes()));
+                logger.log("Reading the crops from " + chunked);
+                return volume.toImagePlus(Paths.get(imgPath).getFileName().toString());
+            } catch (IOException e) {
+                e.printStackTrace();
+                logger.log("WARNING: cannot open " + chunked + ", reading " + imgPath);
+            }
+        }
+        admit(imgPath, memory.admit(imgPath, workerCount, cellBytes));
+        if (Params.Z_SWEEP) {
+            ImagePlus source = TiffReader.openVirtual(imgPath);
+            return source == null ? null :
+                    SliceWindow.open(source, 4 * (int) (Params.CUBE_DIM * Params.SCALE_Z / 2));
+        }
+        return admission.virtual ? TiffReader.openVirtual(imgPath) :
+                TiffReader.load(imgPath, admission.threads);
+    }
+
+    private static void admit(String imgPath, MemoryBudget.Admission imageAdmission) {
+        admission = imageAdmission;
+        if (!admission.fits)
+            logger.log("WARNING: " + imgPath + " does not fit the memory budget");
+        resizeWorkers(admission.threads);
+    }
+
+    /**
+     * @return the image to be read whole, one slice at a time (background and shell maps): the source TIFF instead of
+     * a chunked volume, whose slices need all the chunks of their layer and would thrash its cache on wide images
+     */
+    private static ImagePlus wholeImage(String imgPath, ImagePlus imp) {
+        if (!(imp.getStack() instanceof ChunkedVolume.Stack))
+            return imp;
+        ImagePlus source = TiffReader.openVirtual(imgPath);
+        return source != null ? source : imp;
+    }
+
+    /**
+     * Release what refers to an image once it has been measured, so that nothing is kept in memory between two
+     * images: the background and shell maps built on it and the file of a chunked volume
+     */
+    static void closeImage(ImagePlus imp) {
+        if (imp == null)
+            return;
+        if (backgroundImage == imp) {
+            backgroundMap = null;
+            backgroundImage = null;
+        }
+        shellMaps = null;
+        if (!(imp.getStack() instanceof ChunkedVolume.Stack))
+            return;
+        ChunkedVolume volume = ((ChunkedVolume.Stack) imp.getStack()).getVolume();
+        logger.log(volume.report());
+        try {
+            volume.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Change the number of workers, idle workers above the new size terminate releasing their cell buffers
+     */
+    private static void resizeWorkers(int size) {
+        if (!(workers instanceof ThreadPoolExecutor))
+            return;
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+        if (size < pool.getMaximumPoolSize()) {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        } else {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
         }
     }
 
-    private static void processCell(CellStack cellStack) throws Exception {
+    /**
+     * @return memory report of the last opened image
+     */
+    static String memoryReport() {
+        return memory.report(admission);
+    }
+
+    /**
+     * @return memory peaks of the run so far
+     */
+    static String memorySummary() {
+        return memory.summary();
+    }
+
+    /**
+     * @return statistics of the seeds measured by the last call of measureSeeds
+     */
+    static CellStatistics lastStats() {
+        return stats;
+    }
+
+    /**
+     * Write the statistics of the images measured so far in the stats file of the source dir
+     */
+    private static void writeRunStats() {
+        runStats.stop();
+        try {
+            runStats.write(Params.SOURCE_DIR + "/stats.txt", Params.SOURCE_DIR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            error("No file written: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Measure the seeds in [from, to) of an image on the workers, one batch at a time, the cells of a batch are
+     * submitted by decreasing predicted cost (see CostModel).
+     * Measured cells are passed to the sink on the calling thread in the order of the seeds.
+     * If duplicate seeds are collapsed only their representatives are measured: in fanout mode every duplicate is
+     * passed to the sink as a copy of the result of its representative, in flag mode it is left to the caller
+     *
+     * @return clusters of the duplicate seeds, null if they are not collapsed
+     * @throws IOException          if the sink cannot store a cell
+     * @throws InterruptedException if the thread is interrupted while waiting for the workers
+     * @throws ExecutionException   if a worker fails unexpectedly
+     */
+    static SeedClusters measureSeeds(String imgPath, ImagePlus imp, MarkerParser.SeedArray seeds, int from, int to,
+                                     CellSink sink) throws IOException, InterruptedException, ExecutionException {
+        SeedClusters clusters = Params.DUPLICATE_DISTANCE > 0 && to > from ?
+                new SeedClusters(seeds, from, to, Params.DUPLICATE_DISTANCE, Params.SCALE_Z) : null;
+        boolean fanout = clusters != null && Params.DUPLICATE_MODE.equals("fanout");
+        stats = new CellStatistics(Params.SCALE_Z, Params.MAX_RADIUS);
+        if (clusters != null) {
+            logger.log(clusters.report());
+            stats.addDuplicates(clusters.getDuplicates());
+        }
+
+        progress.resetCellCount(clusters != null ? clusters.getRepresentatives() : to - from,
+                Paths.get(imgPath).getFileName().toString());
+        contrastTest = Params.MIN_CONTRAST > 0 || Params.MIN_CORE_INTENSITY > 0 ?
+                new ContrastTest(Params.CONTRAST_CORE, Params.CONTRAST_ANNULUS_INNER, Params.CONTRAST_ANNULUS_OUTER,
+                        Params.SCALE_Z, Params.MIN_CONTRAST, Params.MIN_CORE_INTENSITY) : null;
+        SliceWindow window = imp.getStack() instanceof SliceWindow ? (SliceWindow) imp.getStack() : null;
+        if (Params.BACKGROUND_MAP > 0 && window != null) {
+            logger.log("WARNING: background map not available in z-sweep mode, local means measured per cell");
+            backgroundMap = null;
+            backgroundImage = null;
+        } else if (Params.BACKGROUND_MAP > 0 && backgroundImage != imp) {
+            backgroundMap = new BackgroundMap(wholeImage(imgPath, imp), Params.BACKGROUND_MAP, Params.SCALE_Z, workers);
+            backgroundImage = imp;
+            logger.log(backgroundMap.report());
+        } else if (Params.BACKGROUND_MAP == 0) {
+            backgroundMap = null;
+            backgroundImage = null;
+        }
+        shellMaps = planShellMaps(imgPath, imp, seeds, from, to, clusters);
+        coarseToFine = Params.PYRAMID > 1 ?
+                new CoarseToFine(Params.PYRAMID, Params.PYRAMID_TOLERANCE, Params.PYRAMID_CHECK) : null;
+        //  results of the representatives kept until their last duplicate is passed to the sink
+        Map<Integer, CellStack> pending = new HashMap<>();
+        List<Callable<CellStack>> batch = new ArrayList<>();
+        double[] costs = new double[BATCH_SIZE];
+        //  a z-sweep measures all the cells first, then they are passed to the sink as a single batch
+        CellStack[] swept = window != null ? sweep(imp, window, seeds, from, to, clusters) : null;
+        int[] crowding = swept == null ? costModel.crowding(seeds, from, to) : null;
+        costModel.startImage();
+        int next = from;  // first seed not passed to the sink yet
+        for (int i = from; i < to; i++) {
+            if (swept == null && (clusters == null || clusters.isRepresentative(i))) {
+                int[] seed = seeds.get(i);
+                double[] features = costModel.features(imp.getStack(), seed, crowding[i - from]);
+                double cost = costModel.predict(features);
+                costs[batch.size()] = cost;
+                batch.add(() -> {
+                    long start = costModel.startCell();
+                    CellStack cellStack = measureCell(imp, seed);
+                    costModel.record(features, cost, System.nanoTime() - start);
+                    return cellStack;
+                });
+            }
+
+            if (batch.size() == BATCH_SIZE || i == to - 1) {
+                List<Future<CellStack>> results = swept == null ? dispatch(batch, costs) : null;
+                try {
+                    int r = 0;
+                    for (; next <= i; next++) {
+                        if (clusters == null || clusters.isRepresentative(next)) {
+                            CellStack cellStack = swept != null ? swept[next - from] : results.get(r++).get();
+                            if (cellStack == null)
+                                continue;
+                            if (fanout && clusters.getLastDuplicate(next) >= 0)
+                                pending.put(next, cellStack);
+                            if (!cellStack.isLowContrast())
+                                stats.add(cellStack);
+                            sink.accept(cellStack);
+                        } else if (fanout) {
+                            //  a skipped representative skips its duplicates too
+                            int rep = clusters.getRepresentative(next);
+                            CellStack measured = next == clusters.getLastDuplicate(rep) ?
+                                    pending.remove(rep) : pending.get(rep);
+                            if (measured != null)
+                                sink.accept(measured.forSeed(seeds.get(next)));
+                        }
+                    }
+                } catch (IOException | InterruptedException | ExecutionException | RuntimeException e) {
+                    if (results != null)
+                        cancel(results);
+                    throw e;
+                }
+                if (swept == null)
+                    costModel.endBatch();
+                batch.clear();
+            }
+        }
+
+        if (swept == null)
+            logger.log(costModel.report());
+        if (coarseToFine != null)
+            logger.log(coarseToFine.report());
+        stats.stop();
+        return clusters;
+    }
+
+    /**
+     * Submit the cells of a batch to the workers from the most expensive one, so that the cells starting last are
+     * the cheapest ones and the workers finish the batch together
+     *
+     * @param costs predicted cost of every cell of the batch
+     * @return futures in the order of the batch
+     */
+    private static List<Future<CellStack>> dispatch(List<Callable<CellStack>> batch, double[] costs) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++)
+            order.add(i);
+        order.sort(Comparator.comparingDouble(i -> -costs[i]));
+        List<Future<CellStack>> futures = new ArrayList<>(Collections.nCopies(batch.size(), null));
+        costModel.startBatch();
+        for (int i : order)
+            futures.set(i, workers.submit(batch.get(i)));
+        return futures;
+    }
+
+    /**
+     * Cancel the cells of a failed batch which have not started and wait for the running ones, so that the workers
+     * are free when measureSeeds returns (e.g. for the next job of bcserver)
+     */
+    private static void cancel(List<Future<CellStack>> futures) {
+        for (Future<CellStack> future : futures)
+            future.cancel(false);
+        for (Future<CellStack> future : futures) {
+            try {
+                future.get();
+            } catch (CancellationException | ExecutionException e) {
+                //  not started or failed, the batch is failing anyway
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Measure the seeds reading the slices of the window once, from the first upward: a seed is dispatched to the
+     * workers as soon as the last slice of its crop has been read, and a slice is replaced only after the cells
+     * whose crop starts on it are done. Seeds are taken in order of z, so both the first and the last slice of their
+     * crops only grow. Slices are read from the first slice of the lowest crop up to the last slice of the highest
+     *
+     * @return measured cells by seed (index - from), null for skipped and not measured seeds
+     */
+    private static CellStack[] sweep(ImagePlus imp, SliceWindow window, MarkerParser.SeedArray seeds, int from,
+                                     int to, SeedClusters clusters) throws InterruptedException, ExecutionException {
+        int halfDepth = (int) (Params.CUBE_DIM * Params.SCALE_Z / 2);
+        int depth = window.getSize();
+        List<Integer> order = new ArrayList<>();
+        for (int i = from; i < to; i++)
+            if (clusters == null || clusters.isRepresentative(i))
+                order.add(i);
+        order.sort(Comparator.comparingInt(i -> seeds.get(i)[2]));
+
+        List<Future<CellStack>> futures = new ArrayList<>(Collections.nCopies(to - from, null));
+        //  slices below the first crop are not needed (e.g. shards of the upper part of the volume)
+        window.restart(order.isEmpty() ? depth : seeds.get(order.get(0))[2] - halfDepth);
+        int dispatched = 0;
+        int waited = 0;
+        while (dispatched < order.size()) {
+            int z = window.getLoaded();  // next slice to be read
+            if (z < depth) {
+                //  the slice replaces the one window slices below it, the cells starting there must be done
+                for (; waited < dispatched; waited++) {
+                    int start = seeds.get(order.get(waited))[2] - halfDepth;
+                    if (start > z - window.getWindow())
+                        break;
+                    futures.get(order.get(waited) - from).get();
+                }
+                window.load();
+            }
+            for (; dispatched < order.size(); dispatched++) {
+                int seed = order.get(dispatched);
+                int[] position = seeds.get(seed);
+                if (Math.min(position[2] + halfDepth, depth) > window.getLoaded())
+                    break;
+                futures.set(seed - from, workers.submit(() -> measureCell(imp, position)));
+            }
+        }
+
+        CellStack[] cells = new CellStack[to - from];
+        for (int i = 0; i < cells.length; i++)
+            if (futures.get(i) != null)
+                cells[i] = futures.get(i).get();
+        return cells;
+    }
+
+    /**
+     * Compute the shell maps of the seeds to be measured if enabled and estimated faster than the per-cell sweeps.
+     * The maps replace the sweep of the first stage only, so they are not used when the first stage works on
+     * something else than the raw crop of the full cube dimension
+     *
+     * @return the maps or null if the cells are swept one by one
+     */
+    private static ShellMaps planShellMaps(String imgPath, ImagePlus imp, MarkerParser.SeedArray seeds, int from,
+                                           int to, SeedClusters clusters)
+            throws InterruptedException, ExecutionException {
+        boolean adaptive = Params.ADAPTIVE_CROP > 0 && Params.ADAPTIVE_CROP < Params.CUBE_DIM;
+        if (Params.SHELL_MAPS.equals("never") || !Params.FILTER.equals("none") || Params.PYRAMID > 1 ||
+                Params.BACKGROUND_MAP > 0 || adaptive || to <= from || imp.getStack() instanceof SliceWindow)
+            return null;
+        List<int[]> measured = new ArrayList<>();
+        for (int i = from; i < to; i++)
+            if (clusters == null || clusters.isRepresentative(i))
+                measured.add(seeds.get(i));
+        //  spectra and tile buffers must fit the memory left by the image and the cell buffers
+        ShellMaps maps = new ShellMaps(wholeImage(imgPath, imp), measured, Math.max(Params.R2, Params.MAX_RADIUS + 1), Params.CUBE_DIM,
+                Params.SCALE_Z, memory.headroom(admission), admission.threads);
+        if (maps.getBytes() == 0 || (Params.SHELL_MAPS.equals("auto") && !maps.pays())) {
+            logger.log(maps.report() + ", not used");
+            return null;
+        }
+        memory.charge(admission, maps.getBytes());
+        maps.compute(workers);
+        logger.log(maps.report());
+        return maps;
+    }
+
+    /**
+     * Receiver of the measured cells of measureSeeds
+     */
+    interface CellSink {
+        void accept(CellStack cellStack) throws IOException;
+    }
+
+    /**
+     * Crop and measure a single cell on the current worker thread. The crop lives in the worker VoxelPool,
+     * so everything which needs the voxels (previews, LUT) is done here.
+     * With adaptive cropping the cell is cropped small first and measured again on a crop 1.5x larger (up to the
+     * cube dimension) every time it reaches the faces of the crop; border cells are the same of the full crop
+     *
+     * @return the measured cell or null if skipped
+     */
+    private static CellStack measureCell(ImagePlus imp, int[] seed) {
+        boolean adaptive = Params.ADAPTIVE_CROP > 0 && Params.ADAPTIVE_CROP < Params.CUBE_DIM;
+        int dim = adaptive ? Params.ADAPTIVE_CROP : Params.CUBE_DIM;
+        VoxelPool pool = VoxelPool.get(Params.CUBE_DIM, Params.SCALE_Z);
+        CellStack cellStack = new CellStack(imp, seed, dim, Params.SCALE_Z, pool);
+        progress.stepCell();
+        progress.show();
+
+        boolean onBorder = adaptive ? CellStack.isOnBorder(imp, seed, Params.CUBE_DIM, Params.SCALE_Z) :
+                cellStack.isOnBorder();
+        if (onBorder && Params.DISCARD_EDGE_CELLS) {
+            logger.log("Skipped on border cell " + Arrays.toString(cellStack.getCellCenter()));
+            stats.skippedOnBorder();
+            return null;
+        }
+        if (contrastTest != null) {
+            double[] contrast = contrastTest.measure(cellStack);
+            if (contrastTest.rejects(contrast)) {
+                logger.log("Low contrast seed " + Arrays.toString(seed) + ", core mean " + contrast[0] +
+                        ", annulus mean " + contrast[1] + ", contrast " + contrast[2]);
+                stats.lowContrast();
+                if (Params.LOW_CONTRAST_MODE.equals("skip"))
+                    return null;
+                //  the seed is passed to the sink to be listed apart from the measured cells
+                cellStack.setLowContrast(contrast);
+                return cellStack;
+            }
+        }
+        //  messages of the cell are kept together in the log
+        logger.startGroup();
+        try {
+            if (adaptive) {
+                //  the crop is sized on a cheap estimate of the radius, twice the diameter leaves room for the shells
+                //  and the mean shift, cells reaching the faces of the smallest crop start from the cube
+                int estimate = cellStack.estimateRadius();
+                int sized = estimate < 0 ? Params.CUBE_DIM : 4 * estimate;
+                if (sized > dim) {
+                    dim = Math.min(sized, Params.CUBE_DIM);
+                    cellStack = new CellStack(imp, seed, dim, Params.SCALE_Z, pool);
+                }
+            }
+            int growth = 0;
+            while (!processCell(cellStack, dim < Params.CUBE_DIM)) {
+                dim = Math.min(dim * 3 / 2, Params.CUBE_DIM);
+                growth++;
+                logger.log("- Crop reached, measuring again with dimension " + dim);
+                cellStack = new CellStack(imp, seed, dim, Params.SCALE_Z, pool);
+            }
+            if (adaptive)
+                stats.cropped(dim, growth);
+
+            if (Params.DEBUG) {
+                //  only the previews which may be shown are built
+                long ticket = previews.reserve(cellStack.getDensity());
+                if (ticket >= 0) {
+                    //  apply a different LUT for display
+                    if (!Params.COLOR_MAP.equals("default"))
+                        if (!Display.applyLUT(cellStack, Params.COLOR_MAP))
+                            Params.COLOR_MAP = "default";
+                    previews.put(cellStack.getDensity(), ticket, cellStack.savePreview());
+                }
+            }
+            return cellStack;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            error("Skipped cell " + Arrays.toString(cellStack.getCellCenter()) + ", reason: " + e.getMessage());
+            stats.failed();
+            return null;
+        } finally {
+            logger.endGroup();
+        }
+    }
+
+    /**
+     * @param canGrow if true the measure stops as soon as the cell reaches the faces of the crop
+     * @return false if the measure has been stopped and the cell must be measured on a larger crop
+     */
+    private static boolean processCell(CellStack cellStack, boolean canGrow) throws Exception {
         logger.log("Cell at " + Arrays.toString(cellStack.getCellCenter()));
-        cellStack.setCalibration();
 
         if (!Params.FILTER.equals("none")) {
             logger.log("- Applying " + Params.FILTER + " 3D filtering");
@@ -178,11 +807,36 @@ public class bcmeasure {
         logger.log("- Local max in " + Arrays.toString(localMax) + ", " +
                 "value: " + cellStack.getVoxel(localMax));
 
-        double localMean = cellStack.getLocalMean(Params.R0, Params.R1, Params.R2, Params.MEAN_WEIGHT);
-        logger.log("- Local mean: " + localMean);
-
-        int radius = cellStack.computeCellRadius(localMean, Params.MAX_RADIUS);
+        double localMean;
+        int radius;
+        if (coarseToFine != null) {
+            double[] estimate = coarseToFine.estimate(cellStack, Params.R0, Params.R1, Params.R2, Params.MEAN_WEIGHT,
+                    Params.MAX_RADIUS);
+            localMean = estimate[0];
+            radius = (int) estimate[1];
+            logger.log("- Local mean (" + Params.PYRAMID + "x downsampled): " + localMean);
+        } else if (backgroundMap != null) {
+            int[] position = cellStack.getAbsoluteCenter();
+            localMean = cellStack.computeLocalMeanAndRadius(Params.R0, backgroundMap.getBackground(position),
+                    Params.MEAN_WEIGHT, Params.MAX_RADIUS);
+            logger.log("- Local mean (background map): " + localMean + ", foreground " +
+                    backgroundMap.getForeground(position));
+
+            radius = cellStack.getRadius();
+        } else {
+            ShellProfile profile = shellMaps != null ? shellMaps.getProfile(cellStack.getSeed()) : null;
+            localMean = profile != null ?
+                    cellStack.computeLocalMeanAndRadius(profile, Params.R0, Params.R1, Params.R2, Params.MEAN_WEIGHT,
+                            Params.MAX_RADIUS) :
+                    cellStack.computeLocalMeanAndRadius(Params.R0, Params.R1, Params.R2, Params.MEAN_WEIGHT,
+                            Params.MAX_RADIUS);
+            logger.log("- Local mean" + (profile != null ? " (shell maps): " : ": ") + localMean);
+
+            radius = cellStack.getRadius();
+        }
         logger.log("- First radius: " + radius);
+        if (canGrow && cellStack.reachesCrop(cellStack.getCellCenter(), radius + 1))
+            return false;
 
         ArrayList<int[]> peaks = cellStack.findMaxima(radius / 2, (float) localMean);
 
@@ -192,13 +846,23 @@ public class bcmeasure {
 
         cellStack.setCellCenter(centroid);
         logger.log("- New center: " + Arrays.toString(centroid));
-
-        double newLocalMean = cellStack.getLocalMean(radius - 3, radius + 3, radius + 23, Params.MEAN_WEIGHT);
-
-        int newRadius = cellStack.computeCellRadius(newLocalMean, Params.MAX_RADIUS);
+        if (canGrow && cellStack.reachesCrop(centroid, radius))
+            return false;
+
+        //  local mean and radius from a single sweep, the density needs both so it is computed on its own
+        double newLocalMean = backgroundMap != null ?
+                cellStack.computeLocalMeanAndRadius(radius - 3,
+                        backgroundMap.getBackground(cellStack.getAbsoluteCenter()), Params.MEAN_WEIGHT,
+                        Params.MAX_RADIUS) :
+                cellStack.computeLocalMeanAndRadius(radius - 3, radius + 3, radius + 23, Params.MEAN_WEIGHT,
+                        Params.MAX_RADIUS);
+
+        int newRadius = cellStack.getRadius();
         logger.log("- New radius: " + newRadius);
-        cellStack.setRadius(newRadius);
+        if (canGrow && cellStack.reachesCrop(centroid, newRadius + 1))
+            return false;
         cellStack.computeDensity(newLocalMean);
+        return true;
     }
 
 }
@@ -0,0 +1,268 @@
+/*
+ *     Copyright (C) 2019  Vittorio Zampinetti
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+import org.apache.commons.cli.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.Progress;
+
+/**
+ * Long running bcmeasure daemon: keeps a warm JVM and accepts jobs (bcmeasure arguments) on a local socket.
+ * Jobs are queued and run one at a time, the cells of every job are processed on a shared pool of workers.
+ * <p>
+ * Protocol: one command per connection, a single line with tab separated fields, the answer is sent back and the
+ * connection closed. Connections are served by a few threads of their own, so a slow client does not hold the
+ * others.
+ * <pre>
+ *   SUBMIT arg1 arg2 ...   -> OK id
+ *   STATUS id              -> state and progress of the job (QUEUED, RUNNING, DONE, FAILED)
+ *   RESULT id              -> state, followed by the written [RAD].marker paths or by the error
+ *   LIST                   -> one line for each job
+ *   SHUTDOWN               -> OK, the daemon stops accepting jobs, answers the other commands until the queued
+ *                             jobs are done and exits
+ * </pre>
+ * See bcclient for the command line client.
+ */
+public class bcserver {
+
+    public static final int DEFAULT_PORT = 4848;
+    private static final int CONNECTION_THREADS = 4;
+    private static final int CONNECTION_TIMEOUT = 10000;  // ms a client has to send its command
+    private static final int ACCEPT_TIMEOUT = 1000;  // ms between two checks of the queue while shutting down
+
+    private static final Map<Integer, Job> jobs = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    private static ExecutorService jobQueue;
+    private static ExecutorService workers;
+    private static ExecutorService connections;
+    private static volatile boolean running = true;  // false once SHUTDOWN is received, the queue is then drained
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("port")
+                .hasArg()
+                .argName("int")
+                .desc("Local port to listen on (default " + DEFAULT_PORT + ")")
+                .build());
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .hasArg()
+                .argName("int")
+                .desc("Number of workers shared by all the jobs, default is the number of available processors")
+                .build());
+
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            CommandLine line = new DefaultParser().parse(options, args);
+            if (line.hasOption("port"))
+                port = Integer.parseInt(line.getOptionValue("port"));
+            if (line.hasOption("t"))
+                threads = Integer.parseInt(line.getOptionValue("t"));
+        } catch (ParseException | NumberFormatException exp) {
+            System.err.println("Parsing failed.  Reason: " + exp.getMessage());
+            new HelpFormatter().printHelp("bcserver [OPTIONS]", options);
+            return;
+        }
+
+        //  the daemon never opens windows
+        System.setProperty("java.awt.headless", "true");
+        jobQueue = Executors.newSingleThreadExecutor();
+        workers = Executors.newFixedThreadPool(threads);
+        connections = Executors.newFixedThreadPool(CONNECTION_THREADS);
+
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("bcserver listening on " + server.getLocalSocketAddress() + " with " + threads +
+                    " workers");
+            //  after SHUTDOWN clients can still follow the jobs until the queue is empty
+            server.setSoTimeout(ACCEPT_TIMEOUT);
+            while (running || !jobQueue.isTerminated()) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                connections.execute(() -> {
+                    try (Socket client = socket) {
+                        client.setSoTimeout(CONNECTION_TIMEOUT);
+                        handle(client);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            connections.shutdown();
+            //  the queued jobs still need the workers
+            jobQueue.shutdown();
+            try {
+                jobQueue.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            workers.shutdown();
+        }
+    }
+
+    private static void handle(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        String request = in.readLine();
+        if (request == null)
+            return;
+
+        String[] fields = request.split("\t", -1);
+        String command = fields[0].trim().toUpperCase();
+        try {
+            switch (command) {
+                case "SUBMIT":
+                    Job job = submit(Arrays.copyOfRange(fields, 1, fields.length));
+                    out.println(job != null ? "OK " + job.id : "ERROR Shutting down, no new jobs accepted");
+                    break;
+                case "STATUS":
+                    out.println(getJob(fields).status());
+                    break;
+                case "RESULT":
+                    Job done = getJob(fields);
+                    out.println(done.state);
+                    for (String line : done.result())
+                        out.println(line);
+                    break;
+                case "LIST":
+                    for (Job j : jobs.values())
+                        out.println(j.id + " " + j.status());
+                    break;
+                case "SHUTDOWN":
+                    shutdown();
+                    out.println("OK");
+                    break;
+                default:
+                    out.println("ERROR Unknown command " + command);
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR " + e.getMessage());
+        }
+        out.flush();
+    }
+
+    /**
+     * Queue a job unless the daemon is shutting down
+     *
+     * @return the queued job or null
+     */
+    private static synchronized Job submit(String[] args) {
+        if (!running)
+            return null;
+        Job job = new Job(nextId.getAndIncrement(), args);
+        jobs.put(job.id, job);
+        try {
+            jobQueue.submit(job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * Stop accepting jobs, the queued ones are still run
+     */
+    private static synchronized void shutdown() {
+        running = false;
+        jobQueue.shutdown();
+    }
+
+    private static Job getJob(String[] fields) {
+        if (fields.length < 2)
+            throw new IllegalArgumentException("Missing job id");
+        try {
+            Job job = jobs.get(Integer.parseInt(fields[1].trim()));
+            if (job != null)
+                return job;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Unknown job " + fields[1]);
+    }
+
+    /**
+     * A bcmeasure run with its own arguments, progress and results
+     */
+    private static class Job implements Runnable {
+
+        private final int id;
+        private final String[] args;
+        private final Progress progress = new Progress(0);
+        private volatile String state = "QUEUED";
+        private volatile List<String> outputs = new ArrayList<>();
+        private volatile String error;
+
+        Job(int id, String[] args) {
+            this.id = id;
+            this.args = args;
+            progress.setSilent(true);
+        }
+
+        @Override
+        public void run() {
+            state = "RUNNING";
+            try {
+                outputs = bcmeasure.run(args, progress, workers);
+                state = "DONE";
+            } catch (Exception e) {
+                e.printStackTrace();
+                error = e.getMessage();
+                state = "FAILED";
+            }
+        }
+
+        String status() {
+            return state + " " + progress.getStatus();
+        }
+
+        List<String> result() {
+            if (error != null)
+                return Arrays.asList(error);
+            return outputs;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *     Copyright (C) 2019  Vittorio Zampinetti
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+import ij.ImagePlus;
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import utils.*;
+import utils.ShardManifest.Shard;
+
+/**
+ * Sharded execution of a bcmeasure run over several processes, possibly on different machines sharing the storage.
+ * <pre>
+ *   bcshard plan [-o manifest] [-cells n] [bcmeasure OPTIONS]   split the seeds of the run in shards
+ *   bcshard work [-t n] [-stale minutes] manifest                claim and measure shards until none is left
+ *   bcshard status manifest                                      show how many shards are done
+ *   bcshard merge manifest                                       write the [RAD].marker files from the shards
+ * </pre>
+ * Any number of workers can be started on the same manifest, see ShardManifest for the files shared by them.
+ */
+public class bcshard {
+
+    private static final int DEFAULT_CELLS = 10000;  // seeds of a shard
+    private static final int DEFAULT_STALE = 30;  // minutes after which the lock of a silent worker is taken over
+    private static final long TOUCH_INTERVAL = 10000;  // ms between two updates of the lock of the current shard
+
+    //  image of the last shard, consecutive shards usually belong to the same image
+    private static String openPath;
+    private static ImagePlus openImage;
+    private static MarkerParser.SeedArray openSeeds;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        String command = args.length > 0 ? args[0] : "";
+        String[] commandArgs = Arrays.copyOfRange(args, Math.min(1, args.length), args.length);
+        Options options = new Options();
+        try {
+            switch (command) {
+                case "plan":
+                    options.addOption(Option.builder("o").hasArg().argName("path")
+                            .desc("Path of the manifest (default bcshard.manifest in the source dir)").build());
+                    options.addOption(Option.builder("cells").hasArg().argName("int")
+                            .desc("Maximum number of seeds of a shard (default " + DEFAULT_CELLS + ")").build());
+                    plan(new DefaultParser().parse(options, commandArgs, true));
+                    break;
+                case "work":
+                    options.addOption(Option.builder("t").longOpt("threads").hasArg().argName("int")
+                            .desc("Number of cells processed in parallel by this worker").build());
+                    options.addOption(Option.builder("stale").hasArg().argName("minutes")
+                            .desc("Take over shards whose lock has not been updated for this time (default " +
+                                    DEFAULT_STALE + ", 0 to never take over)").build());
+                    work(new DefaultParser().parse(options, commandArgs));
+                    break;
+                case "status":
+                    status(new DefaultParser().parse(options, commandArgs));
+                    break;
+                case "merge":
+                    merge(new DefaultParser().parse(options, commandArgs));
+                    break;
+                default:
+                    throw new ParseException("Unknown command '" + command + "', possible values are: " +
+                            "plan, work, status, merge");
+            }
+        } catch (ParseException | NumberFormatException exp) {
+            System.err.println("Parsing failed.  Reason: " + exp.getMessage());
+            new HelpFormatter().printHelp("bcshard plan|work|status|merge [OPTIONS]", options);
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("bcshard failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void plan(CommandLine line) throws ParseException, IOException {
+        String[] measureArgs = line.getArgs();
+        //  workers may run in other directories
+        for (int i = 1; i < measureArgs.length; i++)
+            if (measureArgs[i - 1].equals("-sd") || measureArgs[i - 1].equals("--source-dir"))
+                measureArgs[i] = Paths.get(measureArgs[i]).toAbsolutePath().toString();
+        Params.parse(measureArgs);
+        if (Params.WATCH)
+            throw new ParseException("Watch mode cannot be split in shards");
+
+        int cells = line.hasOption("cells") ? Integer.parseInt(line.getOptionValue("cells")) : DEFAULT_CELLS;
+        if (cells < 1)
+            throw new ParseException("Number of cells of a shard must be positive");
+        Path path = Paths.get(line.getOptionValue("o", Paths.get(Params.SOURCE_DIR, "bcshard.manifest").toString()))
+                .toAbsolutePath();
+
+        ShardManifest manifest = ShardManifest.plan(path, Arrays.asList(measureArgs), bcmeasure.listPairs(), cells,
+                Params.DUPLICATE_DISTANCE, Params.SCALE_Z);
+        if (Files.isDirectory(manifest.getShardDir()))
+            try (Stream<Path> files = Files.list(manifest.getShardDir())) {
+                if (files.findAny().isPresent())
+                    throw new IOException("Shard directory " + manifest.getShardDir() + " is not empty, " +
+                            "remove it or choose another manifest path");
+            }
+        manifest.write();
+
+        Set<String> images = new HashSet<>();
+        int seeds = 0;
+        for (Shard shard : manifest.getShards()) {
+            images.add(shard.imgPath);
+            seeds += shard.size();
+        }
+        System.out.println("Planned " + manifest.getShards().size() + " shards (" + seeds + " seeds of " +
+                images.size() + " images) in " + path);
+    }
+
+    private static void work(CommandLine line) throws ParseException, IOException {
+        ShardManifest manifest = readManifest(line);
+        Params.parse(manifest.getArgs());
+        if (line.hasOption("t")) {
+            Params.THREADS = Integer.parseInt(line.getOptionValue("t"));
+            if (Params.THREADS < 1)
+                throw new ParseException("Number of threads must be positive");
+        }
+        long staleMs = 60000L * (line.hasOption("stale") ?
+                Integer.parseInt(line.getOptionValue("stale")) : DEFAULT_STALE);
+        String worker = ManagementFactory.getRuntimeMXBean().getName();
+
+        ExecutorService workers = Executors.newFixedThreadPool(Params.THREADS);
+        //  the lock is touched on its own thread, opening and sweeping an image may take longer than staleMs
+        ScheduledExecutorService toucher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bcshard-lock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Progress progress = new Progress(manifest.getShards().size());
+        bcmeasure.init(progress, workers);
+        System.out.println("Worker " + worker + " on " + manifest.getShards().size() + " shards");
+
+        int measured = 0;
+        Set<Integer> failed = new HashSet<>();
+        //  shards released by failed workers are found by the next pass, the worker stops when a whole pass
+        //  finds nothing to claim
+        boolean claimed = true;
+        while (claimed) {
+            claimed = false;
+            for (Shard shard : manifest.getShards()) {
+                if (failed.contains(shard.id) || !manifest.claim(shard, worker, staleMs))
+                    continue;
+                claimed = true;
+                progress.stepImg();
+                if (measureShard(manifest, shard, worker, toucher))
+                    measured++;
+                else
+                    failed.add(shard.id);
+            }
+        }
+        workers.shutdown();
+        toucher.shutdown();
+        bcmeasure.closeImage(openImage);
+
+        System.out.println("\n" + bcmeasure.memorySummary());
+        System.out.println("Worker " + worker + " done: " + measured + " shards measured" +
+                (failed.isEmpty() ? "" : ", failed shards " + failed));
+        if (!failed.isEmpty())
+            System.exit(1);
+    }
+
+    /**
+     * Measure a claimed shard and store its part, the lock is released in any case and touched by the toucher
+     * every TOUCH_INTERVAL until then
+     *
+     * @return true if the part has been written
+     */
+    private static boolean measureShard(ShardManifest manifest, Shard shard, String worker,
+                                        ScheduledExecutorService toucher) throws IOException {
+        Logger logger = Logger.getInstance(false);
+        logger.log("Shard " + shard.id + ": seeds " + shard.from + "-" + shard.to + " of " + shard.imgPath +
+                " on " + worker);
+        ScheduledFuture<?> touching = toucher.scheduleWithFixedDelay(() -> manifest.touch(shard), 0,
+                TOUCH_INTERVAL, TimeUnit.MILLISECONDS);
+        try {
+            if (!shard.imgPath.equals(openPath)) {
+                openPath = null;
+                bcmeasure.closeImage(openImage);
+                openImage = bcmeasure.openImage(shard.imgPath);
+                if (openImage == null)
+                    throw new IOException("Invalid img path: " + shard.imgPath);
+                openSeeds = Marker.readSeeds(shard.imgPath + ".marker",
+                        Params.INVERT_Y ? openImage.getHeight() : 0);
+                openPath = shard.imgPath;
+            }
+            if (shard.to > openSeeds.size())
+                throw new IOException("Marker of " + shard.imgPath + " has changed after the plan");
+
+            List<String> rows = new ArrayList<>();
+            List<String> lowContrast = new ArrayList<>();
+            SeedClusters clusters = bcmeasure.measureSeeds(shard.imgPath, openImage, openSeeds, shard.from, shard.to,
+                    cellStack -> {
+                        if (cellStack.isLowContrast()) {
+                            lowContrast.add(Marker.lowContrastRow(cellStack));
+                            return;
+                        }
+                        int[] center = cellStack.getAbsoluteCenter();
+                        int[] seed = cellStack.getSeed();
+                        rows.add(center[0] + "," + center[1] + "," + center[2] + "," + cellStack.getRadius() + "," +
+                                seed[0] + "," + seed[1] + "," + seed[2] + "," + (float) cellStack.getDensity() + "," +
+                                (float) cellStack.getThreshold());
+                    });
+            //  clusters of duplicates do not cross the shards (see ShardManifest.plan), flagged ones are merged in the
+            //  [DUP].marker
+            List<String> duplicates = clusters != null && Params.DUPLICATE_MODE.equals("flag") ?
+                    Marker.duplicateRows(openSeeds, clusters) : null;
+            manifest.writePart(shard, rows, duplicates, flagsLowContrast() ? lowContrast : null,
+                    bcmeasure.lastStats().countsRow(), worker);
+            logger.log(bcmeasure.lastStats().report("shard " + shard.id));
+            logger.log(bcmeasure.memoryReport());
+            return true;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.log("Shard " + shard.id + " failed: " + e.getMessage());
+            manifest.release(shard);
+            return false;
+        } finally {
+            touching.cancel(false);
+            logger.writeLog(manifest.getLogPath(shard).toString(), false);
+        }
+    }
+
+    private static void status(CommandLine line) throws ParseException, IOException {
+        ShardManifest manifest = readManifest(line);
+        int done = 0;
+        int running = 0;
+        for (Shard shard : manifest.getShards()) {
+            if (manifest.isDone(shard)) {
+                done++;
+            } else if (manifest.isClaimed(shard)) {
+                running++;
+                try {
+                    long age = System.currentTimeMillis() -
+                            Files.getLastModifiedTime(manifest.getLockPath(shard)).toMillis();
+                    System.out.println("Shard " + shard.id + " claimed by " +
+                            new String(Files.readAllBytes(manifest.getLockPath(shard)), StandardCharsets.UTF_8) +
+                            ", updated " + age / 1000 + " s ago");
+                } catch (IOException released) {
+                    //  finished in the meantime
+                }
+            }
+        }
+        int total = manifest.getShards().size();
+        System.out.println(done + "/" + total + " shards done, " + running + " running, " +
+                (total - done - running) + " waiting");
+    }
+
+    private static void merge(CommandLine line) throws ParseException, IOException {
+        ShardManifest manifest = readManifest(line);
+        Params.parse(manifest.getArgs());
+
+        List<Integer> missing = new ArrayList<>();
+        Map<String, List<Shard>> images = new LinkedHashMap<>();
+        for (Shard shard : manifest.getShards()) {
+            if (!manifest.isDone(shard))
+                missing.add(shard.id);
+            images.computeIfAbsent(shard.imgPath, k -> new ArrayList<>()).add(shard);
+        }
+        if (!missing.isEmpty()) {
+            System.err.println("Cannot merge, shards not measured yet: " + missing);
+            System.exit(1);
+        }
+
+        //  the time of the statistics is the sum of the times of the shards, not the wall time of the run
+        CellStatistics runStats = new CellStatistics(Params.SCALE_Z, Params.MAX_RADIUS);
+        for (Map.Entry<String, List<Shard>> image : images.entrySet()) {
+            String imgPath = image.getKey();
+            CellStatistics stats = new CellStatistics(Params.SCALE_Z, Params.MAX_RADIUS);
+            ArrayList<List<String>> rows = new ArrayList<>();
+            List<String> duplicates = new ArrayList<>();
+            List<String> lowContrast = new ArrayList<>();
+            BinaryMarker.Writer binWriter = null;
+            if (Params.BINARY_OUTPUT) {
+                Map<String, String> metadata = Params.describe();
+                metadata.put("image", Paths.get(imgPath).getFileName().toString());
+                metadata.put("created", Instant.now().toString());
+                binWriter = new BinaryMarker.Writer(imgPath + "[RAD]" + BinaryMarker.EXTENSION, metadata);
+            }
+            try {
+                for (Shard shard : image.getValue()) {
+                    duplicates.addAll(manifest.readDuplicates(shard));
+                    lowContrast.addAll(manifest.readLowContrast(shard));
+                    String counts = manifest.readCounts(shard);
+                    if (counts != null)
+                        stats.addCounts(counts);
+                    for (String[] v : manifest.readPart(shard)) {
+                        rows.add(Arrays.asList(v).subList(0, 7));
+                        stats.add(Integer.parseInt(v[0]), Integer.parseInt(v[1]), Integer.parseInt(v[2]),
+                                Integer.parseInt(v[3]), Integer.parseInt(v[4]), Integer.parseInt(v[5]),
+                                Integer.parseInt(v[6]), Double.parseDouble(v[7]));
+                        if (binWriter != null)
+                            binWriter.append(Integer.parseInt(v[0]), Integer.parseInt(v[1]), Integer.parseInt(v[2]),
+                                    Integer.parseInt(v[3]), Integer.parseInt(v[4]), Integer.parseInt(v[5]),
+                                    Integer.parseInt(v[6]), Float.parseFloat(v[7]), Float.parseFloat(v[8]));
+                    }
+                }
+            } finally {
+                if (binWriter != null)
+                    binWriter.close();
+            }
+            Marker.writeMarker(imgPath + "[RAD].marker", rows);
+            System.out.println("Written " + imgPath + "[RAD].marker (" + rows.size() + " cells)");
+            if (Params.DUPLICATE_DISTANCE > 0 && Params.DUPLICATE_MODE.equals("flag")) {
+                Marker.writeDuplicates(imgPath + "[DUP].marker", duplicates);
+                System.out.println("Written " + imgPath + "[DUP].marker (" + duplicates.size() + " duplicates)");
+            }
+            if (flagsLowContrast()) {
+                Marker.writeLowContrast(imgPath + "[LOW].marker", lowContrast);
+                System.out.println("Written " + imgPath + "[LOW].marker (" + lowContrast.size() + " low contrast)");
+            }
+            stats.write(imgPath + "[STATS].txt", Paths.get(imgPath).getFileName().toString());
+            runStats.merge(stats);
+            runStats.addTime(stats.getTime());
+        }
+        runStats.write(Params.SOURCE_DIR + "/stats.txt", Params.SOURCE_DIR);
+        System.out.println("Written " + Params.SOURCE_DIR + "/stats.txt");
+
+        //  logs of the shards in the order of the plan
+        Path log = Paths.get(Params.SOURCE_DIR, "log.txt");
+        Files.write(log, new byte[0]);
+        for (Shard shard : manifest.getShards())
+            if (Files.isRegularFile(manifest.getLogPath(shard)))
+                Files.write(log, Files.readAllBytes(manifest.getLogPath(shard)), StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return true if the seeds rejected by the contrast pre-test are listed in a [LOW].marker
+     */
+    private static boolean flagsLowContrast() {
+        return (Params.MIN_CONTRAST > 0 || Params.MIN_CORE_INTENSITY > 0) && Params.LOW_CONTRAST_MODE.equals("flag");
+    }
+
+    private static ShardManifest readManifest(CommandLine line) throws ParseException, IOException {
+        if (line.getArgs().length != 1)
+            throw new ParseException("Missing manifest path");
+        return ShardManifest.read(Paths.get(line.getArgs()[0]).toAbsolutePath());
+    }
+}
@@ -0,0 +1,223 @@
+package geom;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the centers of the measured cells, for range and nearest neighbour queries.
+ * Distances honor the z scale: z is converted to xy units (z / scaleZ) before comparing, so a sphere of radius d
+ * spans d * scaleZ slices. Everything is stored in primitive arrays: the ids of the cells are sorted by grid cell and
+ * every grid cell points to its slice of the ids (compressed rows). The index is read-only once built, so it can be
+ * queried by several threads at the same time
+ */
+public class CellIndex {
+
+    private static final int POINTS_PER_CELL = 4;  // target density of the automatic grid size
+
+    /**
+     * Receiver of the ids of the cells found by a query
+     */
+    public interface Visitor {
+        void visit(int id);
+    }
+
+    private final int n;
+    private final double scaleZ;
+    private final double[] xs, ys, zs;  // coordinates of every cell, z in xy units
+
+    private final double cellSize;
+    private final double minX, minY, minZ;
+    private final int nx, ny, nz;
+    private final int[] cellStart;  // grid cell g owns ids[cellStart[g]..cellStart[g+1])
+    private final int[] ids;
+
+    /**
+     * @param cells  coordinates x,y,z of every cell at the start of each group of stride values (e.g. the rows of
+     *               a [RAD].marker)
+     * @param stride values of every cell
+     * @param n      number of cells
+     * @param scaleZ scale of the z axis (resZ/resXY)
+     */
+    public CellIndex(int[] cells, int stride, int n, double scaleZ) {
+        this(cells, stride, n, scaleZ, 0);
+    }
+
+    /**
+     * @param cellSize side of the grid cells in xy units, 0 to choose it from the density of the cells
+     */
+    public CellIndex(int[] cells, int stride, int n, double scaleZ, double cellSize) {
+        this.n = n;
+        this.scaleZ = scaleZ;
+        xs = new double[n];
+        ys = new double[n];
+        zs = new double[n];
+        double maxX = 0, maxY = 0, maxZ = 0;
+        double x0 = 0, y0 = 0, z0 = 0;
+        for (int i = 0; i < n; i++) {
+            xs[i] = cells[i * stride];
+            ys[i] = cells[i * stride + 1];
+            zs[i] = cells[i * stride + 2] / scaleZ;
+            if (i == 0 || xs[i] < x0) x0 = xs[i];
+            if (i == 0 || ys[i] < y0) y0 = ys[i];
+            if (i == 0 || zs[i] < z0) z0 = zs[i];
+            if (i == 0 || xs[i] > maxX) maxX = xs[i];
+            if (i == 0 || ys[i] > maxY) maxY = ys[i];
+            if (i == 0 || zs[i] > maxZ) maxZ = zs[i];
+        }
+        minX = x0;
+        minY = y0;
+        minZ = z0;
+
+        if (cellSize <= 0) {
+            double volume = Math.max(maxX - minX, 1) * Math.max(maxY - minY, 1) * Math.max(maxZ - minZ, 1);
+            cellSize = Math.max(Math.cbrt(volume * POINTS_PER_CELL / Math.max(n, 1)), 1);
+        }
+        //  very flat or very sparse sets would need too many empty grid cells
+        while ((double) cells(maxX - minX, cellSize) * cells(maxY - minY, cellSize) * cells(maxZ - minZ, cellSize) >
+                4L * Math.max(n, 1) + 64)
+            cellSize *= 1.5;
+        this.cellSize = cellSize;
+        nx = cells(maxX - minX, cellSize);
+        ny = cells(maxY - minY, cellSize);
+        nz = cells(maxZ - minZ, cellSize);
+
+        //  counting sort of the ids by grid cell
+        int[] cellOf = new int[n];
+        cellStart = new int[nx * ny * nz + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = gridCell(clamp(gx(xs[i]), nx), clamp(gy(ys[i]), ny), clamp(gz(zs[i]), nz));
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int g = 0; g < nx * ny * nz; g++)
+            cellStart[g + 1] += cellStart[g];
+        ids = new int[n];
+        int[] next = Arrays.copyOf(cellStart, cellStart.length - 1);
+        for (int i = 0; i < n; i++)
+            ids[next[cellOf[i]]++] = i;
+    }
+
+    private static int cells(double extent, double size) {
+        return (int) (extent / size) + 1;
+    }
+
+    private int gx(double x) {
+        return (int) Math.floor((x - minX) / cellSize);
+    }
+
+    private int gy(double y) {
+        return (int) Math.floor((y - minY) / cellSize);
+    }
+
+    private int gz(double z) {
+        return (int) Math.floor((z - minZ) / cellSize);
+    }
+
+    private static int clamp(int g, int size) {
+        return Math.max(0, Math.min(g, size - 1));
+    }
+
+    private int gridCell(int x, int y, int z) {
+        return (z * ny + y) * nx + x;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * @return distance in xy units between the cell and the given point (z in slices)
+     */
+    public double distance(int id, double x, double y, double z) {
+        double dx = xs[id] - x;
+        double dy = ys[id] - y;
+        double dz = zs[id] - z / scaleZ;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Visit the cells whose center is inside the box (bounds included, z in slices), e.g. all the cells of a slab
+     */
+    public void range(double x0, double y0, double z0, double x1, double y1, double z1, Visitor visitor) {
+        if (n == 0)
+            return;
+        double sz0 = z0 / scaleZ;
+        double sz1 = z1 / scaleZ;
+        int gx1 = Math.min(gx(x1), nx - 1);
+        int gy1 = Math.min(gy(y1), ny - 1);
+        int gz1 = Math.min(gz(sz1), nz - 1);
+        for (int z = Math.max(gz(sz0), 0); z <= gz1; z++)
+            for (int y = Math.max(gy(y0), 0); y <= gy1; y++)
+                for (int x = Math.max(gx(x0), 0); x <= gx1; x++) {
+                    int g = gridCell(x, y, z);
+                    for (int k = cellStart[g]; k < cellStart[g + 1]; k++) {
+                        int id = ids[k];
+                        if (xs[id] >= x0 && xs[id] <= x1 && ys[id] >= y0 && ys[id] <= y1 &&
+                                zs[id] >= sz0 && zs[id] <= sz1)
+                            visitor.visit(id);
+                    }
+                }
+    }
+
+    /**
+     * Visit the cells whose center is at most d (xy units) from the given point (z in slices)
+     */
+    public void within(double x, double y, double z, double d, Visitor visitor) {
+        double dz = d * scaleZ;
+        range(x - d, y - d, z - dz, x + d, y + d, z + dz, id -> {
+            if (distance(id, x, y, z) <= d)
+                visitor.visit(id);
+        });
+    }
+
+    /**
+     * Find the k cells nearest to the given point (z in slices), searching the grid in rings of growing size
+     *
+     * @param exclude   id to be ignored (e.g. the cell the query starts from), -1 for none
+     * @param nearest   destination of the ids, sorted by distance, length k at least
+     * @param distances destination of the distances, length k at least
+     * @return number of cells found, less than k only if the index has fewer cells
+     */
+    public int nearest(double x, double y, double z, int k, int exclude, int[] nearest, double[] distances) {
+        int found = 0;
+        if (n == 0 || k <= 0)
+            return 0;
+        double sz = z / scaleZ;
+        int cx = gx(x);
+        int cy = gy(y);
+        int cz = gz(sz);
+        //  ring beyond which the whole grid has been visited
+        int maxRing = Math.max(Math.max(Math.max(cx, nx - 1 - cx), Math.max(cy, ny - 1 - cy)),
+                Math.max(cz, nz - 1 - cz));
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int gz = Math.max(cz - ring, 0); gz <= Math.min(cz + ring, nz - 1); gz++)
+                for (int gy = Math.max(cy - ring, 0); gy <= Math.min(cy + ring, ny - 1); gy++)
+                    for (int gx = Math.max(cx - ring, 0); gx <= Math.min(cx + ring, nx - 1); gx++) {
+                        //  only the surface of the ring, the inside has been visited already
+                        if (Math.abs(gx - cx) < ring && Math.abs(gy - cy) < ring && Math.abs(gz - cz) < ring)
+                            continue;
+                        int g = gridCell(gx, gy, gz);
+                        for (int j = cellStart[g]; j < cellStart[g + 1]; j++) {
+                            int id = ids[j];
+                            if (id == exclude)
+                                continue;
+                            double d = distance(id, x, y, z);
+                            if (found == k && d >= distances[k - 1])
+                                continue;
+                            //  insertion in the sorted arrays, the farthest one drops out when full
+                            int pos = found < k ? found++ : k - 1;
+                            while (pos > 0 && distances[pos - 1] > d) {
+                                distances[pos] = distances[pos - 1];
+                                nearest[pos] = nearest[pos - 1];
+                                pos--;
+                            }
+                            distances[pos] = d;
+                            nearest[pos] = id;
+                        }
+                    }
+            //  cells of the next rings are at least ring * cellSize away from the query point
+            if (found == k && distances[k - 1] <= ring * cellSize)
+                break;
+        }
+        return found;
+    }
+}
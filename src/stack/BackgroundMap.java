@@ -0,0 +1,164 @@
+package stack;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Smooth background and foreground statistics of a whole volume, computed once on a coarse grid: every node summarizes
+ * a block of spacing x spacing x (spacing * scaleZ) voxels with robust statistics (median as background, 90th
+ * percentile as foreground) of the voxels sampled every SAMPLE_STRIDE on x and y. Every voxel of the volume is read
+ * once, layers of blocks are computed in parallel. Values at any position are interpolated trilinearly between the
+ * centers of the blocks, so a cell gets its background without scanning its own background cap
+ */
+public class BackgroundMap {
+
+    private static final int SAMPLE_STRIDE = 2;
+    private static final double FOREGROUND_QUANTILE = .9;
+
+    private final int spacing;
+    private final int spacingZ;
+    private final int nx, ny, nz;
+    private final float[] background;
+    private final float[] foreground;
+    private final long time;  // ms spent computing the map
+
+    /**
+     * @param imp     whole volume (a virtual stack is read one slice at a time)
+     * @param spacing side of the blocks on x and y
+     * @param scaleZ  scale of the z axis (resZ/resXY), the blocks are spacing * scaleZ slices deep
+     * @param workers pool on which the layers of blocks are computed
+     */
+    public BackgroundMap(ImagePlus imp, int spacing, double scaleZ, ExecutorService workers)
+            throws InterruptedException, ExecutionException {
+        long start = System.currentTimeMillis();
+        this.spacing = spacing;
+        this.spacingZ = Math.max(1, (int) Math.round(spacing * scaleZ));
+        ImageStack stack = imp.getStack();
+        nx = (stack.getWidth() + spacing - 1) / spacing;
+        ny = (stack.getHeight() + spacing - 1) / spacing;
+        nz = (stack.getSize() + spacingZ - 1) / spacingZ;
+        background = new float[nx * ny * nz];
+        foreground = new float[nx * ny * nz];
+
+        List<Callable<Void>> layers = new ArrayList<>();
+        for (int gz = 0; gz < nz; gz++) {
+            int layer = gz;
+            layers.add(() -> {
+                computeLayer(stack, layer);
+                return null;
+            });
+        }
+        for (Future<Void> result : workers.invokeAll(layers))
+            result.get();
+        time = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Compute the nodes of a layer of blocks, reading each of its slices once
+     */
+    private void computeLayer(ImageStack stack, int gz) {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int z0 = gz * spacingZ;
+        int z1 = Math.min(z0 + spacingZ, stack.getSize());
+        Object[] slices = new Object[z1 - z0];
+        for (int z = z0; z < z1; z++)
+            slices[z - z0] = stack.getPixels(z + 1);
+
+        int[] samples = new int[((spacing + SAMPLE_STRIDE - 1) / SAMPLE_STRIDE) *
+                ((spacing + SAMPLE_STRIDE - 1) / SAMPLE_STRIDE) * slices.length];
+        for (int gy = 0; gy < ny; gy++) {
+            for (int gx = 0; gx < nx; gx++) {
+                int n = 0;
+                for (Object pixels : slices) {
+                    for (int y = gy * spacing; y < Math.min((gy + 1) * spacing, height); y += SAMPLE_STRIDE) {
+                        for (int x = gx * spacing; x < Math.min((gx + 1) * spacing, width); x += SAMPLE_STRIDE)
+                            samples[n++] = getValue(pixels, y * width + x);
+                    }
+                }
+                Arrays.sort(samples, 0, n);
+                int node = (gz * ny + gy) * nx + gx;
+                background[node] = samples[n / 2];
+                foreground[node] = samples[Math.min((int) (n * FOREGROUND_QUANTILE), n - 1)];
+            }
+        }
+    }
+
+    /**
+     * @return pixel value converted as CellStack does
+     */
+    static int getValue(Object pixels, int index) {
+        if (pixels instanceof byte[])
+            return ((byte[]) pixels)[index] & 0xff;
+        else if (pixels instanceof short[])
+            return ((short[]) pixels)[index] & 0xffff;
+        else if (pixels instanceof float[])
+            return (int) ((float[]) pixels)[index];
+        throw new IllegalArgumentException("Unsupported image type, RGB images cannot be processed");
+    }
+
+    /**
+     * @return background at the given position of the volume
+     */
+    public double getBackground(int[] position) {
+        return interpolate(background, position);
+    }
+
+    /**
+     * @return foreground at the given position of the volume
+     */
+    public double getForeground(int[] position) {
+        return interpolate(foreground, position);
+    }
+
+    /**
+     * Trilinear interpolation between the centers of the blocks, constant beyond the outer centers
+     */
+    private double interpolate(float[] values, int[] position) {
+        double fx = clamp((position[0] + .5) / spacing - .5, nx);
+        double fy = clamp((position[1] + .5) / spacing - .5, ny);
+        double fz = clamp((position[2] + .5) / spacingZ - .5, nz);
+        int x0 = Math.min((int) fx, nx - 1), y0 = Math.min((int) fy, ny - 1), z0 = Math.min((int) fz, nz - 1);
+        int x1 = Math.min(x0 + 1, nx - 1), y1 = Math.min(y0 + 1, ny - 1), z1 = Math.min(z0 + 1, nz - 1);
+        double tx = fx - x0, ty = fy - y0, tz = fz - z0;
+
+        double v00 = lerp(values[(z0 * ny + y0) * nx + x0], values[(z0 * ny + y0) * nx + x1], tx);
+        double v01 = lerp(values[(z0 * ny + y1) * nx + x0], values[(z0 * ny + y1) * nx + x1], tx);
+        double v10 = lerp(values[(z1 * ny + y0) * nx + x0], values[(z1 * ny + y0) * nx + x1], tx);
+        double v11 = lerp(values[(z1 * ny + y1) * nx + x0], values[(z1 * ny + y1) * nx + x1], tx);
+        return lerp(lerp(v00, v01, ty), lerp(v10, v11, ty), tz);
+    }
+
+    private static double clamp(double f, int size) {
+        return Math.max(0, Math.min(f, size - 1));
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+    /**
+     * @return summary of the map, for the log
+     */
+    public String report() {
+        float minBack = Float.MAX_VALUE, maxBack = -Float.MAX_VALUE;
+        float minFore = Float.MAX_VALUE, maxFore = -Float.MAX_VALUE;
+        for (int i = 0; i < background.length; i++) {
+            minBack = Math.min(minBack, background[i]);
+            maxBack = Math.max(maxBack, background[i]);
+            minFore = Math.min(minFore, foreground[i]);
+            maxFore = Math.max(maxFore, foreground[i]);
+        }
+        return "Background map: " + nx + "x" + ny + "x" + nz + " blocks of " + spacing + "x" + spacing + "x" +
+                spacingZ + " voxels, background " + minBack + "-" + maxBack + ", foreground " + minFore + "-" +
+                maxFore + ", computed in " + time + " ms";
+    }
+}
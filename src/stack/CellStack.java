@@ -3,21 +3,31 @@ package stack;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
-import mcib3d.geom.Voxel3D;
-import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.processing.MaximaFinder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
 
 import java.awt.*;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import geom.Box3D;
-import algorithm.Neighborhood;
+import algorithm.LocalMaxima;
+import algorithm.ShellProfile;
 import utils.CellPreview;
 
 
-public class CellStack extends ImagePlus {
+/**
+ * Lightweight 3D crop of the original image around a cell. Voxels are kept in a single primitive array,
+ * ImageJ objects are created only on demand (debug display)
+ */
+public class CellStack {
 
     private int dim;
     private int[] seed; // seed is relative to the original image
@@ -26,9 +36,20 @@ public class CellStack extends ImagePlus {
 
     private int radius = 35; //  default value, maximum radius in 70x70x70 box
     private double density;
+    private double threshold;
+    private double[] contrast;  // core mean, annulus mean and contrast of a seed rejected by the pre-test, else null
 
     //  cube position in original image
     private Box3D box;
+    private int imageWidth, imageHeight, imageDepth;
+
+    //  voxel intensities, index is x + y * width + z * width * height
+    private int[] voxels;
+    private VoxelPool pool;  // buffers the voxels were cropped into, null if allocated
+    private int width, height, depth;
+    private int bitDepth;
+    private String imageTitle;
+    private IndexColorModel colorModel;  // used only for display, scaled on the crop range when a slice is rendered
 
     /**
      * Constructor which extract the 3D box containing the cell pointed by seed coords in the given image
@@ -39,21 +60,50 @@ public class CellStack extends ImagePlus {
      * @param scaleZ scale for z axis (1 is isotropic, less otherwise)
      */
     public CellStack(ImagePlus imp, int[] seed, int dim, double scaleZ) {
-        super();
         this.dim = dim;
         this.seed = seed;
         this.scaleZ = scaleZ;
 
         int[] dimensions = imp.getDimensions();
         this.box = new Box3D(seed, dim, scaleZ, dimensions[0], dimensions[1], dimensions[3]);
+        this.imageWidth = dimensions[0];
+        this.imageHeight = dimensions[1];
+        this.imageDepth = dimensions[3];
+
+        this.cellCenter = getRelativeCenter(seed, this.box);
+
+        this.imageTitle = imp.getTitle();
+        this.bitDepth = imp.getBitDepth();
+        crop(imp.getImageStack(), null);
+    }
+
+    /**
+     * Constructor which copies the voxels in the buffer of the given pool instead of allocating a new array.
+     * The voxels are valid until the next pooled CellStack is created with the same pool
+     *
+     * @param imp    original image containing the cell
+     * @param seed   approx. cell position
+     * @param dim    dimension of the containing cube
+     * @param scaleZ scale for z axis (1 is isotropic, less otherwise)
+     * @param pool   buffers of the current thread
+     */
+    public CellStack(ImagePlus imp, int[] seed, int dim, double scaleZ, VoxelPool pool) {
+        this.dim = dim;
+        this.seed = seed;
+        this.scaleZ = scaleZ;
+
+        int[] dimensions = imp.getDimensions();
+        this.box = new Box3D(seed, dim, scaleZ, dimensions[0], dimensions[1], dimensions[3]);
+        this.imageWidth = dimensions[0];
+        this.imageHeight = dimensions[1];
+        this.imageDepth = dimensions[3];
 
         this.cellCenter = getRelativeCenter(seed, this.box);
 
-        String title = Arrays.toString(this.seed) + " in " + imp.getTitle();
-        this.setTitle(title);
-        ImageStack stack = imp.getImageStack().crop(this.box.getX0(), this.box.getY0(), this.box.getZ0(),
-                this.box.getWidth(), this.box.getHeight(), this.box.getDepth());
-        this.setStack(stack);
+        this.imageTitle = imp.getTitle();
+        this.bitDepth = imp.getBitDepth();
+        this.pool = pool;
+        crop(imp.getImageStack(), pool.getVoxels());
     }
 
     /**
@@ -63,6 +113,150 @@ public class CellStack extends ImagePlus {
         this(imp, seed, dim, 1.0);
     }
 
+    /**
+     * Constructor for a downsampled copy of the given stack: every voxel is the mean of a block of
+     * factorXY x factorXY x factorZ voxels (blocks on the upper edges may be smaller)
+     *
+     * @param source   full resolution stack
+     * @param factorXY downsampling factor on x and y
+     * @param factorZ  downsampling factor on z
+     * @param buffer   destination array, a new one is allocated if null
+     */
+    private CellStack(CellStack source, int factorXY, int factorZ, int[] buffer) {
+        this.dim = source.dim / factorXY;
+        this.seed = source.seed;
+        this.scaleZ = source.scaleZ * factorXY / factorZ;
+        this.imageTitle = source.imageTitle;
+        this.bitDepth = source.bitDepth;
+        this.pool = source.pool;
+
+        this.width = (source.width + factorXY - 1) / factorXY;
+        this.height = (source.height + factorXY - 1) / factorXY;
+        this.depth = (source.depth + factorZ - 1) / factorZ;
+        this.box = new Box3D(source.box.getX0() / factorXY, source.box.getY0() / factorXY,
+                source.box.getZ0() / factorZ, width, height, depth);
+        this.cellCenter = new int[]{source.cellCenter[0] / factorXY, source.cellCenter[1] / factorXY,
+                source.cellCenter[2] / factorZ};
+
+        int size = width * height * depth;
+        voxels = buffer != null && buffer.length >= size ? buffer : new int[size];
+        int i = 0;
+        for (int z = 0; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    long sum = 0;
+                    int count = 0;
+                    for (int k = z * factorZ; k < Math.min((z + 1) * factorZ, source.depth); k++) {
+                        for (int j = y * factorXY; j < Math.min((y + 1) * factorXY, source.height); j++) {
+                            for (int h = x * factorXY; h < Math.min((x + 1) * factorXY, source.width); h++) {
+                                sum += source.getVoxel(h, j, k);
+                                count++;
+                            }
+                        }
+                    }
+                    voxels[i] = (int) (sum / count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a downsampled copy of this stack, the z factor is chosen to keep the voxels as isotropic as possible.
+     * Coordinates and radii measured on the copy must be multiplied by the factor to be used on this stack
+     *
+     * @param factor downsampling factor on x and y
+     * @param buffer destination array (e.g. from the VoxelPool), a new one is allocated if null or too small
+     * @return downsampled CellStack
+     */
+    public CellStack downsample(int factor, int[] buffer) {
+        int factorZ = Math.max(1, (int) Math.round(factor * scaleZ));
+        return new CellStack(this, factor, factorZ, buffer);
+    }
+
+    /**
+     * Create a copy of the measures of this cell (center, radius, density, threshold) attributed to another seed,
+     * used for the duplicate seeds of a measured cell. Voxels are not copied
+     *
+     * @param otherSeed seed the copy is attributed to
+     * @return measured copy without voxels
+     */
+    public CellStack forSeed(int[] otherSeed) {
+        CellStack copy = new CellStack();
+        copy.dim = dim;
+        copy.seed = otherSeed;
+        copy.cellCenter = cellCenter.clone();
+        copy.scaleZ = scaleZ;
+        copy.radius = radius;
+        copy.density = density;
+        copy.threshold = threshold;
+        copy.contrast = contrast;
+        copy.box = box;
+        copy.imageWidth = imageWidth;
+        copy.imageHeight = imageHeight;
+        copy.imageDepth = imageDepth;
+        copy.width = width;
+        copy.height = height;
+        copy.depth = depth;
+        copy.bitDepth = bitDepth;
+        copy.imageTitle = imageTitle;
+        return copy;
+    }
+
+    private CellStack() {
+    }
+
+    /**
+     * Copy the voxels inside the box reading directly the pixel arrays of the source slices
+     *
+     * @param stack  source stack
+     * @param buffer destination array, a new one is allocated if null
+     */
+    private void crop(ImageStack stack, int[] buffer) {
+        width = box.getWidth();
+        height = box.getHeight();
+        depth = box.getDepth();
+        if (buffer == null)
+            voxels = new int[width * height * depth];
+        else if (buffer.length >= width * height * depth)
+            voxels = buffer;
+        else
+            throw new IllegalArgumentException("Voxel pool too small for box of " + width + "x" + height + "x" + depth);
+
+        //  a chunked volume reads only the chunks intersecting the box
+        if (stack instanceof ChunkedVolume.Stack) {
+            try {
+                ((ChunkedVolume.Stack) stack).getVolume().crop(0, box, voxels);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot crop " + Arrays.toString(seed) + " from chunked volume", e);
+            }
+            return;
+        }
+
+        int srcWidth = stack.getWidth();
+        int i = 0;
+        for (int z = 0; z < depth; z++) {
+            Object pixels = stack.getPixels(box.getZ0() + z + 1);
+            for (int y = 0; y < height; y++) {
+                int offset = (box.getY0() + y) * srcWidth + box.getX0();
+                if (pixels instanceof byte[]) {
+                    byte[] p = (byte[]) pixels;
+                    for (int x = 0; x < width; x++)
+                        voxels[i++] = p[offset + x] & 0xff;
+                } else if (pixels instanceof short[]) {
+                    short[] p = (short[]) pixels;
+                    for (int x = 0; x < width; x++)
+                        voxels[i++] = p[offset + x] & 0xffff;
+                } else if (pixels instanceof float[]) {
+                    float[] p = (float[]) pixels;
+                    for (int x = 0; x < width; x++)
+                        voxels[i++] = (int) p[offset + x];
+                } else {
+                    throw new IllegalArgumentException("Unsupported image type, RGB images cannot be processed");
+                }
+            }
+        }
+    }
+
     /**
      * Calculate the relative coordinate inside the cell stack given absolute coords and box position
      * (Simple 3D frame of reference change)
@@ -99,18 +293,15 @@ public class CellStack extends ImagePlus {
      */
     public int getVoxel(int[] pos) throws Exception {
         if (this.contains(pos)) {
-            this.setPosition(pos[2] + 1);
-            return this.getPixel(pos[0], pos[1])[0];
+            return getVoxel(pos[0], pos[1], pos[2]);
         } else throw new Exception("Position " + Arrays.toString(pos) + " is outside cell stack");
     }
 
     /**
-     * Set pixel depth value according to default value scaleZ
-     * NOTE: to be clear, pixelDepth >= 1, scaleZ <= 1 (the latter is the proportion resZ/resXY -res := resolution-)
+     * Unchecked access to the voxel intensity, coordinates must be inside the stack
      */
-    public void setCalibration() {
-        Calibration cal = this.getCalibration();
-        cal.pixelDepth = 1 / this.getScaleZ();
+    public int getVoxel(int x, int y, int z) {
+        return voxels[x + y * width + z * width * height];
     }
 
     /**
@@ -121,14 +312,8 @@ public class CellStack extends ImagePlus {
      * @return values of (half) the gaussian in list of length maxRad+1
      */
     public double[] computeRadialDistribution3D(int maxRad) {
-        double[] tab = new double[maxRad + 1];
-
-        for (int r = 0; r < maxRad + 1; r++) {
-            double mean = Neighborhood.getMean(this, r, r + 1);
-            tab[r] = mean;
-        }
-
-        return tab;
+        //  all the unit shells from a single sweep
+        return new ShellProfile(this, maxRad + 1).getRadialDistribution(maxRad);
     }
 
     /**
@@ -139,13 +324,51 @@ public class CellStack extends ImagePlus {
      * @return radius of the cell
      */
     public int computeCellRadius(double thresh, int maxRad) {
+        radius = findRadius(computeRadialDistribution3D(maxRad), thresh);
+        return radius;
+    }
+
+    /**
+     * Fused getLocalMean(r0, r1, r2, weight) followed by computeCellRadius(localMean, maxRad): the local mean and the
+     * radial distribution are derived from the shells of a single sweep around the cell center.
+     * The radius is set as computeCellRadius does
+     *
+     * @return local mean, used as threshold of the radius
+     */
+    public double computeLocalMeanAndRadius(int r0, int r1, int r2, double weight, int maxRad) {
+        return computeLocalMeanAndRadius(new ShellProfile(this, Math.max(Math.max(r0, r2), maxRad + 1)), r0, r1, r2,
+                weight, maxRad);
+    }
+
+    /**
+     * Same as computeLocalMeanAndRadius(r0, r1, r2, weight, maxRad) on shells already collected around the cell
+     * center (e.g. looked up in ShellMaps), which must reach max(r0, r2, maxRad + 1)
+     *
+     * @return local mean, used as threshold of the radius
+     */
+    public double computeLocalMeanAndRadius(ShellProfile profile, int r0, int r1, int r2, double weight, int maxRad) {
+        double localMean = profile.getLocalMean(r0, r1, r2, weight);
+        radius = findRadius(profile.getRadialDistribution(maxRad), localMean);
+        return localMean;
+    }
+
+    /**
+     * Same as computeLocalMeanAndRadius(r0, r1, r2, weight, maxRad) with the background mean given (e.g. from a
+     * BackgroundMap) instead of measured on the r1..r2 cap, so the sweep only reaches the largest radius
+     *
+     * @return local mean, used as threshold of the radius
+     */
+    public double computeLocalMeanAndRadius(int r0, double background, double weight, int maxRad) {
+        ShellProfile profile = new ShellProfile(this, Math.max(r0, maxRad + 1));
+        double localMean = profile.getMean(0, r0) * weight + (1 - weight) * background;
+        radius = findRadius(profile.getRadialDistribution(maxRad), localMean);
+        return localMean;
+    }
+
+    private static int findRadius(double[] rad3D, double thresh) {
         int r = 0;
-        double[] rad3D = computeRadialDistribution3D(maxRad);
         while (rad3D[r] >= thresh && r < rad3D.length - 1)
             r++;
-
-        radius = r;
-
         return r;
     }
 
@@ -157,27 +380,35 @@ public class CellStack extends ImagePlus {
      */
     public int[] getLocalMaxPos() throws Exception {
 
-        int[] maxPos = cellCenter;
-        int maxValue = getVoxel(maxPos);
+        int maxX = cellCenter[0], maxY = cellCenter[1], maxZ = cellCenter[2];
+        int maxValue = getVoxel(cellCenter);
 
         boolean newMaxFound = true;
 
         while (newMaxFound) {
             newMaxFound = false;
-            for (int[] pos : Neighborhood.getNeighborhood3x3x3(maxPos)) {
-                try {
-                    int v = getVoxel(pos);
-
-                    if (v > maxValue) {
-                        maxPos = pos;
-                        maxValue = v;
-                        newMaxFound = true;
+            //  26 neighbors of the previous max, z outermost and x innermost
+            int x = maxX, y = maxY, z = maxZ;
+            for (int k = z - 1; k <= z + 1; k++) {
+                for (int j = y - 1; j <= y + 1; j++) {
+                    for (int i = x - 1; i <= x + 1; i++) {
+                        if ((i == x && j == y && k == z) || i < 0 || j < 0 || k < 0 ||
+                                i >= width || j >= height || k >= depth)
+                            continue;
+                        int v = getVoxel(i, j, k);
+
+                        if (v > maxValue) {
+                            maxX = i;
+                            maxY = j;
+                            maxZ = k;
+                            maxValue = v;
+                            newMaxFound = true;
+                        }
                     }
-                } catch (Exception ignored) {
                 }
             }
         }
-        return maxPos;
+        return new int[]{maxX, maxY, maxZ};
     }
 
     /**
@@ -191,10 +422,8 @@ public class CellStack extends ImagePlus {
      * @return weighted mean which represents the threshold
      */
     public double getLocalMean(int r0, int r1, int r2, double weight) {
-        double mSpot = Neighborhood.getMean(this, 0, r0);
-        double mBack = Neighborhood.getMean(this, r1, r2);
-
-        return mSpot * weight + (1 - weight) * mBack;
+        //  spot and background from the shells of a single sweep
+        return new ShellProfile(this, Math.max(r0, r2)).getLocalMean(r0, r1, r2, weight);
     }
 
     /**
@@ -205,46 +434,18 @@ public class CellStack extends ImagePlus {
      * @return list of maxima 3D coordinates
      */
     public ArrayList<int[]> findMaxima(int radius, float thresh) {
-        ImageHandler imh = ImageHandler.wrap(this.duplicate());
         int radZ = (int) (radius * getScaleZ());
 
-//        in MaximaFinder thresh is the noise tolerance value
-        MaximaFinder mf = new MaximaFinder(imh, radius, radZ, thresh);
-        mf.setVerbose(false);
-        ArrayList<Voxel3D> peaksVox = mf.getListPeaks();
-
+//        as in MaximaFinder thresh is the noise tolerance value
         ArrayList<int[]> peaks = new ArrayList<>();
-        for (Voxel3D peak : peaksVox) {
-            if (peak.getValue() >= thresh) {
-                double[] doubles = peak.getPosition().getArray();
-                int[] ints = new int[3];
-                for (int i = 0; i < 3; i++) {
-                    ints[i] = (int) doubles[i];
-                }
-                peaks.add(ints);
-            }
+        for (int[] peak : LocalMaxima.find(this, radius, radZ, thresh)) {
+            if (getVoxel(peak[0], peak[1], peak[2]) >= thresh)
+                peaks.add(peak);
         }
         peaks.add(cellCenter);
         return peaks;
     }
 
-    /**
-     * Generate all the CellStacks in the given image at the given coordinates
-     *
-     * @param imp    source image
-     * @param seeds  list of seeds
-     * @param dim    dimension of the resulting CellStack
-     * @param scaleZ scale for z axis (1 is isotropic, less otherwise)
-     * @return list of CellStacks
-     */
-    public static ArrayList<CellStack> getCellStacksFromSeeds(ImagePlus imp, ArrayList<int[]> seeds, int dim, double scaleZ) {
-        ArrayList<CellStack> cellStacks = new ArrayList<>();
-        for (int[] seed : seeds) {
-            cellStacks.add(new CellStack(imp, seed, dim, scaleZ));
-        }
-        return cellStacks;
-    }
-
     /**
      * Compute the density (in intensity) of the cell in the found radius sphere
      * Values below threshold are not considered belonging to the cell, thus not counted
@@ -254,14 +455,30 @@ public class CellStack extends ImagePlus {
      */
     public double computeDensity(double thresh) {
         //  formula of spheroid volume
-        ImageHandler imh = ImageHandler.wrap(this);
-
         double volume = 4 / 3. * Math.PI * Math.pow(radius, 3) * scaleZ;
+        threshold = thresh;
+
+        //  ellipsoid with semi-axes radius, radius, radius * scaleZ (same as ImageHandler.getNeighborhoodSphere)
+        float radZ = (float) (radius * scaleZ);
+        double rxy2 = radius != 0 ? (float) radius * radius : 1;
+        double rz2 = radZ != 0 ? radZ * radZ : 1;
+        int vz = (int) Math.ceil(radZ);
+        int x = cellCenter[0];
+        int y = cellCenter[1];
+        int z = cellCenter[2];
+
         int total = 0;
-        int[] values = imh.getNeighborhoodSphere(cellCenter[0], cellCenter[1], cellCenter[2], radius, radius, (float) (radius * scaleZ)).getArrayInt();
-        for (int i = 0; i < values.length; i++) {
-            if (values[i] >= thresh)
-                total += values[i];
+        for (int k = Math.max(z - vz, 0); k <= Math.min(z + vz, depth - 1); k++) {
+            for (int j = Math.max(y - radius, 0); j <= Math.min(y + radius, height - 1); j++) {
+                for (int i = Math.max(x - radius, 0); i <= Math.min(x + radius, width - 1); i++) {
+                    double dist = (x - i) * (x - i) / rxy2 + (y - j) * (y - j) / rxy2 + (z - k) * (z - k) / rz2;
+                    if (dist <= 1) {
+                        int v = getVoxel(i, j, k);
+                        if (v >= thresh)
+                            total += v;
+                    }
+                }
+            }
         }
 
         density = total / volume;
@@ -274,6 +491,71 @@ public class CellStack extends ImagePlus {
      * @return False if the two opposite vertices of the cube circumscribed to the sphere containing the cell
      */
     public boolean isOnBorder() {
+        return isOnBorder(cellCenter, radius);
+    }
+
+    /**
+     * Same as isOnBorder() of a stack cropped with the given dimension around the seed, without cropping it.
+     * Used when the actual crop is smaller, so that the same cells are skipped
+     */
+    public static boolean isOnBorder(ImagePlus imp, int[] seed, int dim, double scaleZ) {
+        int[] dimensions = imp.getDimensions();
+        CellStack geometry = new CellStack();
+        geometry.scaleZ = scaleZ;
+        geometry.box = new Box3D(seed, dim, scaleZ, dimensions[0], dimensions[1], dimensions[3]);
+        return geometry.isOnBorder(geometry.getRelativeCenter(seed, geometry.box), geometry.radius);
+    }
+
+    /**
+     * Check if the sphere of the given radius around the given position crosses a face of the crop which is not a
+     * face of the image too, i.e. if a larger crop would contain more of it
+     *
+     * @param center position relative to the stack
+     * @param r      radius in xy voxels, scaled on z
+     */
+    public boolean reachesCrop(int[] center, int r) {
+        int rz = (int) Math.ceil(r * scaleZ);
+        return (center[0] - r < 0 && box.getX0() > 0) ||
+                (center[0] + r >= width && box.getX0() + width < imageWidth) ||
+                (center[1] - r < 0 && box.getY0() > 0) ||
+                (center[1] + r >= height && box.getY0() + height < imageHeight) ||
+                (center[2] - rz < 0 && box.getZ0() > 0) ||
+                (center[2] + rz >= depth && box.getZ0() + depth < imageDepth);
+    }
+
+    /**
+     * Cheap estimate of the radius before the measure, from six rays along the axes: on every ray the distance at
+     * which the intensity first falls half way between the center and the end of the ray
+     *
+     * @return the largest distance in xy voxels (z scaled), -1 if the intensity does not fall on a ray ending on a face
+     * of the crop which is not a face of the image
+     */
+    public int estimateRadius() {
+        int[] c = cellCenter;
+        if (!contains(c))
+            return -1;
+        int center = getVoxel(c[0], c[1], c[2]);
+        int[][] rays = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+        double estimate = 0;
+        for (int[] d : rays) {
+            int n = 0;  // steps to the face of the crop
+            while (contains(new int[]{c[0] + (n + 1) * d[0], c[1] + (n + 1) * d[1], c[2] + (n + 1) * d[2]}))
+                n++;
+            double half = (center + getVoxel(c[0] + n * d[0], c[1] + n * d[1], c[2] + n * d[2])) / 2.;
+            int step = 1;
+            while (step <= n && getVoxel(c[0] + step * d[0], c[1] + step * d[1], c[2] + step * d[2]) > half)
+                step++;
+            if (step > n) {
+                if (reachesCrop(c, d[2] != 0 ? (int) Math.ceil((n + 1) / scaleZ) : n + 1))
+                    return -1;
+                continue;
+            }
+            estimate = Math.max(estimate, d[2] != 0 ? step / scaleZ : step);
+        }
+        return (int) Math.ceil(estimate);
+    }
+
+    private boolean isOnBorder(int[] cellCenter, int radius) {
         int[] vertex1 = new int[]{cellCenter[0] - radius / 2, cellCenter[1] - radius / 2, cellCenter[2] - (int) (radius * scaleZ / 2)};
         int[] vertex2 = new int[]{cellCenter[0] + radius / 2, cellCenter[1] + radius / 2, cellCenter[2] + (int) (radius * scaleZ / 2)};
         boolean expr1 = contains(vertex1);
@@ -304,13 +586,93 @@ public class CellStack extends ImagePlus {
      */
     public CellPreview savePreview() {
         CellPreview cellPreview = new CellPreview(this.getTitle(),
-                this.getImageStack().getProcessor(this.cellCenter[2] + 1),
+                getSliceProcessor(this.cellCenter[2]),
                 this.density);
         cellPreview.getProcessor().setColor(Color.GREEN);
         cellPreview.getProcessor().drawOval(cellCenter[0] - radius, cellCenter[1] - radius, radius * 2, radius * 2);
         return cellPreview;
     }
 
+    //    Adapters to ImageJ images, used only by debug display
+
+    /**
+     * Create a processor of the same type of the original image containing a copy of the given slice
+     *
+     * @param z slice index (starting from 0)
+     * @return slice processor, with the LUT applied if any
+     */
+    public ImageProcessor getSliceProcessor(int z) {
+        ImageProcessor ip;
+        int offset = z * width * height;
+        if (bitDepth == 8) {
+            byte[] pixels = new byte[width * height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (byte) voxels[offset + i];
+            ip = new ByteProcessor(width, height, pixels);
+        } else if (bitDepth == 16) {
+            short[] pixels = new short[width * height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (short) voxels[offset + i];
+            ip = new ShortProcessor(width, height, pixels, null);
+        } else {
+            float[] pixels = new float[width * height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = voxels[offset + i];
+            ip = new FloatProcessor(width, height, pixels);
+        }
+        if (colorModel != null)
+            ip.setLut(getLut());
+        return ip;
+    }
+
+    /**
+     * @return new ImageStack containing a copy of the voxels
+     */
+    public ImageStack toImageStack() {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            stack.addSlice(getSliceProcessor(z));
+        }
+        return stack;
+    }
+
+    /**
+     * @return new ImagePlus containing a copy of the voxels, with z calibration set
+     */
+    public ImagePlus toImagePlus() {
+        ImagePlus imp = new ImagePlus(getTitle(), toImageStack());
+        //  NOTE: to be clear, pixelDepth >= 1, scaleZ <= 1 (the latter is the proportion resZ/resXY -res := resolution-)
+        Calibration cal = imp.getCalibration();
+        cal.pixelDepth = 1 / scaleZ;
+        return imp;
+    }
+
+    /**
+     * Replace the voxels with the content of the given stack (e.g. the result of a filter)
+     *
+     * @param stack stack with the same dimensions of this CellStack
+     */
+    public void setVoxels(ImageStack stack) {
+        int size = width * height;
+        for (int z = 0; z < depth; z++) {
+            ImageProcessor ip = stack.getProcessor(z + 1);
+            for (int i = 0; i < size; i++)
+                voxels[z * size + i] = (int) ip.getf(i);
+        }
+    }
+
+    public String getTitle() {
+        return Arrays.toString(this.seed) + " in " + imageTitle;
+    }
+
+    /**
+     * @return buffers of the steps of the cell: the pool the cell was cropped into, whatever the crop dimension (e.g.
+     * adaptive crops use the pool of the cube), or the pool of the current thread for the dimension of the crop
+     */
+    public VoxelPool getPool() {
+        return pool != null ? pool : VoxelPool.get(dim, scaleZ);
+    }
+
     public int getDim() {
         return dim;
     }
@@ -331,6 +693,46 @@ public class CellStack extends ImagePlus {
         return box;
     }
 
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return voxel array, only the first width * height * depth values belong to this stack
+     */
+    public int[] getVoxels() {
+        return voxels;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    public void setColorModel(IndexColorModel colorModel) {
+        this.colorModel = colorModel;
+    }
+
+    /**
+     * @return the color model scaled on the min and max of the whole crop
+     */
+    private LUT getLut() {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < width * height * depth; i++) {
+            min = Math.min(min, voxels[i]);
+            max = Math.max(max, voxels[i]);
+        }
+        return new LUT(colorModel, min, max);
+    }
+
     public void setCellCenter(int[] cellCenter) {
         this.cellCenter = cellCenter;
     }
@@ -342,4 +744,33 @@ public class CellStack extends ImagePlus {
     public void setRadius(int radius) {
         this.radius = radius;
     }
+
+    public double getDensity() {
+        return density;
+    }
+
+    /**
+     * @return true if the seed has been rejected by the contrast pre-test and not measured
+     */
+    public boolean isLowContrast() {
+        return contrast != null;
+    }
+
+    /**
+     * @return core mean, annulus mean and contrast of a rejected seed (see ContrastTest), null if measured
+     */
+    public double[] getContrast() {
+        return contrast;
+    }
+
+    /**
+     * @param contrast measure of the contrast pre-test which rejected the seed
+     */
+    public void setLowContrast(double[] contrast) {
+        this.contrast = contrast;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
 }
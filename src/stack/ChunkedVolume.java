@@ -0,0 +1,619 @@
+package stack;
+
+import algorithm.CellTasks;
+import geom.Box3D;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Volume stored in compressed 3D chunks, so that a crop reads and decompresses only the chunks intersecting its box
+ * instead of whole slices. Besides the full resolution, downsampled levels can be stored for coarse views (they
+ * are not used by the measure, whose coarse stages downsample the crops of the cells).
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ *   magic "BCMV" | int version | int bitDepth | int chunkSize | int nLevels
+ *   for each level: int width | int height | int depth | int factorXY | int factorZ
+ *   for each level, for each chunk (x fastest, then y, then z): long offset | int length
+ *   chunks, each one Deflate compressed: the voxels of the chunk (x fastest), truncated at the faces of the volume
+ * </pre>
+ * Voxels keep the type of the source (8 and 16 bit unsigned, 32 bit float), downsampled levels store the mean of
+ * the voxels of each block. Decompressed chunks are kept in a LRU cache shared by all the readers of the volume
+ */
+public class ChunkedVolume implements Closeable {
+
+    public static final String EXTENSION = ".bcv";
+    public static final int DEFAULT_CHUNK = 64;
+    public static final int DEFAULT_LEVELS = 1;  // downsampled levels are not read by bcmeasure, only on request
+
+    private static final int MAGIC = 0x564D4342;  // "BCMV" in little endian
+    private static final int VERSION = 1;
+    private static final long DEFAULT_CACHE_BYTES = 256L << 20;
+
+    private final FileChannel channel;
+    private final int bitDepth;
+    private final int chunk;
+    private final int[][] levels;  // width, height, depth, factorXY, factorZ
+    private final long[][] offsets;
+    private final int[][] lengths;
+    private final Map<Long, Object> cache;
+    private final long cacheBytes;
+    private long chunksRead;
+    private long bytesRead;
+
+    private ChunkedVolume(String path, long cacheBytes) throws IOException {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        ByteBuffer header = read(0, 20);
+        if (header.getInt() != MAGIC)
+            throw new IOException(path + " is not a chunked volume");
+        if (header.getInt() != VERSION)
+            throw new IOException("Unsupported version of chunked volume " + path);
+        bitDepth = header.getInt();
+        chunk = header.getInt();
+        int nLevels = header.getInt();
+
+        levels = new int[nLevels][];
+        ByteBuffer levelHeader = read(20, 20 * nLevels);
+        for (int l = 0; l < nLevels; l++) {
+            levels[l] = new int[5];
+            for (int i = 0; i < 5; i++)
+                levels[l][i] = levelHeader.getInt();
+        }
+        offsets = new long[nLevels][];
+        lengths = new int[nLevels][];
+        long position = 20 + 20 * nLevels;
+        for (int l = 0; l < nLevels; l++) {
+            int chunks = getChunks(l, 0) * getChunks(l, 1) * getChunks(l, 2);
+            ByteBuffer index = read(position, 12 * chunks);
+            offsets[l] = new long[chunks];
+            lengths[l] = new int[chunks];
+            for (int c = 0; c < chunks; c++) {
+                offsets[l][c] = index.getLong();
+                lengths[l][c] = index.getInt();
+            }
+            position += 12L * chunks;
+        }
+
+        long chunkBytes = (long) chunk * chunk * chunk * (bitDepth / 8);
+        int maxChunks = (int) Math.max(8, cacheBytes / chunkBytes);
+        this.cacheBytes = maxChunks * chunkBytes;
+        cache = new LinkedHashMap<Long, Object>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+                return size() > maxChunks;
+            }
+        };
+    }
+
+    /**
+     * Open a volume with the default cache of decompressed chunks
+     */
+    public static ChunkedVolume open(String path) throws IOException {
+        return new ChunkedVolume(path, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @return largest memory used by the cache of decompressed chunks
+     */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * @return path of the chunked copy of the image if it exists and is not older than the image, null otherwise
+     */
+    public static String find(String imgPath) {
+        File volume = new File(imgPath + EXTENSION);
+        return volume.isFile() && volume.lastModified() >= new File(imgPath).lastModified() ? volume.getPath() : null;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of chunked volume");
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @param axis 0, 1, 2 for x, y, z
+     * @return number of chunks of the level along the axis
+     */
+    private int getChunks(int level, int axis) {
+        return (levels[level][axis] + chunk - 1) / chunk;
+    }
+
+    /**
+     * Decompressed chunk, from the cache if possible
+     *
+     * @return voxels of the chunk (byte[], short[] or float[]) truncated at the faces of the volume
+     */
+    private Object getChunk(int level, int cx, int cy, int cz) throws IOException {
+        int index = (cz * getChunks(level, 1) + cy) * getChunks(level, 0) + cx;
+        long key = ((long) level << 48) | index;
+        synchronized (cache) {
+            Object voxels = cache.get(key);
+            if (voxels != null)
+                return voxels;
+        }
+        //  decompressed outside the lock, two readers may rarely decompress the same chunk
+        ByteBuffer compressed = read(offsets[level][index], lengths[level][index]);
+        int w = Math.min(chunk, levels[level][0] - cx * chunk);
+        int h = Math.min(chunk, levels[level][1] - cy * chunk);
+        int d = Math.min(chunk, levels[level][2] - cz * chunk);
+        byte[] raw = new byte[w * h * d * (bitDepth / 8)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, compressed.limit());
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, raw.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += inflated;
+            }
+            if (n < raw.length)
+                throw new IOException("Truncated chunk " + index + " of level " + level);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted chunk " + index + " of level " + level, e);
+        } finally {
+            inflater.end();
+        }
+        Object voxels = fromBytes(raw, bitDepth);
+        synchronized (cache) {
+            cache.put(key, voxels);
+            chunksRead++;
+            bytesRead += compressed.limit();
+        }
+        return voxels;
+    }
+
+    private static Object fromBytes(byte[] raw, int bitDepth) {
+        ByteBuffer buffer = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+        if (bitDepth == 8)
+            return raw;
+        if (bitDepth == 16) {
+            short[] voxels = new short[raw.length / 2];
+            buffer.asShortBuffer().get(voxels);
+            return voxels;
+        }
+        float[] voxels = new float[raw.length / 4];
+        buffer.asFloatBuffer().get(voxels);
+        return voxels;
+    }
+
+    /**
+     * Copy the voxels inside the box as CellStack does (index x + y * width + z * width * height, values converted
+     * to int), the chunks which are not in the cache are decompressed in parallel by the idle workers of the run
+     * (see CellTasks)
+     */
+    public void crop(int level, Box3D box, int[] voxels) throws IOException {
+        int x0 = box.getX0(), y0 = box.getY0(), z0 = box.getZ0();
+        int width = box.getWidth(), height = box.getHeight(), depth = box.getDepth();
+        List<int[]> chunks = new ArrayList<>();
+        for (int cz = z0 / chunk; cz <= (z0 + depth - 1) / chunk; cz++)
+            for (int cy = y0 / chunk; cy <= (y0 + height - 1) / chunk; cy++)
+                for (int cx = x0 / chunk; cx <= (x0 + width - 1) / chunk; cx++)
+                    chunks.add(new int[]{cx, cy, cz});
+
+        Object[] loaded = new Object[chunks.size()];
+        IOException[] error = new IOException[1];
+        CellTasks.share(loaded.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                try {
+                    int[] c = chunks.get(i);
+                    loaded[i] = getChunk(level, c[0], c[1], c[2]);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+
+        for (int i = 0; i < loaded.length; i++) {
+            int[] c = chunks.get(i);
+            int cw = Math.min(chunk, levels[level][0] - c[0] * chunk);
+            int ch = Math.min(chunk, levels[level][1] - c[1] * chunk);
+            //  intersection of box and chunk, in volume coordinates
+            int xs = Math.max(x0, c[0] * chunk), xe = Math.min(x0 + width, c[0] * chunk + cw);
+            int ys = Math.max(y0, c[1] * chunk), ye = Math.min(y0 + height, c[1] * chunk + ch);
+            int zs = Math.max(z0, c[2] * chunk), ze = Math.min(z0 + depth, c[2] * chunk + chunk);
+            for (int z = zs; z < ze; z++) {
+                for (int y = ys; y < ye; y++) {
+                    int src = ((z - c[2] * chunk) * ch + y - c[1] * chunk) * cw + xs - c[0] * chunk;
+                    int dst = ((z - z0) * height + y - y0) * width + xs - x0;
+                    copy(loaded[i], src, voxels, dst, xe - xs);
+                }
+            }
+        }
+    }
+
+    private static void copy(Object chunkVoxels, int src, int[] voxels, int dst, int n) {
+        if (chunkVoxels instanceof byte[]) {
+            byte[] p = (byte[]) chunkVoxels;
+            for (int x = 0; x < n; x++)
+                voxels[dst + x] = p[src + x] & 0xff;
+        } else if (chunkVoxels instanceof short[]) {
+            short[] p = (short[]) chunkVoxels;
+            for (int x = 0; x < n; x++)
+                voxels[dst + x] = p[src + x] & 0xffff;
+        } else {
+            float[] p = (float[]) chunkVoxels;
+            for (int x = 0; x < n; x++)
+                voxels[dst + x] = (int) p[src + x];
+        }
+    }
+
+    /**
+     * @return a whole slice of the level, with the type of the source. The slice needs all the chunks of its layer,
+     * which may not fit the cache on wide volumes: passes over the whole image should read the source instead
+     */
+    public Object getSlice(int level, int z) throws IOException {
+        int width = levels[level][0], height = levels[level][1];
+        Object slice = bitDepth == 8 ? new byte[width * height] : bitDepth == 16 ? new short[width * height] :
+                new float[width * height];
+        int cz = z / chunk;
+        for (int cy = 0; cy < getChunks(level, 1); cy++) {
+            for (int cx = 0; cx < getChunks(level, 0); cx++) {
+                Object voxels = getChunk(level, cx, cy, cz);
+                int cw = Math.min(chunk, width - cx * chunk);
+                int ch = Math.min(chunk, height - cy * chunk);
+                for (int y = 0; y < ch; y++)
+                    System.arraycopy(voxels, ((z - cz * chunk) * ch + y) * cw, slice,
+                            (cy * chunk + y) * width + cx * chunk, cw);
+            }
+        }
+        return slice;
+    }
+
+    public int getLevels() {
+        return levels.length;
+    }
+
+    /**
+     * @return width, height, depth, xy and z downsampling factors of the level
+     */
+    public int[] getLevel(int level) {
+        return levels[level].clone();
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * @return the full resolution as an image, crops of CellStack read only the chunks they need
+     */
+    public ImagePlus toImagePlus(String title) {
+        return new ImagePlus(title, new Stack());
+    }
+
+    /**
+     * @return chunks decompressed and compressed bytes read so far
+     */
+    public String report() {
+        synchronized (cache) {
+            return "Chunked volume: " + chunksRead + " chunks read, " + (bytesRead >> 20) + " MB";
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Full resolution of the volume as an ImageJ stack, whole slices are assembled from the chunks
+     */
+    public class Stack extends VirtualStack {
+
+        Stack() {
+            super(levels[0][0], levels[0][1]);
+        }
+
+        public ChunkedVolume getVolume() {
+            return ChunkedVolume.this;
+        }
+
+        @Override
+        public Object getPixels(int n) {
+            try {
+                return getSlice(0, n - 1);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read slice " + n + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            Object pixels = getPixels(n);
+            if (pixels instanceof byte[])
+                return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels);
+            else if (pixels instanceof short[])
+                return new ShortProcessor(getWidth(), getHeight(), (short[]) pixels, null);
+            else
+                return new FloatProcessor(getWidth(), getHeight(), (float[]) pixels);
+        }
+
+        /**
+         * Slices are read-only, ImageJ writing back the processor of the current slice is ignored
+         */
+        @Override
+        public void setPixels(Object pixels, int n) {
+        }
+
+        @Override
+        public int getSize() {
+            return levels[0][2];
+        }
+
+        @Override
+        public int size() {
+            return levels[0][2];
+        }
+
+        @Override
+        public int getBitDepth() {
+            return bitDepth;
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return null;
+        }
+    }
+
+    /**
+     * Convert an image reading it one layer of chunks at a time, so that a virtual stack is never loaded whole.
+     * Chunks of a layer are compressed in parallel, downsampled levels are accumulated while the slices pass
+     *
+     * @param imp     source image (8, 16 or 32 bit)
+     * @param path    destination file
+     * @param chunk   side of the chunks
+     * @param nLevels number of levels, level l is downsampled 2^l times on xy and as CellStack.downsample on z
+     * @param scaleZ  scale of the z axis (resZ/resXY), used for the z factor of the levels
+     * @param workers pool compressing the chunks
+     */
+    public static void convert(ImagePlus imp, String path, int chunk, int nLevels, double scaleZ,
+                               ExecutorService workers) throws IOException, InterruptedException, ExecutionException {
+        int bitDepth = imp.getBitDepth();
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            throw new IllegalArgumentException("Unsupported image type, RGB images cannot be processed");
+        ImageStack stack = imp.getStack();
+        int width = stack.getWidth(), height = stack.getHeight(), depth = stack.getSize();
+
+        List<LevelWriter> writers = new ArrayList<>();
+        long position = 20 + 20L * nLevels;
+        for (int l = 0; l < nLevels; l++) {
+            int factor = 1 << l;
+            int factorZ = Math.max(1, (int) Math.round(factor * scaleZ));
+            if (l == 0)
+                factorZ = 1;
+            LevelWriter writer = new LevelWriter(width, height, depth, factor, factorZ, chunk, bitDepth);
+            writer.indexPosition = position;
+            position += 12L * writer.chunks;
+            writers.add(writer);
+        }
+
+        try (FileChannel out = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long[] dataPosition = {position};
+            for (int z = 0; z < depth; z++) {
+                Object pixels = stack.getPixels(z + 1);
+                for (LevelWriter writer : writers)
+                    writer.add(pixels, z == depth - 1, out, dataPosition, workers);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate((int) (20 + 20L * nLevels)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(bitDepth).putInt(chunk).putInt(nLevels);
+            for (LevelWriter writer : writers)
+                header.putInt(writer.width).putInt(writer.height).putInt(writer.depth).putInt(writer.factor)
+                        .putInt(writer.factorZ);
+            header.flip();
+            write(out, header, 0);
+            for (LevelWriter writer : writers) {
+                ByteBuffer index = ByteBuffer.allocate(12 * writer.chunks).order(ByteOrder.LITTLE_ENDIAN);
+                for (int c = 0; c < writer.chunks; c++)
+                    index.putLong(writer.offsets[c]).putInt(writer.lengths[c]);
+                index.flip();
+                write(out, index, writer.indexPosition);
+            }
+        }
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += out.write(buffer, position);
+    }
+
+    /**
+     * Chunks of a level written one layer at a time: slices of the source are averaged into the slices of the level,
+     * which are kept until a layer of chunks is complete
+     */
+    private static class LevelWriter {
+
+        final int width, height, depth;
+        final int factor, factorZ;
+        final int chunksX, chunksY, chunks;
+        final long[] offsets;
+        final int[] lengths;
+        long indexPosition;
+
+        private final int sourceWidth, sourceHeight;
+        private final int chunk, bitDepth;
+        private final double[] sums;  // current slice of the level, null at full resolution
+        private final int[] counts;  // source voxels of every voxel of the level, on a single slice
+        private int summed;  // source slices added to the current slice
+        private final List<Object> layer = new ArrayList<>();  // slices of the current layer of chunks
+        private int layers;
+
+        LevelWriter(int sourceWidth, int sourceHeight, int sourceDepth, int factor, int factorZ, int chunk,
+                    int bitDepth) {
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.width = (sourceWidth + factor - 1) / factor;
+            this.height = (sourceHeight + factor - 1) / factor;
+            this.depth = (sourceDepth + factorZ - 1) / factorZ;
+            this.factor = factor;
+            this.factorZ = factorZ;
+            this.chunk = chunk;
+            this.bitDepth = bitDepth;
+            chunksX = (width + chunk - 1) / chunk;
+            chunksY = (height + chunk - 1) / chunk;
+            chunks = chunksX * chunksY * ((depth + chunk - 1) / chunk);
+            offsets = new long[chunks];
+            lengths = new int[chunks];
+            if (factor > 1 || factorZ > 1) {
+                sums = new double[width * height];
+                counts = new int[width * height];
+                for (int y = 0; y < sourceHeight; y++)
+                    for (int x = 0; x < sourceWidth; x++)
+                        counts[(y / factor) * width + x / factor]++;
+            } else {
+                sums = null;
+                counts = null;
+            }
+        }
+
+        /**
+         * Add the next slice of the source, writing the layer of chunks once complete
+         */
+        void add(Object pixels, boolean last, FileChannel out, long[] position, ExecutorService workers)
+                throws IOException, InterruptedException, ExecutionException {
+            if (sums == null) {
+                layer.add(pixels);
+            } else {
+                for (int y = 0; y < sourceHeight; y++) {
+                    int row = (y / factor) * width;
+                    for (int x = 0; x < sourceWidth; x++)
+                        sums[row + x / factor] += getValue(pixels, y * sourceWidth + x);
+                }
+                summed++;
+                if (summed == factorZ || last) {
+                    layer.add(average());
+                    Arrays.fill(sums, 0);
+                    summed = 0;
+                }
+            }
+            if (layer.size() == chunk || (last && !layer.isEmpty()))
+                writeLayer(out, position, workers);
+        }
+
+        private static double getValue(Object pixels, int index) {
+            if (pixels instanceof byte[])
+                return ((byte[]) pixels)[index] & 0xff;
+            else if (pixels instanceof short[])
+                return ((short[]) pixels)[index] & 0xffff;
+            return ((float[]) pixels)[index];
+        }
+
+        /**
+         * @return mean of the summed slices, integer types truncated as CellStack.downsample does
+         */
+        private Object average() {
+            int size = width * height;
+            if (bitDepth == 8) {
+                byte[] slice = new byte[size];
+                for (int i = 0; i < size; i++)
+                    slice[i] = (byte) (int) (sums[i] / (counts[i] * summed));
+                return slice;
+            } else if (bitDepth == 16) {
+                short[] slice = new short[size];
+                for (int i = 0; i < size; i++)
+                    slice[i] = (short) (int) (sums[i] / (counts[i] * summed));
+                return slice;
+            }
+            float[] slice = new float[size];
+            for (int i = 0; i < size; i++)
+                slice[i] = (float) (sums[i] / (counts[i] * summed));
+            return slice;
+        }
+
+        /**
+         * Compress the chunks of the current layer in parallel and append them to the file in index order
+         */
+        private void writeLayer(FileChannel out, long[] position, ExecutorService workers)
+                throws IOException, InterruptedException, ExecutionException {
+            List<Callable<byte[]>> tasks = new ArrayList<>();
+            for (int cy = 0; cy < chunksY; cy++) {
+                for (int cx = 0; cx < chunksX; cx++) {
+                    int x0 = cx * chunk, y0 = cy * chunk;
+                    tasks.add(() -> compress(x0, y0));
+                }
+            }
+            List<Future<byte[]>> results = workers.invokeAll(tasks);
+            for (int c = 0; c < results.size(); c++) {
+                byte[] compressed = results.get(c).get();
+                int index = layers * chunksX * chunksY + c;
+                offsets[index] = position[0];
+                lengths[index] = compressed.length;
+                write(out, ByteBuffer.wrap(compressed), position[0]);
+                position[0] += compressed.length;
+            }
+            layer.clear();
+            layers++;
+        }
+
+        private byte[] compress(int x0, int y0) {
+            int w = Math.min(chunk, width - x0), h = Math.min(chunk, height - y0);
+            int bytes = bitDepth / 8;
+            ByteBuffer raw = ByteBuffer.allocate(w * h * layer.size() * bytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (Object slice : layer) {
+                for (int y = y0; y < y0 + h; y++) {
+                    int offset = y * width + x0;
+                    if (slice instanceof byte[])
+                        raw.put((byte[]) slice, offset, w);
+                    else if (slice instanceof short[])
+                        raw.asShortBuffer().put((short[]) slice, offset, w);
+                    else
+                        raw.asFloatBuffer().put((float[]) slice, offset, w);
+                    if (bytes > 1)
+                        raw.position(raw.position() + w * bytes);
+                }
+            }
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(raw.array());
+                deflater.finish();
+                byte[] buffer = new byte[raw.capacity() + 64];
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == buffer.length)
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    n += deflater.deflate(buffer, n, buffer.length - n);
+                }
+                return Arrays.copyOf(buffer, n);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package stack;
+
+import algorithm.FFT3D;
+import algorithm.ShellProfile;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Unit shell sums of the first stage computed for all the seeds of a volume at once, by correlating the volume with
+ * the shell kernels through FFT instead of sweeping the crop of every cell. The kernels are the shells of ShellProfile
+ * clipped to the crop box around the seed, so for every seed whose crop is not clipped by the image the sums are
+ * the same of ShellProfile (rounded to the integer and wrapped as int sums are) and the per-cell sweep becomes a
+ * lookup. Other seeds are left to the per-cell path.
+ * The volume is split in tiles overlapping by the kernel extent (overlap-save), only tiles holding seeds are
+ * transformed, in parallel. Kernels are packed in pairs as real and imaginary part of a single complex kernel, so
+ * each inverse transform yields two shells. The plan estimates the cost of both ways, so the caller can choose
+ */
+public class ShellMaps {
+
+    private static final int MAX_TILE_SIZE = 1 << 21;  // voxels of a tile, 4 buffers of 16 MB per worker
+    private static final double DIRECT_NS_PER_VOXEL = 5;  // sweep of ShellProfile, per visited voxel
+    private static final double FFT_NS_PER_POINT = 4;  // line transforms, per voxel and per log2(tile size)
+    private static final double MAX_ROUNDING_ERROR = .05;  // tiles whose estimated error is larger are not mapped
+
+    private final ImagePlus image;
+    private final int shells;
+    private final int width, height, depth;
+    private final int dimZ;  // half depth of the crop
+    private final int[] offsetMin = new int[3], offsetMax = new int[3];  // kernel extent, relative to the seed
+    private final int[] shellOf;  // shell of every offset of the kernel box, -1 outside the shells
+    private final int[] counts;
+    private final int maxCount;
+
+    private final long bytesPerVoxel;  // spectra of the kernels and buffers of the tiles being transformed
+    private final List<int[]> seeds = new ArrayList<>();  // seeds whose crop is not clipped
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private int[][] totals;
+    private int[] tileSize;  // null if no tiling fits
+    private int[] valid;  // outputs of a tile on every axis
+    private int tiles;
+    private long unmapped;
+    private long time = -1;
+
+    /**
+     * Plan the maps: kernels, tiling and costs, nothing is computed until compute is called
+     *
+     * @param imp    whole volume
+     * @param seeds  seeds to be measured
+     * @param shells number of shells, as in ShellProfile
+     * @param dim      dimension of the crop of the cells
+     * @param scaleZ   scale of the z axis (resZ/resXY)
+     * @param maxBytes memory available to the maps, tiles are chosen so that spectra and tile buffers fit
+     * @param threads  workers transforming the tiles, each one holds the buffers of a tile
+     */
+    public ShellMaps(ImagePlus imp, List<int[]> seeds, int shells, int dim, double scaleZ, long maxBytes,
+                     int threads) {
+        this.image = imp;
+        this.shells = shells;
+        int[] dimensions = imp.getDimensions();
+        width = dimensions[0];
+        height = dimensions[1];
+        depth = dimensions[3];
+        dimZ = (int) (dim * scaleZ / 2);
+
+        //  same bounds and distances of the ShellProfile sweep around the center of an unclipped crop
+        double ratio = 1 / scaleZ;
+        double ratio2 = ratio * ratio;
+        double maxDist = (double) shells * shells;
+        int vz = (int) (Math.ceil(shells / ratio));
+        offsetMin[0] = offsetMin[1] = Math.max(-shells, -(dim / 2));
+        offsetMax[0] = offsetMax[1] = Math.min(shells, dim / 2 - 1);
+        offsetMin[2] = Math.max(-vz, -dimZ);
+        offsetMax[2] = Math.min(vz, dimZ - 1);
+        shellOf = new int[getExtent(0) * getExtent(1) * getExtent(2)];
+        counts = new int[shells];
+        int n = 0;
+        for (int k = offsetMin[2]; k <= offsetMax[2]; k++) {
+            for (int j = offsetMin[1]; j <= offsetMax[1]; j++) {
+                for (int i = offsetMin[0]; i <= offsetMax[0]; i++) {
+                    double dist = (i * i) + (j * j) + (k * k * ratio2);
+                    int s = -1;
+                    if (dist < maxDist) {
+                        s = (int) Math.sqrt(dist);
+                        if ((double) s * s > dist)
+                            s--;
+                        else if ((double) (s + 1) * (s + 1) <= dist)
+                            s++;
+                        counts[s]++;
+                    }
+                    shellOf[n++] = s;
+                }
+            }
+        }
+        int max = 0;
+        for (int count : counts)
+            max = Math.max(max, count);
+        maxCount = max;
+
+        for (int[] seed : seeds) {
+            if (seed[0] - dim / 2 < 0 || seed[0] + dim / 2 > width || seed[1] - dim / 2 < 0 ||
+                    seed[1] + dim / 2 > height || seed[2] - dimZ < 0 || seed[2] + dimZ > depth) {
+                unmapped++;
+                continue;
+            }
+            if (slots.putIfAbsent(getKey(seed), this.seeds.size()) == null)
+                this.seeds.add(seed);
+        }
+        //  a spectrum (re, im) per shell, four buffers per tile (tile and product, re and im)
+        bytesPerVoxel = 8L * 2 * ((shells + 1) / 2) + 4 * 8L * Math.max(1, threads);
+        planTiles(maxBytes);
+    }
+
+    private int getExtent(int axis) {
+        return offsetMax[axis] - offsetMin[axis] + 1;
+    }
+
+    private long getKey(int[] position) {
+        return ((long) position[2] * height + position[1]) * width + position[0];
+    }
+
+    /**
+     * Choose the power of two sides of the tiles with the lowest cost to cover the volume. The spectra of the kernels
+     * are kept in memory, so the tiles are limited to a quarter of the heap, and together with the buffers of the
+     * tiles being transformed they must fit the given memory
+     */
+    private void planTiles(long maxBytes) {
+        int[] sizes = {width, height, depth};
+        long maxSize = Math.min(MAX_TILE_SIZE, Runtime.getRuntime().maxMemory() / 4 / (16L * ((shells + 1) / 2)));
+        maxSize = Math.min(maxSize, maxBytes / bytesPerVoxel);
+        double best = Double.MAX_VALUE;
+        for (int tx = 1; tx <= maxSize; tx <<= 1) {
+            for (int ty = 1; (long) tx * ty <= maxSize; ty <<= 1) {
+                for (int tz = 1; (long) tx * ty * tz <= maxSize; tz <<= 1) {
+                    int[] t = {tx, ty, tz};
+                    int[] v = new int[3];
+                    int count = 1;
+                    boolean fits = true;
+                    for (int a = 0; a < 3; a++) {
+                        v[a] = t[a] - getExtent(a) + 1;
+                        //  tiles larger than needed by the whole volume are useless
+                        fits &= v[a] > 0 && (t[a] == 1 || t[a] / 2 < sizes[a] + getExtent(a) - 1);
+                        count *= fits ? (sizes[a] + v[a] - 1) / v[a] : 1;
+                    }
+                    double cost = (double) count * tx * ty * tz * Math.log(tx * ty * tz);
+                    if (fits && cost < best) {
+                        best = cost;
+                        tileSize = t;
+                        valid = v;
+                        tiles = count;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return memory taken by the computation of the maps, 0 if no tiling fits
+     */
+    public long getBytes() {
+        return tileSize == null ? 0 : (long) tileSize[0] * tileSize[1] * tileSize[2] * bytesPerVoxel;
+    }
+
+    /**
+     * @return estimated ms of the per-cell sweeps replaced by the maps
+     */
+    public double getDirectCost() {
+        return seeds.size() * (double) shellOf.length * DIRECT_NS_PER_VOXEL / 1e6;
+    }
+
+    /**
+     * @return estimated ms of the maps, infinite if no tiling fits
+     */
+    public double getMapCost() {
+        if (tileSize == null)
+            return Double.POSITIVE_INFINITY;
+        long size = (long) tileSize[0] * tileSize[1] * tileSize[2];
+        //  one forward and one inverse transform per pair of shells, spectra of the kernels computed once
+        long transforms = Math.min(tiles, seeds.size()) * (1L + (shells + 1) / 2) + (shells + 1) / 2;
+        return transforms * size * (Math.log(size) / Math.log(2)) * FFT_NS_PER_POINT / 1e6;
+    }
+
+    /**
+     * @return true if the maps are expected to be faster than the per-cell sweeps
+     */
+    public boolean pays() {
+        return getMapCost() < getDirectCost();
+    }
+
+    /**
+     * Compute the shell sums of all the seeds, tiles on the given pool
+     */
+    public void compute(ExecutorService workers) throws InterruptedException, ExecutionException {
+        if (tileSize == null)
+            throw new IllegalStateException("Kernel of " + getExtent(0) + "x" + getExtent(1) + "x" + getExtent(2) +
+                    " voxels too large for the shell maps");
+        long start = System.currentTimeMillis();
+        totals = new int[seeds.size()][];
+        FFT3D fft = new FFT3D(tileSize[0], tileSize[1], tileSize[2]);
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int pairs = (shells + 1) / 2;
+        double[][] kernels = new double[2 * pairs][];
+        for (int p = 0; p < pairs; p++) {
+            int pair = p;
+            tasks.add(() -> {
+                double[][] spectrum = getKernelSpectrum(fft, 2 * pair, 2 * pair + 1);
+                kernels[2 * pair] = spectrum[0];
+                kernels[2 * pair + 1] = spectrum[1];
+                return null;
+            });
+        }
+        for (Future<Void> result : workers.invokeAll(tasks))
+            result.get();
+
+        Map<Integer, List<Integer>> seedsOfTile = new HashMap<>();
+        int tilesX = (width + valid[0] - 1) / valid[0];
+        int tilesY = (height + valid[1] - 1) / valid[1];
+        for (int slot = 0; slot < seeds.size(); slot++) {
+            int[] seed = seeds.get(slot);
+            int tile = (seed[2] / valid[2] * tilesY + seed[1] / valid[1]) * tilesX + seed[0] / valid[0];
+            seedsOfTile.computeIfAbsent(tile, t -> new ArrayList<>()).add(slot);
+        }
+        tasks.clear();
+        for (Map.Entry<Integer, List<Integer>> entry : seedsOfTile.entrySet()) {
+            int tile = entry.getKey();
+            int[] origin = {(tile % tilesX) * valid[0] + offsetMin[0], (tile / tilesX % tilesY) * valid[1] +
+                    offsetMin[1], (tile / tilesX / tilesY) * valid[2] + offsetMin[2]};
+            tasks.add(() -> {
+                computeTile(fft, kernels, origin, entry.getValue());
+                return null;
+            });
+        }
+        tiles = tasks.size();
+        for (Future<Void> result : workers.invokeAll(tasks))
+            result.get();
+        time = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Spectrum of the complex kernel with shell a as real part and shell b as imaginary part, flipped so that the
+     * convolution gives the correlation with the shells and already divided by the size of the inverse transform
+     */
+    private double[][] getKernelSpectrum(FFT3D fft, int a, int b) {
+        double[] re = new double[fft.getSize()];
+        double[] im = new double[fft.getSize()];
+        int n = 0;
+        for (int k = offsetMin[2]; k <= offsetMax[2]; k++) {
+            for (int j = offsetMin[1]; j <= offsetMax[1]; j++) {
+                for (int i = offsetMin[0]; i <= offsetMax[0]; i++) {
+                    int s = shellOf[n++];
+                    if (s != a && s != b)
+                        continue;
+                    int index = (Math.floorMod(-i, tileSize[0])) + tileSize[0] * (Math.floorMod(-j, tileSize[1]) +
+                            tileSize[1] * Math.floorMod(-k, tileSize[2]));
+                    if (s == a)
+                        re[index] = 1;
+                    else
+                        im[index] = 1;
+                }
+            }
+        }
+        fft.forward(re, im);
+        double scale = 1.0 / fft.getSize();
+        for (int i = 0; i < re.length; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+        return new double[][]{re, im};
+    }
+
+    /**
+     * Transform a tile and read the shell sums at its seeds
+     *
+     * @param origin position of the first voxel of the tile in the volume, voxels outside the volume are 0
+     */
+    private void computeTile(FFT3D fft, double[][] kernels, int[] origin, List<Integer> tileSeeds) {
+        int tx = tileSize[0], ty = tileSize[1], tz = tileSize[2];
+        double[] re = new double[fft.getSize()];
+        double[] im = new double[fft.getSize()];
+        ImageStack stack = image.getStack();
+        double maxValue = 0;
+        for (int z = Math.max(origin[2], 0); z < Math.min(origin[2] + tz, depth); z++) {
+            Object pixels = stack.getPixels(z + 1);
+            for (int y = Math.max(origin[1], 0); y < Math.min(origin[1] + ty, height); y++) {
+                int index = ((z - origin[2]) * ty + y - origin[1]) * tx - origin[0];
+                for (int x = Math.max(origin[0], 0); x < Math.min(origin[0] + tx, width); x++) {
+                    int v = BackgroundMap.getValue(pixels, y * width + x);
+                    re[index + x] = v;
+                    maxValue = Math.max(maxValue, Math.abs((double) v));
+                }
+            }
+        }
+        //  error of the transforms grows with the magnitude of the sums, too large errors would change the rounding
+        if (1e-15 * (Math.log(fft.getSize()) / Math.log(2)) * maxValue * maxCount > MAX_ROUNDING_ERROR) {
+            synchronized (this) {
+                unmapped += tileSeeds.size();
+            }
+            return;
+        }
+        fft.forward(re, im);
+
+        boolean[] rows = new boolean[ty * tz];
+        int[] local = new int[tileSeeds.size()];
+        for (int n = 0; n < local.length; n++) {
+            int[] seed = seeds.get(tileSeeds.get(n));
+            local[n] = ((seed[2] - origin[2]) * ty + seed[1] - origin[1]) * tx + seed[0] - origin[0];
+            rows[local[n] / tx] = true;
+            totals[tileSeeds.get(n)] = new int[shells];
+        }
+        double[] productRe = new double[re.length];
+        double[] productIm = new double[im.length];
+        for (int s = 0; s < shells; s += 2) {
+            double[] kernelRe = kernels[s];
+            double[] kernelIm = kernels[s + 1];
+            for (int i = 0; i < re.length; i++) {
+                productRe[i] = re[i] * kernelRe[i] - im[i] * kernelIm[i];
+                productIm[i] = re[i] * kernelIm[i] + im[i] * kernelRe[i];
+            }
+            fft.inverse(productRe, productIm, rows);
+            for (int n = 0; n < local.length; n++) {
+                int[] sums = totals[tileSeeds.get(n)];
+                //  long to int wraps as the int sums of the sweep
+                sums[s] = (int) Math.round(productRe[local[n]]);
+                if (s + 1 < shells)
+                    sums[s + 1] = (int) Math.round(productIm[local[n]]);
+            }
+        }
+    }
+
+    /**
+     * @return unit shells around the seed, null if the seed has not been mapped
+     */
+    public ShellProfile getProfile(int[] seed) {
+        Integer slot = slots.get(getKey(seed));
+        if (slot == null || totals == null || totals[slot] == null)
+            return null;
+        return new ShellProfile(totals[slot], counts);
+    }
+
+    /**
+     * @return summary of plan and maps, for the log
+     */
+    public String report() {
+        String plan = String.format("Shell maps: %d seeds, %d shells, kernel %dx%dx%d", seeds.size(), shells,
+                getExtent(0), getExtent(1), getExtent(2));
+        if (tileSize != null)
+            plan += String.format(", tiles %dx%dx%d (%d), %d MB", tileSize[0], tileSize[1], tileSize[2], tiles,
+                    (getBytes() + (1 << 20) - 1) >> 20);
+        else
+            plan += ", no tiling fits the memory";
+        plan += String.format(", estimated %.0f ms against %.0f ms per cell", getMapCost(), getDirectCost());
+        if (time >= 0)
+            plan += ", computed in " + time + " ms, " + unmapped + " seeds left to the per-cell sweep";
+        return plan;
+    }
+}
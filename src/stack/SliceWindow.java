@@ -0,0 +1,138 @@
+package stack;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Stack of the whole volume of which only a window of consecutive slices is in memory: slices are read from the
+ * source once, from the first upward, into a ring buffer where each one replaces the slice window positions below.
+ * Crops are taken as from any stack, as long as their slices are resident. The reader must make sure that nobody is
+ * still reading a slice before it is replaced (see load)
+ */
+public class SliceWindow extends VirtualStack {
+
+    private final ImageStack source;
+    private final int bitDepth;
+    private final int size;
+    private final Object[] slots;
+    private volatile int loaded;  // slices read so far, the resident ones are [loaded - window, loaded)
+
+    /**
+     * @param source volume, usually a virtual stack reading the slices from file
+     * @param window number of slices kept in memory
+     */
+    public SliceWindow(ImagePlus source, int window) {
+        super(source.getWidth(), source.getHeight());
+        this.source = source.getStack();
+        this.bitDepth = source.getBitDepth();
+        this.size = this.source.getSize();
+        this.slots = new Object[Math.max(1, Math.min(window, size))];
+    }
+
+    /**
+     * @return the volume of the source as an image whose slices are read through the window
+     */
+    public static ImagePlus open(ImagePlus source, int window) {
+        ImagePlus imp = new ImagePlus(source.getTitle(), new SliceWindow(source, window));
+        imp.setCalibration(source.getCalibration());
+        return imp;
+    }
+
+    /**
+     * Start again from the given slice, the slices below it are never read
+     *
+     * @param first first slice to be read (0-based)
+     */
+    public synchronized void restart(int first) {
+        loaded = Math.max(0, Math.min(first, size));
+        Arrays.fill(slots, null);
+    }
+
+    /**
+     * Read the next slice, replacing the slice window positions below it
+     *
+     * @return number of slices read so far
+     */
+    public synchronized int load() {
+        if (loaded < size) {
+            slots[loaded % slots.length] = source.getPixels(loaded + 1);
+            loaded++;
+        }
+        return loaded;
+    }
+
+    public int getLoaded() {
+        return loaded;
+    }
+
+    public int getWindow() {
+        return slots.length;
+    }
+
+    public boolean isResident(int n) {
+        int z = n - 1;
+        return z < loaded && z >= loaded - slots.length && slots[z % slots.length] != null;
+    }
+
+    /**
+     * @throws IllegalStateException if the slice is not resident
+     */
+    @Override
+    public Object getPixels(int n) {
+        if (!isResident(n))
+            throw new IllegalStateException("Slice " + n + " is not in the window [" +
+                    (Math.max(loaded - slots.length, 0) + 1) + ", " + loaded + "]");
+        return slots[(n - 1) % slots.length];
+    }
+
+    /**
+     * Processor of a resident slice, other slices (e.g. the first one, when ImageJ sets the image up) are read from
+     * the source
+     */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        if (!isResident(n))
+            return source.getProcessor(n);
+        Object pixels = getPixels(n);
+        if (pixels instanceof byte[])
+            return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels);
+        else if (pixels instanceof short[])
+            return new ShortProcessor(getWidth(), getHeight(), (short[]) pixels, null);
+        else
+            return new FloatProcessor(getWidth(), getHeight(), (float[]) pixels);
+    }
+
+    /**
+     * Slices are read-only, ImageJ writing back the processor of the current slice is ignored
+     */
+    @Override
+    public void setPixels(Object pixels, int n) {
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return source.getSliceLabel(n);
+    }
+}
@@ -0,0 +1,204 @@
+package stack;
+
+import ij.plugin.filter.GaussianBlur;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread set of reusable buffers for cell processing. Buffers have a fixed capacity given by the largest
+ * box that can be cropped with the given cube dimension and z scale, so after the first cell no more memory is
+ * allocated for crops, filters and maxima finding.
+ * NOTE: the voxels of a pooled CellStack are valid until the next CellStack is created on the same thread
+ */
+public class VoxelPool {
+
+    private static final ThreadLocal<VoxelPool> pools = new ThreadLocal<>();
+
+    private int dim;
+    private double scaleZ;
+    private int capacity;
+
+    private int[] voxels;   // crop of the current cell
+    private int[] scratch;  // output of filters, working copy for maxima finder
+    private float[] floats;  // float staging for gaussian blur
+    private float[] line;  // single line cache for gaussian blur
+    private byte[] mask;  // flood fill state
+    private int[] queue;  // flood fill queue
+    private long[] keys;  // sort keys of the maxima candidates
+    private int[] values;  // neighborhood values for rank filters
+    private int[] pyramid;  // downsampled crop
+
+    //  cached gaussian kernels, one for each direction (x, y, z)
+    private GaussianBlur gaussianBlur = new GaussianBlur();
+    private float[][][] kernels = new float[3][][];
+    private double[] kernelSigma = new double[3];
+    private double[] kernelAccuracy = new double[3];
+    private int[] kernelLength = new int[3];
+
+    //  cached ellipsoid kernels, few distinct radii are used during a run
+    private static final int KERNEL_CACHE = 8;
+    private float[][] ellipsoidRadii = new float[KERNEL_CACHE][];
+    private int[][] ellipsoids = new int[KERNEL_CACHE][];
+    private int nextEllipsoid;
+
+    private VoxelPool(int dim, double scaleZ) {
+        this.dim = dim;
+        this.scaleZ = scaleZ;
+        this.capacity = capacity(dim, scaleZ);
+
+        voxels = new int[capacity];
+        scratch = new int[capacity];
+        mask = new byte[capacity];
+        queue = new int[capacity + 1];
+        keys = new long[capacity];
+        values = new int[0];
+    }
+
+    /**
+     * @return number of voxels of the largest box built by Box3D for the given dim
+     */
+    private static int capacity(int dim, double scaleZ) {
+        int side = 2 * (dim / 2);
+        int depth = 2 * (int) (dim * scaleZ / 2);
+        return Math.max(side * side * depth, 1);
+    }
+
+    /**
+     * @return bytes taken by a pool with all its buffers allocated (kernels and line buffers excluded)
+     */
+    public static long estimateBytes(int dim, double scaleZ) {
+        //  voxels, scratch, queue, floats and pyramid (int/float), keys (long), mask (byte)
+        return (long) capacity(dim, scaleZ) * (5 * 4 + 8 + 1);
+    }
+
+    /**
+     * @param dim    dimension of the cube containing the cell
+     * @param scaleZ scale for z axis
+     * @return the pool of the current thread, reallocated only if the parameters change
+     */
+    public static VoxelPool get(int dim, double scaleZ) {
+        VoxelPool pool = pools.get();
+        if (pool == null || pool.dim != dim || pool.scaleZ != scaleZ) {
+            pool = new VoxelPool(dim, scaleZ);
+            pools.set(pool);
+        }
+        return pool;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int[] getVoxels() {
+        return voxels;
+    }
+
+    public int[] getScratch() {
+        return scratch;
+    }
+
+    public byte[] getMask() {
+        return mask;
+    }
+
+    public int[] getQueue() {
+        return queue;
+    }
+
+    public long[] getKeys() {
+        return keys;
+    }
+
+    public int[] getPyramid() {
+        if (pyramid == null)
+            pyramid = new int[capacity];
+        return pyramid;
+    }
+
+    public float[] getFloats() {
+        if (floats == null)
+            floats = new float[capacity];
+        return floats;
+    }
+
+    /**
+     * @param length minimum length
+     * @return float buffer for a single line
+     */
+    public float[] getLine(int length) {
+        if (line == null || line.length < length)
+            line = new float[length];
+        return line;
+    }
+
+    /**
+     * @param length minimum length
+     * @return int buffer for neighborhood values
+     */
+    public int[] getValues(int length) {
+        if (values.length < length)
+            values = new int[length];
+        return values;
+    }
+
+    /**
+     * Gaussian kernel as built by ImageJ GaussianBlur, cached for each direction
+     *
+     * @param direction 0, 1, 2 for x, y, z
+     * @param sigma     standard deviation
+     * @param accuracy  accuracy of the kernel
+     * @param length    length of the lines to be blurred
+     * @return kernel and running sum of the kernel
+     */
+    public float[][] getGaussianKernel(int direction, double sigma, double accuracy, int length) {
+        if (kernels[direction] == null || kernelSigma[direction] != sigma ||
+                kernelAccuracy[direction] != accuracy || kernelLength[direction] != length) {
+            kernels[direction] = gaussianBlur.makeGaussianKernel(sigma, accuracy, length);
+            kernelSigma[direction] = sigma;
+            kernelAccuracy[direction] = accuracy;
+            kernelLength[direction] = length;
+        }
+        return kernels[direction];
+    }
+
+    /**
+     * Offsets of the ellipsoid kernel as built by FastFilters3D.createKernelEllipsoid, cached by radii
+     *
+     * @return consecutive dx,dy,dz triplets in z,y,x scan order, center included
+     */
+    public int[] getEllipsoid(float rx, float ry, float rz) {
+        for (int i = 0; i < KERNEL_CACHE; i++) {
+            float[] r = ellipsoidRadii[i];
+            if (r != null && r[0] == rx && r[1] == ry && r[2] == rz)
+                return ellipsoids[i];
+        }
+
+        int vx = (int) Math.ceil(rx);
+        int vy = (int) Math.ceil(ry);
+        int vz = (int) Math.ceil(rz);
+        double rx2 = rx * rx != 0 ? 1 / (double) (rx * rx) : 0;
+        double ry2 = ry * ry != 0 ? 1 / (double) (ry * ry) : 0;
+        double rz2 = rz * rz != 0 ? 1 / (double) (rz * rz) : 0;
+
+        int[] offsets = new int[3 * (2 * vx + 1) * (2 * vy + 1) * (2 * vz + 1)];
+        int n = 0;
+        for (int k = -vz; k <= vz; k++) {
+            for (int j = -vy; j <= vy; j++) {
+                for (int i = -vx; i <= vx; i++) {
+                    double dist = (double) (i * i) * rx2 + (double) (j * j) * ry2 + (double) (k * k) * rz2;
+                    if (dist <= 1) {
+                        offsets[n++] = i;
+                        offsets[n++] = j;
+                        offsets[n++] = k;
+                    }
+                }
+            }
+        }
+        offsets = Arrays.copyOf(offsets, n);
+
+        ellipsoidRadii[nextEllipsoid] = new float[]{rx, ry, rz};
+        ellipsoids[nextEllipsoid] = offsets;
+        nextEllipsoid = (nextEllipsoid + 1) % KERNEL_CACHE;
+        return offsets;
+    }
+}
@@ -0,0 +1,261 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import stack.CellStack;
+
+/**
+ * Compact binary columnar alternative to the [RAD].marker CSV output.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ *   magic "BCMB" | int version | int nColumns | int blockRows | long nRows
+ *   int metadataLength | metadata (UTF-8, one key=value per line)
+ *   for each column: byte type | short nameLength | name (UTF-8)
+ *   padding to 8 bytes
+ *   blocks of blockRows rows, each block stores its columns one after the other (the last block may be shorter)
+ * </pre>
+ * Every column value takes 4 bytes (int32 or float32), so any cell can be read directly from the mapped file
+ * without parsing.
+ */
+public class BinaryMarker {
+
+    public static final String EXTENSION = ".bcm";
+
+    private static final int MAGIC = 0x424D4342;  // "BCMB" in little endian
+    private static final int VERSION = 1;
+    private static final int BLOCK_ROWS = 4096;
+
+    public static final byte INT32 = 0;
+    public static final byte FLOAT32 = 1;
+
+    //  column indices of the schema written by bcmeasure
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+    public static final int R = 3;
+    public static final int SEED_X = 4;
+    public static final int SEED_Y = 5;
+    public static final int SEED_Z = 6;
+    public static final int DENSITY = 7;
+    public static final int THRESHOLD = 8;
+
+    public static final String[] COLUMN_NAMES = {"x", "y", "z", "r", "oldx", "oldy", "oldz", "density", "threshold"};
+    public static final byte[] COLUMN_TYPES = {INT32, INT32, INT32, INT32, INT32, INT32, INT32, FLOAT32, FLOAT32};
+
+    /**
+     * Streaming writer: rows are buffered one block at a time and flushed to disk column by column,
+     * so memory usage does not depend on the number of cells
+     */
+    public static class Writer implements Closeable {
+
+        private FileChannel channel;
+        private ByteBuffer[] columns;
+        private int blockCount;
+        private long nRows;
+        private long nRowsPosition;
+
+        /**
+         * @param path     output file path
+         * @param metadata run metadata (parameters, source image...) stored in the header
+         * @throws IOException if the file cannot be created
+         */
+        public Writer(String path, Map<String, String> metadata) throws IOException {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            }
+            byte[] meta = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+            int headerSize = 4 + 4 + 4 + 4 + 8 + 4 + meta.length;
+            byte[][] names = new byte[COLUMN_NAMES.length][];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = COLUMN_NAMES[i].getBytes(StandardCharsets.UTF_8);
+                headerSize += 1 + 2 + names[i].length;
+            }
+            headerSize = (headerSize + 7) & ~7;
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(COLUMN_NAMES.length).putInt(BLOCK_ROWS);
+            nRowsPosition = header.position();
+            header.putLong(0);
+            header.putInt(meta.length).put(meta);
+            for (int i = 0; i < names.length; i++) {
+                header.put(COLUMN_TYPES[i]).putShort((short) names[i].length).put(names[i]);
+            }
+            header.position(0);
+            while (header.hasRemaining())
+                channel.write(header);
+
+            columns = new ByteBuffer[COLUMN_NAMES.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = ByteBuffer.allocateDirect(BLOCK_ROWS * 4).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        /**
+         * Append one row, ints and floats must follow the order of the schema
+         */
+        public void append(int x, int y, int z, int r, int seedX, int seedY, int seedZ, float density, float threshold)
+                throws IOException {
+            columns[X].putInt(x);
+            columns[Y].putInt(y);
+            columns[Z].putInt(z);
+            columns[R].putInt(r);
+            columns[SEED_X].putInt(seedX);
+            columns[SEED_Y].putInt(seedY);
+            columns[SEED_Z].putInt(seedZ);
+            columns[DENSITY].putFloat(density);
+            columns[THRESHOLD].putFloat(threshold);
+            nRows++;
+            if (++blockCount == BLOCK_ROWS)
+                flushBlock();
+        }
+
+        /**
+         * Append the measures of a processed cell
+         */
+        public void append(CellStack cellStack) throws IOException {
+            int[] center = cellStack.getAbsoluteCenter();
+            int[] seed = cellStack.getSeed();
+            append(center[0], center[1], center[2], cellStack.getRadius(), seed[0], seed[1], seed[2],
+                    (float) cellStack.getDensity(), (float) cellStack.getThreshold());
+        }
+
+        private void flushBlock() throws IOException {
+            for (ByteBuffer column : columns) {
+                column.flip();
+                while (column.hasRemaining())
+                    channel.write(column);
+                column.clear();
+            }
+            blockCount = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel == null)
+                return;
+            try {
+                if (blockCount > 0)
+                    flushBlock();
+                ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                count.putLong(0, nRows);
+                channel.write(count, nRowsPosition);
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Zero-copy reader over a memory-mapped file: values are read straight from the mapping on access
+     */
+    public static class Reader {
+
+        private MappedByteBuffer buffer;
+        private Map<String, String> metadata = new LinkedHashMap<>();
+        private int nColumns;
+        private int blockRows;
+        private int nRows;
+        private int dataStart;
+
+        private Reader(MappedByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a binary marker file");
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported binary marker version " + version);
+            nColumns = buffer.getInt();
+            blockRows = buffer.getInt();
+            nRows = (int) buffer.getLong();
+
+            byte[] meta = new byte[buffer.getInt()];
+            buffer.get(meta);
+            for (String line : new String(meta, StandardCharsets.UTF_8).split("\n")) {
+                int sep = line.indexOf('=');
+                if (sep > 0)
+                    metadata.put(line.substring(0, sep), line.substring(sep + 1));
+            }
+
+            for (int i = 0; i < nColumns; i++) {
+                byte type = buffer.get();
+                byte[] name = new byte[buffer.getShort()];
+                buffer.get(name);
+                if (i < COLUMN_NAMES.length &&
+                        (type != COLUMN_TYPES[i] || !COLUMN_NAMES[i].equals(new String(name, StandardCharsets.UTF_8))))
+                    throw new IOException("Unexpected column " + new String(name, StandardCharsets.UTF_8) +
+                            " at position " + i);
+            }
+            if (nColumns < COLUMN_NAMES.length)
+                throw new IOException("Missing columns in binary marker, found " + nColumns);
+            dataStart = (buffer.position() + 7) & ~7;
+        }
+
+        /**
+         * Map the given binary marker file in memory
+         *
+         * @param path path of the .bcm file
+         * @return reader over the file
+         * @throws IOException if the file is not valid or too large to be mapped
+         */
+        public static Reader open(String path) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("Binary marker " + path + " too large to be mapped");
+                return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        private int offset(int column, int row) {
+            int block = row / blockRows;
+            int rowsInBlock = Math.min(blockRows, nRows - block * blockRows);
+            return dataStart + 4 * (block * blockRows * nColumns + column * rowsInBlock + row % blockRows);
+        }
+
+        public int size() {
+            return nRows;
+        }
+
+        public int getInt(int column, int row) {
+            return buffer.getInt(offset(column, row));
+        }
+
+        public float getFloat(int column, int row) {
+            return buffer.getFloat(offset(column, row));
+        }
+
+        /**
+         * Fill the given array with the same 7 values of a [RAD].marker row (x,y,z,r,oldx,oldy,oldz)
+         *
+         * @param row index of the cell
+         * @param dst destination array of length 7 at least, reused by the caller
+         */
+        public void getRow(int row, int[] dst) {
+            for (int i = X; i <= SEED_Z; i++) {
+                dst[i] = getInt(i, row);
+            }
+        }
+
+        public Map<String, String> getMetadata() {
+            return metadata;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package utils;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+import stack.CellStack;
+
+/**
+ * Aggregate statistics of the measured cells, fed while the cells complete so that no second pass over the output
+ * is needed: radius histogram, distribution of the centroid shift (distance between seed and new center, z converted
+ * to xy units through the z scale) and of the density, counts of the skipped cells and throughput.
+ * Distributions are kept in fixed bins, so statistics of several images are merged by adding them up and quantiles
+ * are accurate to the bin width. Methods are synchronized, cells may be counted by the workers
+ */
+public class CellStatistics {
+
+    private static final double[] QUANTILES = {.1, .5, .9, .99};
+
+    /**
+     * Histogram with fixed linear or logarithmic bins, values out of range are counted in the first or last bin
+     */
+    public static class Distribution {
+
+        private final double min, max;
+        private final boolean log;
+        private final long[] counts;
+        private long count;
+        private double sum;
+        private double lowest = Double.POSITIVE_INFINITY;
+        private double highest = Double.NEGATIVE_INFINITY;
+
+        /**
+         * @param min  lower bound of the first bin (positive if log)
+         * @param max  upper bound of the last bin
+         * @param bins number of bins
+         * @param log  bins of the same width on a logarithmic scale
+         */
+        public Distribution(double min, double max, int bins, boolean log) {
+            this.min = log ? Math.log(min) : min;
+            this.max = log ? Math.log(max) : max;
+            this.log = log;
+            counts = new long[bins];
+        }
+
+        public void add(double value) {
+            double v = log ? Math.log(Math.max(value, Double.MIN_VALUE)) : value;
+            int bin = (int) Math.floor((v - min) / (max - min) * counts.length);
+            counts[Math.max(0, Math.min(bin, counts.length - 1))]++;
+            count++;
+            sum += value;
+            lowest = Math.min(lowest, value);
+            highest = Math.max(highest, value);
+        }
+
+        /**
+         * Add the values of a distribution with the same bins
+         */
+        public void merge(Distribution other) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += other.counts[i];
+            count += other.count;
+            sum += other.sum;
+            lowest = Math.min(lowest, other.lowest);
+            highest = Math.max(highest, other.highest);
+        }
+
+        /**
+         * @return value below which the given fraction of the values falls, interpolated inside its bin
+         */
+        public double quantile(double q) {
+            if (count == 0)
+                return Double.NaN;
+            double rank = q * count;
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0 && cumulative + counts[i] >= rank) {
+                    double v = min + (i + (rank - cumulative) / counts[i]) * (max - min) / counts.length;
+                    v = log ? Math.exp(v) : v;
+                    return Math.max(lowest, Math.min(v, highest));
+                }
+                cumulative += counts[i];
+            }
+            return highest;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getCount(int bin) {
+            return counts[bin];
+        }
+
+        public int getBins() {
+            return counts.length;
+        }
+
+        public double getMean() {
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        public double getMin() {
+            return count > 0 ? lowest : Double.NaN;
+        }
+
+        public double getMax() {
+            return count > 0 ? highest : Double.NaN;
+        }
+    }
+
+    private final double scaleZ;
+    private final Distribution radii;  // one bin per voxel, the last one collects the radii over the maximum
+    private final Distribution shifts = new Distribution(0, 100, 1000, false);
+    private final Distribution densities = new Distribution(1, 1e6, 120, true);
+    private final long[] densityClasses = new long[PreviewSampler.CLASS_NAMES.length];
+    private final Distribution crops = new Distribution(0, 512, 512, false);  // final crop dimension (adaptive)
+
+    private long skippedOnBorder;
+    private long failed;
+    private long lowContrast;
+    private long duplicates;
+    private long grownCells;  // cells whose crop had to grow
+    private long growths;  // crops repeated with a larger dimension
+    private long images;
+    private long startTime = System.nanoTime();
+    private long elapsed;
+
+    /**
+     * @param scaleZ    scale of the z axis (resZ/resXY), used for the centroid shift
+     * @param maxRadius largest radius with its own bin in the histogram
+     */
+    public CellStatistics(double scaleZ, int maxRadius) {
+        this.scaleZ = scaleZ;
+        radii = new Distribution(0, maxRadius + 1, maxRadius + 1, false);
+    }
+
+    /**
+     * Count a measured cell
+     */
+    public void add(CellStack cellStack) {
+        int[] center = cellStack.getAbsoluteCenter();
+        int[] seed = cellStack.getSeed();
+        add(center[0], center[1], center[2], cellStack.getRadius(), seed[0], seed[1], seed[2],
+                cellStack.getDensity());
+    }
+
+    /**
+     * Count a measured cell from its output values
+     *
+     * @param density density of the cell, NaN if not available
+     */
+    public synchronized void add(int x, int y, int z, int r, int seedX, int seedY, int seedZ, double density) {
+        double dx = x - seedX;
+        double dy = y - seedY;
+        double dz = (z - seedZ) / scaleZ;
+        shifts.add(Math.sqrt(dx * dx + dy * dy + dz * dz));
+        radii.add(r);
+        if (!Double.isNaN(density)) {
+            densities.add(density);
+            densityClasses[PreviewSampler.densityClass(density)]++;
+        }
+    }
+
+    public synchronized void skippedOnBorder() {
+        skippedOnBorder++;
+    }
+
+    public synchronized void failed() {
+        failed++;
+    }
+
+    public synchronized void lowContrast() {
+        lowContrast++;
+    }
+
+    /**
+     * Count the crop of a cell measured with adaptive cropping
+     *
+     * @param dim    final dimension of the crop
+     * @param growth number of times the crop has been grown
+     */
+    public synchronized void cropped(int dim, int growth) {
+        crops.add(dim);
+        if (growth > 0) {
+            grownCells++;
+            growths += growth;
+        }
+    }
+
+    public synchronized void addDuplicates(long count) {
+        duplicates += count;
+    }
+
+    /**
+     * Stop the clock of the throughput, cells counted later are still included
+     */
+    public synchronized void stop() {
+        elapsed = System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return counts which are not in the output rows (skipped on border, failed, low contrast, duplicates, grown
+     * cells, crops repeated) and the elapsed ms, comma separated
+     */
+    public synchronized String countsRow() {
+        return skippedOnBorder + "," + failed + "," + lowContrast + "," + duplicates + "," + grownCells + "," +
+                growths + "," + getTime();
+    }
+
+    /**
+     * Add the counts of a row written by countsRow (e.g. by a shard of a sharded run), its ms are added to the time
+     */
+    public synchronized void addCounts(String row) {
+        String[] v = row.split(",");
+        skippedOnBorder += Long.parseLong(v[0]);
+        failed += Long.parseLong(v[1]);
+        lowContrast += Long.parseLong(v[2]);
+        duplicates += Long.parseLong(v[3]);
+        grownCells += Long.parseLong(v[4]);
+        growths += Long.parseLong(v[5]);
+        addTime(Long.parseLong(v[6]));
+    }
+
+    /**
+     * @return ms elapsed until stop, or until now if not stopped
+     */
+    public synchronized long getTime() {
+        return (elapsed > 0 ? elapsed : System.nanoTime() - startTime) / 1000000;
+    }
+
+    /**
+     * Add ms to the time of statistics built from other ones (e.g. the shards of a sharded run), which are not timed
+     */
+    public synchronized void addTime(long ms) {
+        elapsed += ms * 1000000;
+    }
+
+    /**
+     * Add the statistics of an image to the statistics of the run, the time is not added
+     */
+    public synchronized void merge(CellStatistics image) {
+        synchronized (image) {
+            radii.merge(image.radii);
+            shifts.merge(image.shifts);
+            densities.merge(image.densities);
+            crops.merge(image.crops);
+            grownCells += image.grownCells;
+            growths += image.growths;
+            for (int i = 0; i < densityClasses.length; i++)
+                densityClasses[i] += image.densityClasses[i];
+            skippedOnBorder += image.skippedOnBorder;
+            failed += image.failed;
+            lowContrast += image.lowContrast;
+            duplicates += image.duplicates;
+            images++;
+        }
+    }
+
+    public synchronized long getMeasured() {
+        return radii.getCount();
+    }
+
+    public synchronized double getMeanShift() {
+        return shifts.getMean();
+    }
+
+    public synchronized double getMeanRadius() {
+        return radii.getMean();
+    }
+
+    /**
+     * @return human readable report of the statistics
+     */
+    public synchronized String report(String title) {
+        long running = elapsed > 0 ? elapsed : System.nanoTime() - startTime;
+        double seconds = running / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Statistics of ").append(title).append("\n");
+        if (images > 0)
+            sb.append("Images: ").append(images).append("\n");
+        sb.append("Cells: ").append(radii.getCount()).append(" measured, ").append(skippedOnBorder)
+                .append(" skipped on border, ").append(lowContrast).append(" low contrast, ").append(failed)
+                .append(" failed, ").append(duplicates).append(" duplicates\n");
+        sb.append(format("Time: %.1f s, %.1f cells/s%n", seconds,
+                seconds > 0 ? (radii.getCount() + skippedOnBorder + lowContrast + failed) / seconds : 0));
+
+        sb.append(format("Centroid shift (voxels): mean %.2f, min %.2f, max %.2f", shifts.getMean(), shifts.getMin(),
+                shifts.getMax()));
+        appendQuantiles(sb, shifts, "%.2f");
+        sb.append(format("Density: mean %.1f, min %.1f, max %.1f", densities.getMean(), densities.getMin(),
+                densities.getMax()));
+        appendQuantiles(sb, densities, "%.1f");
+        for (int i = 0; i < densityClasses.length; i++)
+            sb.append(i == 0 ? "Density classes: " : ", ").append(PreviewSampler.CLASS_NAMES[i]).append(" ")
+                    .append(densityClasses[i]);
+        sb.append("\n");
+
+        if (crops.getCount() > 0) {
+            sb.append(format("Crop dimension: mean %.1f, min %.0f, max %.0f%n", crops.getMean(), crops.getMin(),
+                    crops.getMax()));
+            sb.append("Crop growth: ").append(grownCells).append(" cells, ").append(growths).append(" crops repeated\n");
+        }
+        sb.append(format("Radius: mean %.2f, min %.0f, max %.0f%n", radii.getMean(), radii.getMin(), radii.getMax()));
+        sb.append("r,cells\n");
+        for (int r = 0; r < radii.getBins(); r++)
+            if (radii.getCount(r) > 0)
+                sb.append(r).append(r == radii.getBins() - 1 ? "+" : "").append(",").append(radii.getCount(r))
+                        .append("\n");
+        return sb.toString();
+    }
+
+    private static void appendQuantiles(StringBuilder sb, Distribution distribution, String valueFormat) {
+        for (double q : QUANTILES)
+            sb.append(format(", p%d " + valueFormat, Math.round(q * 100), distribution.quantile(q)));
+        sb.append("\n");
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.ROOT, format, args);
+    }
+
+    /**
+     * Write the report in the given file
+     */
+    public void write(String path, String title) throws IOException {
+        try (FileWriter writer = new FileWriter(path)) {
+            writer.append(report(title));
+        }
+    }
+}
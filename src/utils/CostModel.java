@@ -0,0 +1,233 @@
+package utils;
+
+import geom.CellIndex;
+import ij.ImageStack;
+
+/**
+ * Cost model of the cells of a run, used to submit the cells of a batch to the workers from the most expensive one,
+ * so that the cells starting last are the cheapest and the workers finish the batch together.
+ * The cost of a cell is predicted before it is cropped from a few cheap features:
+ * <ul>
+ *   <li>intensity around the seed (3x3 voxels of the seed slice, only for images loaded in memory): bright cells
+ *   have larger radii and more peaks</li>
+ *   <li>crowding, i.e. the other seeds within half the crop: more peaks for the mean shift</li>
+ *   <li>part of the crop inside the image: cells on the border are cheap or skipped</li>
+ * </ul>
+ * The log of the cost is linear in the features, with the weights fitted by least squares on the actual costs of the
+ * cells measured so far (refitted after every batch). Predicted and actual costs are compared in the report
+ */
+public class CostModel {
+
+    private static final int FEATURES = 4;
+    private static final int MIN_SAMPLES = 32;  // cells measured before the first fit
+    private static final double RIDGE = 1e-3;
+    private static final double[] PRIOR = {0, 1, 1, 1};  // weights before the first fit, only the order matters
+
+    private final int dim;
+    private final double scaleZ;
+
+    private final double[][] xtx = new double[FEATURES][FEATURES];  // normal equations of all the samples
+    private final double[] xty = new double[FEATURES];
+    private int samples;
+    private volatile double[] weights = PRIOR;
+
+    //  comparison of predicted and actual costs of the current image
+    private int cells;
+    private int fittedCells;  // cells predicted by fitted weights, the prior only gives an order
+    private double sumPredicted, sumFittedActual;
+    private double sumP, sumA, sumPP, sumAA, sumPA;  // of the log costs, for the correlation
+    private long batchStart, lastStart, lastEnd;
+    private long tailTime, batchTime;
+
+    /**
+     * @param dim    crop dimension
+     * @param scaleZ scale of the z axis (resZ/resXY)
+     */
+    public CostModel(int dim, double scaleZ) {
+        this.dim = dim;
+        this.scaleZ = scaleZ;
+    }
+
+    /**
+     * @return number of the other seeds within half the crop of every seed in [from, to)
+     */
+    public int[] crowding(MarkerParser.SeedArray seeds, int from, int to) {
+        int n = to - from;
+        int[] crowding = new int[n];
+        CellIndex index = new CellIndex(seeds.getRange(from, to), 3, n, scaleZ);
+        for (int i = 0; i < n; i++) {
+            int seed = i;
+            index.within(seeds.getX(from + i), seeds.getY(from + i), seeds.getZ(from + i), dim / 2., id -> {
+                if (id != seed)
+                    crowding[seed]++;
+            });
+        }
+        return crowding;
+    }
+
+    /**
+     * @param stack     image of the seed, voxels are read only if it is loaded in memory
+     * @param seed      seed coordinates
+     * @param crowding  other seeds within half the crop
+     * @return features of the cell
+     */
+    public double[] features(ImageStack stack, int[] seed, int crowding) {
+        double intensity = 0;
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int depth = stack.getSize();
+        if (!stack.isVirtual() && seed[2] >= 0 && seed[2] < depth) {
+            int n = 0;
+            for (int y = Math.max(seed[1] - 1, 0); y <= Math.min(seed[1] + 1, height - 1); y++)
+                for (int x = Math.max(seed[0] - 1, 0); x <= Math.min(seed[0] + 1, width - 1); x++, n++)
+                    intensity += stack.getVoxel(x, y, seed[2]);
+            intensity = n > 0 ? intensity / n : 0;
+        }
+        int dimZ = Math.max(1, (int) (dim * scaleZ));
+        double inside = overlap(seed[0], dim, width) * overlap(seed[1], dim, height) * overlap(seed[2], dimZ, depth);
+        return new double[]{1, Math.log1p(intensity), Math.log1p(crowding), inside};
+    }
+
+    /**
+     * @return part of the extent centered on c inside [0, size)
+     */
+    private static double overlap(int c, int extent, int size) {
+        int from = Math.max(c - extent / 2, 0);
+        int to = Math.min(c - extent / 2 + extent, size);
+        return Math.max(0, to - from) / (double) extent;
+    }
+
+    /**
+     * @return predicted cost (ns) of a cell with the given features
+     */
+    public double predict(double[] features) {
+        double[] w = weights;
+        double log = 0;
+        for (int f = 0; f < FEATURES; f++)
+            log += w[f] * features[f];
+        return Math.exp(log);
+    }
+
+    /**
+     * Start the comparison of predicted and actual costs of a new image, the fit is kept
+     */
+    public synchronized void startImage() {
+        cells = fittedCells = 0;
+        sumPredicted = sumFittedActual = 0;
+        sumP = sumA = sumPP = sumAA = sumPA = 0;
+        tailTime = batchTime = 0;
+    }
+
+    public synchronized void startBatch() {
+        batchStart = System.nanoTime();
+        lastStart = batchStart;
+        lastEnd = batchStart;
+    }
+
+    /**
+     * A cell of the current batch starts on a worker
+     *
+     * @return start time (ns)
+     */
+    public synchronized long startCell() {
+        long now = System.nanoTime();
+        lastStart = Math.max(lastStart, now);
+        return now;
+    }
+
+    /**
+     * Add the actual cost of a measured cell to the samples of the fit, the cell ends now
+     */
+    public synchronized void record(double[] features, double predicted, long actual) {
+        lastEnd = Math.max(lastEnd, System.nanoTime());
+        double y = Math.log(Math.max(actual, 1));
+        for (int i = 0; i < FEATURES; i++) {
+            for (int j = 0; j < FEATURES; j++)
+                xtx[i][j] += features[i] * features[j];
+            xty[i] += features[i] * y;
+        }
+        samples++;
+
+        double p = Math.log(Math.max(predicted, 1));
+        cells++;
+        if (weights != PRIOR) {
+            //  weights are refitted only when all the cells of the batch are done
+            fittedCells++;
+            sumPredicted += predicted;
+            sumFittedActual += actual;
+        }
+        sumP += p;
+        sumA += y;
+        sumPP += p * p;
+        sumAA += y * y;
+        sumPA += p * y;
+    }
+
+    /**
+     * End the current batch (all the cells are done) and fit the weights on the samples collected so far. The batch
+     * ends with its last cell, the time taken by the caller to store the results is not counted
+     */
+    public synchronized void endBatch() {
+        tailTime += lastEnd - lastStart;
+        batchTime += lastEnd - batchStart;
+        if (samples < MIN_SAMPLES)
+            return;
+        double[][] a = new double[FEATURES][FEATURES + 1];
+        for (int i = 0; i < FEATURES; i++) {
+            System.arraycopy(xtx[i], 0, a[i], 0, FEATURES);
+            a[i][i] += RIDGE * samples;
+            a[i][FEATURES] = xty[i];
+        }
+        double[] fitted = solve(a);
+        if (fitted != null)
+            weights = fitted;
+    }
+
+    /**
+     * Gauss-Jordan elimination with partial pivoting of the augmented matrix
+     *
+     * @return solution or null if the matrix is singular
+     */
+    private static double[] solve(double[][] a) {
+        int n = a.length;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++)
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+                    pivot = row;
+            if (Math.abs(a[pivot][col]) < 1e-12)
+                return null;
+            double[] t = a[col];
+            a[col] = a[pivot];
+            a[pivot] = t;
+            for (int row = 0; row < n; row++) {
+                if (row == col)
+                    continue;
+                double factor = a[row][col] / a[col][col];
+                for (int k = col; k <= n; k++)
+                    a[row][k] -= factor * a[col][k];
+            }
+        }
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++)
+            x[i] = a[i][n] / a[i][i];
+        return x;
+    }
+
+    /**
+     * @return actual and predicted cost of the cells of the current image, the correlation of their logs and the
+     * tail of the batches (time from the start of the last cell of a batch to its end)
+     */
+    public synchronized String report() {
+        if (cells == 0)
+            return "Cell cost model: no cell measured";
+        double variance = (cells * sumPP - sumP * sumP) * (cells * sumAA - sumA * sumA);
+        double correlation = variance > 0 ? (cells * sumPA - sumP * sumA) / Math.sqrt(variance) : 0;
+        double tail = batchTime > 0 ? 100. * tailTime / batchTime : 0;
+        String fit = fittedCells == 0 ? "predicted by the prior order" :
+                String.format("%d predicted by the fit: actual %.2f ms/cell, predicted %.2f ms/cell", fittedCells,
+                        sumFittedActual / fittedCells / 1e6, sumPredicted / fittedCells / 1e6);
+        return String.format("Cell cost model: %d cells, %s, log correlation %.2f, batch tail %.0f ms " +
+                "(%.1f%% of %.0f ms)", cells, fit, correlation, tailTime / 1e6, tail, batchTime / 1e6);
+    }
+}
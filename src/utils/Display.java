@@ -1,36 +1,50 @@
 package utils;
 
 import ij.IJ;
+import ij.ImagePlus;
 import ij.gui.OvalRoi;
 import ij.gui.Roi;
 import ij.plugin.LutLoader;
-import ij.process.LUT;
-import ij.process.StackStatistics;
 
 import java.awt.*;
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import stack.CellStack;
 
 
 public class Display {
 
+    //  color models loaded from disk once per run
+    private static final Map<String, IndexColorModel> colorModels = new HashMap<>();
+
+    /**
+     * @param colorMap name of the color map (can be 'fire')
+     * @return the color model, loaded only the first time
+     * @throws IOException if the LUT file cannot be read
+     */
+    public static synchronized IndexColorModel getColorModel(String colorMap) throws IOException {
+        IndexColorModel colorModel = colorModels.get(colorMap);
+        if (colorModel == null) {
+            colorModel = LutLoader.open("./../luts/" + colorMap + ".lut");
+            colorModels.put(colorMap, colorModel);
+        }
+        return colorModel;
+    }
+
     /**
-     * Apply a different Look Up Table according to the given colorMap name
+     * Apply a different Look Up Table according to the given colorMap name. The LUT is scaled on the range of the
+     * cell only when a slice is rendered
      *
      * @param cellStack cell stack being processed
      * @param colorMap  name of the color map (can be 'fire')
      */
     public static boolean applyLUT(CellStack cellStack, String colorMap) {
-        StackStatistics stats = new StackStatistics(cellStack);
-
         if (colorMap.equals("fire")) {
             try {
-                IndexColorModel colorModel = LutLoader.open("./../luts/fire.lut");
-
-                LUT lut = new LUT(colorModel, stats.min, stats.max);
-                cellStack.setLut(lut);
+                cellStack.setColorModel(getColorModel(colorMap));
             } catch (IOException e) {
                 IJ.error("Cannot open LUT file\nDefault LUT applied");
                 return false;
@@ -42,12 +56,15 @@ public class Display {
         return true;
     }
 
-    public static void circleRoi(CellStack cellStack, int r, Color color) {
+    /**
+     * Draw a circle around the cell center on the given image (e.g. obtained with CellStack.toImagePlus)
+     */
+    public static void circleRoi(ImagePlus imp, CellStack cellStack, int r, Color color) {
         int d = r * 2;
         int x = cellStack.getCellCenter()[0] - r;
         int y = cellStack.getCellCenter()[1] - r;
         Roi roi = new OvalRoi(x, y, d, d);
         roi.setStrokeColor(color);
-        cellStack.setRoi(roi);
+        imp.setRoi(roi);
     }
 }
@@ -1,47 +1,220 @@
 package utils;
 
-import ij.IJ;
-import ij.ImageStack;
-import ij.plugin.Filters3D;
-import ij.plugin.GaussianBlur3D;
 import stack.CellStack;
+import stack.VoxelPool;
+
+import java.util.Arrays;
 
 /**
- * Main filters which can be applied to the cell before the main process
+ * Main filters which can be applied to the cell before the main process.
+ * Filters work in place on the voxels of the CellStack using the buffers of the thread VoxelPool; results are the
+ * same of ImageJ GaussianBlur3D.blur and Filters3D.filter (MEAN and MEDIAN) on an ImageStack of the original type
  */
 public class Filter {
 
-    private static void gaussianIJ(CellStack cellStack, float sigma) {
+    /**
+     * Same steps of GaussianBlur3D: every slice is blurred in x then in y and rounded back to the image type,
+     * then every xz plane is blurred in z
+     */
+    private static void gaussian(CellStack cellStack, float sigma) {
         double sigmaZ = cellStack.getScaleZ() * sigma;
-        GaussianBlur3D.blur(cellStack, sigma, sigma, sigmaZ);
+        VoxelPool pool = cellStack.getPool();
+        int width = cellStack.getWidth();
+        int height = cellStack.getHeight();
+        int depth = cellStack.getDepth();
+        int slice = width * height;
+        int size = slice * depth;
+        int bitDepth = cellStack.getBitDepth();
+        //  same accuracy chosen by GaussianBlur3D
+        double accuracy = bitDepth == 8 ? 0.002 : 0.0002;
+
+        int[] voxels = cellStack.getVoxels();
+        float[] floats = pool.getFloats();
+        float[] line = pool.getLine(Math.max(Math.max(width, height), depth));
+        for (int i = 0; i < size; i++)
+            floats[i] = voxels[i];
+
+        if (sigma > 0) {
+            float[][] kernelX = pool.getGaussianKernel(0, sigma, accuracy, width);
+            float[][] kernelY = pool.getGaussianKernel(1, sigma, accuracy, height);
+            for (int z = 0; z < depth; z++) {
+                int offset = z * slice;
+                for (int y = 0; y < height; y++)
+                    blurLine(floats, line, kernelX, width, offset + y * width, 1);
+                for (int x = 0; x < width; x++)
+                    blurLine(floats, line, kernelY, height, offset + x, width);
+                round(floats, offset, offset + slice, bitDepth);
+            }
+        }
+        if (sigmaZ > 0) {
+            float[][] kernelZ = pool.getGaussianKernel(2, sigmaZ, accuracy, depth);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++)
+                    blurLine(floats, line, kernelZ, depth, y * width + x, slice);
+            }
+            round(floats, 0, size, bitDepth);
+        }
+
+        for (int i = 0; i < size; i++)
+            voxels[i] = (int) floats[i];
     }
 
-    private static void medianIJ(CellStack cellStack, float sigma) {
-        ImageStack stack = cellStack.getImageStack();
-        float sigmaZ = (float) cellStack.getScaleZ() * sigma;
-        ImageStack newStack = Filters3D.filter(stack, Filters3D.MEDIAN, sigma, sigma, sigmaZ);
+    /**
+     * Round to the integer type of the image as ImageJ does when storing float values (floats are left untouched)
+     */
+    private static void round(float[] values, int from, int to, int bitDepth) {
+        if (bitDepth == 32)
+            return;
+        float max = bitDepth == 8 ? 255f : 65535f;
+        for (int i = from; i < to; i++) {
+            float value = values[i] + 0.5f;
+            if (value < 0f)
+                value = 0f;
+            if (value > max)
+                value = max;
+            values[i] = (int) value;
+        }
+    }
 
-        cellStack.setStack(newStack);
+    /**
+     * Blur a single line in place, same as GaussianBlur.convolveLine with edge pixels extrapolated
+     *
+     * @param pixels   values containing the line
+     * @param cache    buffer for the original values of the line
+     * @param kernel   kernel and running sum of the kernel from GaussianBlur.makeGaussianKernel
+     * @param length   length of the line
+     * @param point0   index of the first point of the line
+     * @param pointInc distance between two consecutive points of the line
+     */
+    private static void blurLine(float[] pixels, float[] cache, float[][] kernel, int length, int point0, int pointInc) {
+        for (int i = 0, p = point0; i < length; i++, p += pointInc)
+            cache[i] = pixels[p];
+
+        float[] kern = kernel[0];
+        float[] kernSum = kernel[1];
+        int kRadius = kern.length;
+        float first = cache[0];
+        float last = cache[length - 1];
+
+        int i = 0;
+        int p = point0;
+        //  start of the line, points beyond the edges are replaced by the edge values
+        for (; i < Math.min(kRadius, length); i++, p += pointInc) {
+            float result = cache[i] * kern[0];
+            result += kernSum[i] * first;
+            if (i + kRadius > length)
+                result += kernSum[length - i - 1] * last;
+            for (int k = 1; k < kRadius; k++) {
+                float v = 0;
+                if (i - k >= 0)
+                    v += cache[i - k];
+                if (i + k < length)
+                    v += cache[i + k];
+                result += kern[k] * v;
+            }
+            pixels[p] = result;
+        }
+        //  inner part, no edge check needed
+        for (; i < length - kRadius; i++, p += pointInc) {
+            float result = cache[i] * kern[0];
+            for (int k = 1; k < kRadius; k++)
+                result += kern[k] * (cache[i - k] + cache[i + k]);
+            pixels[p] = result;
+        }
+        //  end of the line
+        for (; i < length; i++, p += pointInc) {
+            float result = cache[i] * kern[0];
+            if (i < kRadius)
+                result += kernSum[i] * first;
+            if (i + kRadius >= length)
+                result += kernSum[length - i - 1] * last;
+            for (int k = 1; k < kRadius; k++) {
+                float v = 0;
+                if (i - k >= 0)
+                    v += cache[i - k];
+                if (i + k < length)
+                    v += cache[i + k];
+                result += kern[k] * v;
+            }
+            pixels[p] = result;
+        }
+    }
+
+    private static void median(CellStack cellStack, float sigma) {
+        float sigmaZ = (float) cellStack.getScaleZ() * sigma;
+        rankFilter(cellStack, sigma, sigmaZ, true);
     }
 
-    private static void meanIJ(CellStack cellStack, float sigma) {
-        ImageStack stack = cellStack.getImageStack();
+    private static void mean(CellStack cellStack, float sigma) {
         float sigmaZ = (float) cellStack.getScaleZ() * sigma;
-        ImageStack newStack = Filters3D.filter(stack, Filters3D.MEAN, sigma, sigma, sigmaZ);
+        rankFilter(cellStack, sigma, sigmaZ, false);
+    }
 
-        cellStack.setStack(newStack);
+    /**
+     * Mean or median of the voxels inside the ellipsoid kernel (same kernel and rounding of Filters3D).
+     * Results are staged in the pool scratch buffer and copied back at the end
+     */
+    private static void rankFilter(CellStack cellStack, float radXY, float radZ, boolean median) {
+        VoxelPool pool = cellStack.getPool();
+        int width = cellStack.getWidth();
+        int height = cellStack.getHeight();
+        int depth = cellStack.getDepth();
+        int slice = width * height;
+        int bitDepth = cellStack.getBitDepth();
+        double max = bitDepth == 8 ? 255 : 65535;
+
+        int[] voxels = cellStack.getVoxels();
+        int[] out = pool.getScratch();
+        int[] kernel = pool.getEllipsoid(radXY, radXY, radZ);
+        int[] values = pool.getValues(kernel.length / 3);
+
+        int i = 0;
+        for (int z = 0; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    int n = 0;
+                    double sum = 0;
+                    for (int k = 0; k < kernel.length; k += 3) {
+                        int xx = x + kernel[k];
+                        int yy = y + kernel[k + 1];
+                        int zz = z + kernel[k + 2];
+                        if (xx >= 0 && yy >= 0 && zz >= 0 && xx < width && yy < height && zz < depth) {
+                            int v = voxels[xx + yy * width + zz * slice];
+                            values[n++] = v;
+                            sum += v;
+                        }
+                    }
+
+                    double value;
+                    if (median) {
+                        Arrays.sort(values, 0, n);
+                        value = n % 2 == 1 ? values[n / 2] : 0.5f * (values[n / 2 - 1] + values[n / 2]);
+                    } else {
+                        value = sum / n;
+                    }
+
+                    if (bitDepth == 32) {
+                        out[i] = (int) (float) value;
+                    } else {
+                        value = Math.max(0, Math.min(value, max));
+                        out[i] = (int) (value + 0.5);
+                    }
+                }
+            }
+        }
+        System.arraycopy(out, 0, voxels, 0, slice * depth);
     }
 
     public static void filterCellStack(CellStack cellStack, String method, float sigma) {
         switch (method) {
             case "gauss":
-                gaussianIJ(cellStack, sigma);
+                gaussian(cellStack, sigma);
                 break;
             case "mean":
-                meanIJ(cellStack, sigma);
+                mean(cellStack, sigma);
                 break;
             case "median":
-                medianIJ(cellStack, sigma);
+                median(cellStack, sigma);
                 break;
         }
     }
@@ -0,0 +1,212 @@
+package utils;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watch a directory tree for new image/marker pairs and hand them over for processing once they are complete.
+ * A pair is complete when both the image and its .marker exist, no event has been received for the debounce time
+ * and their sizes did not change since the previous check. Pairs with an up-to-date [RAD].marker are skipped.
+ * A pair whose processing fails is tried again after RETRY_DELAY, doubled at every failure; after MAX_RETRIES
+ * failures it is skipped until one of its files changes
+ */
+public class FolderWatcher {
+
+    private static final long POLL_INTERVAL = 1000;  // ms between two checks of the pending pairs
+    private static final long RETRY_DELAY = 60000;  // ms before the first retry of a failed pair
+    private static final int MAX_RETRIES = 3;
+
+    private final Path root;
+    private final long debounce;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new LinkedHashMap<>();
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * Pair waiting for its files to be stable
+     */
+    private static class Pending {
+        long lastEvent;
+        long imgSize = -1;
+        long markerSize = -1;
+        int failures;
+        long retryAt;  // failed pair, not processed before this time
+    }
+
+    /**
+     * @param root     directory to be watched (with all its subdirectories)
+     * @param debounce time in ms without events and size changes before a pair is considered complete
+     * @throws IOException if the directory cannot be watched
+     */
+    public FolderWatcher(Path root, long debounce) throws IOException {
+        this.root = root;
+        this.debounce = debounce;
+        this.watchService = root.getFileSystem().newWatchService();
+        registerAll(root);
+    }
+
+    /**
+     * @param imgPath path of the image (marker path without extension)
+     * @return true if the [RAD].marker exists and is newer than both the image and the marker
+     */
+    public static boolean isUpToDate(String imgPath) {
+        File rad = new File(imgPath + "[RAD].marker");
+        if (!rad.isFile())
+            return false;
+        long measured = rad.lastModified();
+        return measured >= new File(imgPath).lastModified() && measured >= new File(imgPath + ".marker").lastModified();
+    }
+
+    /**
+     * Block forever waiting for new pairs, every complete pair is passed to the processor on the calling thread
+     *
+     * @param processor receives the image path of every complete pair, returns false if it could not be processed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void watch(Predicate<String> processor) throws InterruptedException {
+        while (true) {
+            WatchKey key = watchService.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            while (key != null) {
+                handleEvents(key);
+                key = watchService.poll();
+            }
+
+            long now = System.currentTimeMillis();
+            List<String> failed = new ArrayList<>();
+            Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Pending> entry = it.next();
+                String imgPath = entry.getKey();
+                Pending p = entry.getValue();
+                if (now - p.lastEvent < debounce || now < p.retryAt)
+                    continue;
+
+                File img = new File(imgPath);
+                File marker = new File(imgPath + ".marker");
+                if (!img.isFile() || !marker.isFile()) {
+                    it.remove();  // the other file of the pair will trigger a new event
+                    continue;
+                }
+                if (img.length() != p.imgSize || marker.length() != p.markerSize) {
+                    //  still being written, check again after another debounce time
+                    p.imgSize = img.length();
+                    p.markerSize = marker.length();
+                    p.lastEvent = now;
+                    continue;
+                }
+                if (!isUpToDate(imgPath) && !processor.test(imgPath))
+                    failed.add(imgPath);
+                else
+                    it.remove();
+            }
+            for (String imgPath : failed)
+                retry(imgPath);
+        }
+    }
+
+    /**
+     * Schedule the next attempt of a failed pair, or drop it after MAX_RETRIES failures
+     */
+    private void retry(String imgPath) {
+        Pending p = pending.get(imgPath);
+        p.failures++;
+        if (p.failures > MAX_RETRIES) {
+            pending.remove(imgPath);
+            Logger.getInstance().log("WARNING: " + imgPath + " failed " + p.failures +
+                    " times, skipped until its files change");
+            return;
+        }
+        long delay = RETRY_DELAY << (p.failures - 1);
+        p.retryAt = System.currentTimeMillis() + delay;
+        Logger.getInstance().log(imgPath + " failed, retried in " + delay / 1000 + " s");
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                //  some events were lost, look again at the whole tree
+                Logger.getInstance().log("Watch events lost, rescanning " + root);
+                rescan();
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    registerAll(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    Logger.getInstance().log("Cannot watch " + path + ": " + e.getMessage());
+                }
+                continue;
+            }
+            if (event.kind() != ENTRY_DELETE)
+                touch(path);
+        }
+        if (!key.reset())
+            keys.remove(key);
+    }
+
+    /**
+     * Mark as pending the pair the given file belongs to, if any
+     */
+    private void touch(Path path) {
+        String name = path.getFileName().toString();
+        //  outputs of bcmeasure
+        if (name.contains("[RAD]") || name.contains("[DUP]") || name.contains("[LOW]"))
+            return;
+
+        String imgPath;
+        if (name.toLowerCase().endsWith(".marker"))
+            imgPath = FilenameUtils.removeExtension(path.toString());
+        else if (Files.isRegularFile(Paths.get(path + ".marker")))
+            imgPath = path.toString();
+        else
+            return;  // image without marker yet, the marker event will follow
+
+        Pending p = pending.computeIfAbsent(imgPath, k -> new Pending());
+        p.lastEvent = System.currentTimeMillis();
+        //  changed files may fix a failed pair
+        p.failures = 0;
+        p.retryAt = 0;
+    }
+
+    private void rescan() {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().toLowerCase().endsWith(".marker"))
+                    .forEach(this::touch);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        //  files already written in a new directory before it was registered
+        if (!start.equals(root))
+            try (Stream<Path> paths = Files.walk(start)) {
+                paths.filter(Files::isRegularFile).forEach(this::touch);
+            }
+    }
+}
@@ -10,6 +10,7 @@ public class Logger {
 
     private boolean verbose;
     private ArrayList<String> logs;
+    private ThreadLocal<ArrayList<String>> groups = new ThreadLocal<>();  // messages held back by each thread
     private static Logger logger;
 
     /**
@@ -23,14 +24,14 @@ public class Logger {
         logs = new ArrayList<>();
     }
 
-    public static Logger getInstance(boolean verbose) {
+    public static synchronized Logger getInstance(boolean verbose) {
         if (logger == null) {
             logger = new Logger(verbose);
         }
         return logger;
     }
 
-    public static Logger getInstance() {
+    public static synchronized Logger getInstance() {
         if (logger == null) {
             logger = new Logger(true);
             logger.log("Verbose parameter not given, set default verbose mode.");
@@ -39,15 +40,63 @@ public class Logger {
     }
 
     public void log(String message) {
+        ArrayList<String> group = groups.get();
+        if (group != null)
+            group.add(message);
+        else
+            write(message);
+    }
+
+    private synchronized void write(String message) {
         if (verbose)
             IJ.log(message);
         else
             logs.add(message);
     }
 
+    /**
+     * Hold back the next messages of the current thread until endGroup, so that messages logged by different
+     * threads at the same time are not interleaved
+     */
+    public void startGroup() {
+        groups.set(new ArrayList<>());
+    }
+
+    /**
+     * Write all the messages held back since startGroup
+     */
+    public void endGroup() {
+        ArrayList<String> group = groups.get();
+        groups.remove();
+        if (group != null) {
+            synchronized (this) {
+                for (String message : group)
+                    write(message);
+            }
+        }
+    }
+
     public void writeLogFile(String targetDir) {
+        writeLogFile(targetDir, false);
+    }
+
+    /**
+     * Write the messages logged so far in the log file of the given directory, then discard them
+     *
+     * @param append if true the messages are added at the end of the existing file
+     */
+    public void writeLogFile(String targetDir, boolean append) {
+        writeLog(targetDir + "/log.txt", append);
+    }
+
+    /**
+     * Write the messages logged so far in the given file, then discard them
+     *
+     * @param append if true the messages are added at the end of the existing file
+     */
+    public synchronized void writeLog(String filePath, boolean append) {
         try {
-            FileWriter csvWriter = new FileWriter(targetDir + "/log.txt");
+            FileWriter csvWriter = new FileWriter(filePath, append);
 
             for (String row : logs) {
                 csvWriter.append(row);
@@ -56,6 +105,7 @@ public class Logger {
 
             csvWriter.flush();
             csvWriter.close();
+            logs.clear();
         } catch (IOException e) {
             e.printStackTrace();
             IJ.log("No file written: " + e.getMessage());
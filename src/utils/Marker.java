@@ -1,70 +1,29 @@
 package utils;
 
 import ij.IJ;
+import stack.CellStack;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import utils.Logger;
-
 public class Marker {
 
-    private static String invertY(String y, int height) {
-        return Integer.toString(height - (int) Float.parseFloat(y));
-    }
-
-
     /**
-     * Extract the seeds coordinates from a csv file
+     * Extract the seeds coordinates from a csv file, collected in a primitive array without allocating an object per
+     * seed
      *
      * @param markerPath absolute path of the .marker file
      * @param imgHeight  height of the image if y coordinates inversion is requested. If 0 or less is passed, no inversion is done
-     * @return rows of the .marker file coordinates casted to int values
+     * @return seeds coordinates
      * @throws IOException when no marker file is found
      */
-    public static ArrayList<int[]> readMarker(String markerPath, int imgHeight) throws IOException {
-
-        ArrayList<int[]> rows = new ArrayList<>();
-
-        String row;
-        BufferedReader csvReader = new BufferedReader(new FileReader(markerPath));
-        //  skip header
-        String header = csvReader.readLine();
-        while ((row = csvReader.readLine()) != null) {
-            try {
-                String[] data = row.split(",");
-
-                if (data.length < 3)
-                    throw new ArrayIndexOutOfBoundsException();
-
-                //  y inversion
-                if (imgHeight > 0) {
-                    data[1] = invertY(data[1], imgHeight);
-                }
-
-                //  takes only the x,y,z coordinates and convert them to int values
-                int[] coords = new int[3];
-                for (int i = 0; i < 3; i++) {
-                    coords[i] = (int) Float.parseFloat(data[i]);
-                }
-                rows.add(coords);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                Logger.getInstance().log("Skipped invalid line in marker " + markerPath);
-            }
-        }
-        csvReader.close();
-        return rows;
-    }
-
-    /**
-     * Same as above but when no y inversion is needed
-     */
-    public static ArrayList<int[]> readMarker(String markerPath) throws IOException {
-        return Marker.readMarker(markerPath, 0);
+    public static MarkerParser.SeedArray readSeeds(String markerPath, int imgHeight) throws IOException {
+        MarkerParser.SeedArray seeds = new MarkerParser.SeedArray();
+        MarkerParser.parse(markerPath, 3, row ->
+                seeds.add(row[0], imgHeight > 0 ? imgHeight - row[1] : row[1], row[2]));
+        return seeds;
     }
 
     /**
@@ -91,31 +50,80 @@ public class Marker {
         }
     }
 
-    public static ArrayList<int[]> readRadMarker(String markerPath) throws IOException {
-        ArrayList<int[]> rows = new ArrayList<>();
+    /**
+     * Write the duplicate seeds with the seed measured in their place, as x,y,z,repx,repy,repz rows
+     *
+     * @param markerPath absolute path of the [DUP].marker file
+     * @param seeds      seeds of the image
+     * @param clusters   duplicate seeds found among them
+     */
+    public static void writeDuplicates(String markerPath, MarkerParser.SeedArray seeds, SeedClusters clusters) {
+        writeDuplicates(markerPath, duplicateRows(seeds, clusters));
+    }
 
-        String row;
-        BufferedReader csvReader = new BufferedReader(new FileReader(markerPath));
-        //  skip header
-        String header = csvReader.readLine();
-        while ((row = csvReader.readLine()) != null) {
-            try {
-                String[] data = row.split(",");
+    /**
+     * Write rows of duplicate seeds collected elsewhere (e.g. from the shards of bcshard)
+     *
+     * @param markerPath absolute path of the [DUP].marker file
+     * @param rows       x,y,z,repx,repy,repz rows, see duplicateRows
+     */
+    public static void writeDuplicates(String markerPath, List<String> rows) {
+        try (FileWriter csvWriter = new FileWriter(markerPath)) {
+            csvWriter.append("#x,y,z,repx,repy,repz").append("\n");
+            for (String row : rows)
+                csvWriter.append(row).append("\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            IJ.error("No file written: " + e.getMessage());
+        }
+    }
 
-                if (data.length < 7)
-                    throw new ArrayIndexOutOfBoundsException();
+    /**
+     * @return one x,y,z,repx,repy,repz row for each duplicate seed of the clusters, in the order of the seeds
+     */
+    public static List<String> duplicateRows(MarkerParser.SeedArray seeds, SeedClusters clusters) {
+        List<String> rows = new ArrayList<>();
+        for (int i = clusters.getFrom(); i < clusters.getTo(); i++) {
+            if (clusters.isRepresentative(i))
+                continue;
+            int rep = clusters.getRepresentative(i);
+            rows.add(seeds.getX(i) + "," + seeds.getY(i) + "," + seeds.getZ(i) + "," +
+                    seeds.getX(rep) + "," + seeds.getY(rep) + "," + seeds.getZ(rep));
+        }
+        return rows;
+    }
 
-                //  takes only the x,y,z coordinates and radius and convert them to int values
-                int[] res = new int[7];
-                for (int i = 0; i < 7; i++) {
-                    res[i] = (int) Float.parseFloat(data[i]);
-                }
-                rows.add(res);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Write the seeds rejected by the contrast pre-test, as x,y,z,core,annulus,contrast rows
+     *
+     * @param markerPath absolute path of the [LOW].marker file
+     * @param rows       rows of the seeds, see lowContrastRow
+     */
+    public static void writeLowContrast(String markerPath, List<String> rows) {
+        try (FileWriter csvWriter = new FileWriter(markerPath)) {
+            csvWriter.append("#x,y,z,core,annulus,contrast").append("\n");
+            for (String row : rows)
+                csvWriter.append(row).append("\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            IJ.error("No file written: " + e.getMessage());
         }
-        csvReader.close();
+    }
+
+    /**
+     * @return x,y,z,core,annulus,contrast row of a seed rejected by the contrast pre-test
+     */
+    public static String lowContrastRow(CellStack cellStack) {
+        int[] seed = cellStack.getSeed();
+        double[] contrast = cellStack.getContrast();
+        return seed[0] + "," + seed[1] + "," + seed[2] + "," + (float) contrast[0] + "," + (float) contrast[1] + "," +
+                (float) contrast[2];
+    }
+
+    public static ArrayList<int[]> readRadMarker(String markerPath) throws IOException {
+        ArrayList<int[]> rows = new ArrayList<>();
+        //  takes only the x,y,z coordinates and radius plus the old coordinates
+        MarkerParser.parse(markerPath, 7, row -> rows.add(row.clone()));
         return rows;
     }
 }
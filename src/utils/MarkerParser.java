@@ -0,0 +1,275 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streaming parser for marker files (CSV with a header line and numeric leading columns).
+ * The file is memory-mapped in windows, each window is copied in bulk into a single reused byte array and numbers are
+ * parsed by hand directly from the bytes, so parsing does not allocate per line. Every row is pushed to a RowSink through the same reused int array.
+ */
+public class MarkerParser {
+
+    private static final int WINDOW = 64 * 1024 * 1024;  // bytes mapped at a time
+    private static final int MAX_REPORTED = 100;  // malformed lines reported one by one
+    private static final double[] POW10 = new double[23];  // exactly representable powers of ten
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Receiver of the parsed rows. The array is reused for the next row, so it must be copied if stored
+     */
+    public interface RowSink {
+        void accept(int[] row);
+    }
+
+    private final String path;
+    private final int nColumns;
+    private final int[] row;
+
+    private long lineNumber;
+    private long malformed;
+
+    // current window and position inside the current line, shared by the number parsing helpers
+    private byte[] bytes;
+    private int pos;
+    private int lineEnd;
+
+    private MarkerParser(String path, int nColumns) {
+        this.path = path;
+        this.nColumns = nColumns;
+        this.row = new int[nColumns];
+    }
+
+    /**
+     * Parse the first nColumns values of every line (after the header) of the given marker file.
+     * Values are truncated to int as (int) Float.parseFloat would do. Lines with fewer columns or invalid numbers are
+     * skipped and reported with their line number.
+     *
+     * @param path     marker file path
+     * @param nColumns number of leading columns to be read
+     * @param sink     receiver of the parsed rows
+     * @return number of valid rows
+     * @throws IOException if the file cannot be read
+     */
+    public static long parse(String path, int nColumns, RowSink sink) throws IOException {
+        return new MarkerParser(path, nColumns).run(sink);
+    }
+
+    private long run(RowSink sink) throws IOException {
+        long rows = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = 0;
+            boolean header = true;
+            bytes = new byte[(int) Math.min(WINDOW, size)];
+
+            while (offset < size) {
+                int length = (int) Math.min(WINDOW, size - offset);
+                boolean last = offset + length == size;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                buffer.get(bytes, 0, length);
+
+                int lineStart = 0;
+                while (lineStart < length) {
+                    int end = lineStart;
+                    while (end < length && bytes[end] != '\n')
+                        end++;
+                    lineEnd = end;
+                    if (lineEnd == length && !last)
+                        break;  // incomplete line, parse it again in the next window
+
+                    lineNumber++;
+                    if (header) {
+                        header = false;
+                    } else if (parseLine(lineStart)) {
+                        sink.accept(row);
+                        rows++;
+                    } else {
+                        report();
+                    }
+                    lineStart = lineEnd + 1;
+                }
+
+                if (lineStart == 0 && !last)
+                    throw new IOException("Line " + (lineNumber + 1) + " in marker " + path + " is too long");
+                offset += Math.min(lineStart, length);
+            }
+        }
+        if (malformed > MAX_REPORTED)
+            Logger.getInstance().log("Skipped " + malformed + " invalid lines in marker " + path);
+        return rows;
+    }
+
+    private void report() {
+        malformed++;
+        if (malformed <= MAX_REPORTED)
+            Logger.getInstance().log("Skipped invalid line " + lineNumber + " in marker " + path);
+    }
+
+    /**
+     * @return true if the line starting at the given position contains nColumns valid values
+     */
+    private boolean parseLine(int lineStart) {
+        pos = lineStart;
+        for (int c = 0; c < nColumns; c++) {
+            if (c > 0) {
+                if (pos >= lineEnd || bytes[pos] != ',')
+                    return false;
+                pos++;
+            }
+            if (!parseNumber(c))
+                return false;
+        }
+        //  next char must end the field
+        skipBlanks();
+        return pos >= lineEnd || bytes[pos] == ',';
+    }
+
+    private void skipBlanks() {
+        while (pos < lineEnd) {
+            byte b = bytes[pos];
+            if (b != ' ' && b != '\t' && b != '\r')
+                break;
+            pos++;
+        }
+    }
+
+    /**
+     * Parse a decimal number (optional sign, fraction and exponent) and store it truncated in row[column]
+     */
+    private boolean parseNumber(int column) {
+        //  work on local copies, the fields are updated only at the end
+        byte[] bytes = this.bytes;
+        int end = lineEnd;
+        int p = pos;
+        byte b;
+
+        while (p < end && ((b = bytes[p]) == ' ' || b == '\t'))
+            p++;
+        boolean negative = false;
+        if (p < end && (bytes[p] == '-' || bytes[p] == '+')) {
+            negative = bytes[p] == '-';
+            p++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        while (p < end && (b = bytes[p]) >= '0' && b <= '9') {
+            if (mantissa < Long.MAX_VALUE / 10 - 9)
+                mantissa = mantissa * 10 + (b - '0');
+            else
+                exponent++;
+            digits++;
+            p++;
+        }
+        if (p < end && bytes[p] == '.') {
+            p++;
+            while (p < end && (b = bytes[p]) >= '0' && b <= '9') {
+                if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    exponent--;
+                }
+                digits++;
+                p++;
+            }
+        }
+        if (digits == 0)
+            return false;
+
+        if (p < end && (bytes[p] == 'e' || bytes[p] == 'E')) {
+            p++;
+            boolean negativeExp = false;
+            if (p < end && (bytes[p] == '-' || bytes[p] == '+')) {
+                negativeExp = bytes[p] == '-';
+                p++;
+            }
+            int exp = 0;
+            int expDigits = 0;
+            while (p < end && (b = bytes[p]) >= '0' && b <= '9') {
+                if (exp < 1000)
+                    exp = exp * 10 + (b - '0');
+                expDigits++;
+                p++;
+            }
+            if (expDigits == 0)
+                return false;
+            exponent += negativeExp ? -exp : exp;
+        }
+        pos = p;
+        skipBlanks();
+
+        double value = exponent >= 0 ? mantissa * pow10(exponent) : mantissa / pow10(-exponent);
+        //  same rounding as (int) Float.parseFloat
+        float f = (float) (negative ? -value : value);
+        row[column] = (int) f;
+        return true;
+    }
+
+    private static double pow10(int exponent) {
+        return exponent < POW10.length ? POW10[exponent] : Math.pow(10, exponent);
+    }
+
+    /**
+     * Primitive growable list of 3D seeds, stored as consecutive x,y,z values
+     */
+    public static class SeedArray implements RowSink {
+
+        private int[] data = new int[3 * 1024];
+        private int size;
+
+        @Override
+        public void accept(int[] row) {
+            add(row[0], row[1], row[2]);
+        }
+
+        public void add(int x, int y, int z) {
+            if (3 * size + 3 > data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            data[3 * size] = x;
+            data[3 * size + 1] = y;
+            data[3 * size + 2] = z;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getX(int i) {
+            return data[3 * i];
+        }
+
+        public int getY(int i) {
+            return data[3 * i + 1];
+        }
+
+        public int getZ(int i) {
+            return data[3 * i + 2];
+        }
+
+        /**
+         * @return new array with the coordinates of the i-th seed
+         */
+        public int[] get(int i) {
+            return new int[]{data[3 * i], data[3 * i + 1], data[3 * i + 2]};
+        }
+
+        /**
+         * @return new array with the coordinates of the seeds in [from, to), as consecutive x,y,z values
+         */
+        public int[] getRange(int from, int to) {
+            return Arrays.copyOfRange(data, 3 * from, 3 * to);
+        }
+    }
+}
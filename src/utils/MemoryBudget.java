@@ -0,0 +1,197 @@
+package utils;
+
+import ij.io.FileInfo;
+import ij.io.Opener;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory governor of a run: the footprint of an image is estimated from its TIFF header before it is opened and
+ * the image is admitted only in a way that fits the budget, together with the cell buffers of the workers.
+ * In order of preference an image is
+ * <ul>
+ *   <li>loaded in memory and processed by all the workers</li>
+ *   <li>loaded in memory and processed by fewer workers, down to a single one</li>
+ *   <li>opened as a virtual stack (out-of-core: slices are read from disk when cropped) by as many workers as fit</li>
+ * </ul>
+ * An image with a chunked copy is never loaded, only the cache of decompressed chunks is counted.
+ * Memory kept for the whole run, as the sampled debug previews, is reserved upfront.
+ * Estimated and measured (heap pools) peaks are reported for every image and for the whole run
+ */
+public class MemoryBudget {
+
+    private final long budget;
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+
+    private long resident;  // bytes kept for the whole run
+    private long peakEstimate;
+    private long peakHeap;
+
+    /**
+     * Way an image is admitted
+     */
+    public static class Admission {
+        public final long imageBytes;  // estimated size of the whole image in memory
+        public final long sliceBytes;  // estimated size of a single slice
+        public final boolean virtual;  // open as a virtual stack
+        public final int threads;  // workers allowed on the image
+        public final long estimate;  // estimated footprint of the image processing
+        public final boolean fits;  // false if the estimate is over budget even in the cheapest mode
+
+        Admission(long imageBytes, long sliceBytes, boolean virtual, int threads, long estimate, boolean fits) {
+            this.imageBytes = imageBytes;
+            this.sliceBytes = sliceBytes;
+            this.virtual = virtual;
+            this.threads = threads;
+            this.estimate = estimate;
+            this.fits = fits;
+        }
+    }
+
+    /**
+     * @param budget bytes available to the run, 0 to use 90% of the maximum heap size
+     */
+    public MemoryBudget(long budget) {
+        this.budget = budget > 0 ? budget : Runtime.getRuntime().maxMemory() / 10 * 9;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool);
+    }
+
+    /**
+     * Estimate the size of the image once loaded, reading only the TIFF header
+     *
+     * @return bytes of the whole image and of a single slice; for other formats the file size is used
+     */
+    public static long[] estimateImage(String imgPath) {
+        String name = imgPath.toLowerCase();
+        if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+            FileInfo[] info = Opener.getTiffFileInfo(imgPath);
+            if (info != null && info.length > 0) {
+                FileInfo fi = info[0];
+                //  ImageJ stores RGB pixels as int
+                int bytesPerPixel = fi.getBytesPerPixel() == 3 ? 4 : fi.getBytesPerPixel();
+                long slice = (long) fi.width * fi.height * bytesPerPixel;
+                int slices = info.length > 1 ? info.length : Math.max(1, fi.nImages);
+                return new long[]{slice * slices, slice};
+            }
+        }
+        long size = new File(imgPath).length();
+        return new long[]{size, size};
+    }
+
+    /**
+     * Choose how the image is processed within the budget
+     *
+     * @param imgPath   image to be processed
+     * @param threads   workers available
+     * @param cellBytes memory used by a worker to process a cell
+     */
+    public synchronized Admission admit(String imgPath, int threads, long cellBytes) {
+        long[] size = estimateImage(imgPath);
+        boolean tiff = imgPath.toLowerCase().endsWith(".tif") || imgPath.toLowerCase().endsWith(".tiff");
+        long available = budget - resident;
+
+        for (int t = threads; t >= 1; t--) {
+            long estimate = size[0] + t * cellBytes;
+            if (estimate <= available)
+                return record(new Admission(size[0], size[1], false, t, estimate, true));
+        }
+        //  only TIFF files can be read one slice at a time, while a worker crops a cell it holds a slice
+        if (tiff) {
+            for (int t = threads; t >= 1; t--) {
+                long estimate = t * (cellBytes + size[1]);
+                if (estimate <= available)
+                    return record(new Admission(size[0], size[1], true, t, estimate, true));
+            }
+            return record(new Admission(size[0], size[1], true, 1, cellBytes + size[1], false));
+        }
+        return record(new Admission(size[0], size[1], false, 1, size[0] + cellBytes, false));
+    }
+
+    /**
+     * Choose the workers of an image read from its chunked copy (see ChunkedVolume): the image is never loaded, the
+     * cache of decompressed chunks is counted together with the cell buffers and a slice per worker, read by the
+     * passes over the whole image (background and shell maps)
+     *
+     * @param imgPath    image to be processed
+     * @param threads    workers available
+     * @param cellBytes  memory used by a worker to process a cell
+     * @param cacheBytes memory of the cache of decompressed chunks
+     */
+    public synchronized Admission admitChunked(String imgPath, int threads, long cellBytes, long cacheBytes) {
+        long[] size = estimateImage(imgPath);
+        long available = budget - resident;
+        for (int t = threads; t >= 1; t--) {
+            long estimate = cacheBytes + t * (cellBytes + size[1]);
+            if (estimate <= available)
+                return record(new Admission(size[0], size[1], true, t, estimate, true));
+        }
+        return record(new Admission(size[0], size[1], true, 1, cacheBytes + cellBytes + size[1], false));
+    }
+
+    private Admission record(Admission admission) {
+        peakEstimate = Math.max(peakEstimate, resident + admission.estimate);
+        for (MemoryPoolMXBean pool : heapPools)
+            pool.resetPeakUsage();
+        return admission;
+    }
+
+    /**
+     * Reserve memory kept for the whole run (e.g. the sampled debug previews)
+     */
+    public synchronized void reserve(long bytes) {
+        resident += bytes;
+        peakEstimate = Math.max(peakEstimate, resident);
+    }
+
+    /**
+     * @return memory left by the admitted image and its workers, for buffers used while the image is processed
+     */
+    public synchronized long headroom(Admission admission) {
+        return Math.max(0, budget - resident - admission.estimate);
+    }
+
+    /**
+     * Count in the peak estimate buffers used on top of the admission of the image (e.g. the shell maps)
+     */
+    public synchronized void charge(Admission admission, long bytes) {
+        peakEstimate = Math.max(peakEstimate, resident + admission.estimate + bytes);
+    }
+
+    /**
+     * @return summary of the admission and of the memory used by the image, to be called once it is processed
+     */
+    public synchronized String report(Admission admission) {
+        long heap = 0;
+        for (MemoryPoolMXBean pool : heapPools)
+            heap += pool.getPeakUsage().getUsed();
+        peakHeap = Math.max(peakHeap, heap);
+
+        StringBuilder sb = new StringBuilder("Memory: image ").append(mb(admission.imageBytes)).append(" MB ")
+                .append(admission.virtual ? "read from disk (out-of-core)" : "loaded")
+                .append(", ").append(admission.threads).append(admission.threads == 1 ? " worker" : " workers")
+                .append(", estimated ").append(mb(admission.estimate)).append(" MB of ").append(mb(budget))
+                .append(" MB budget, heap peak ").append(mb(heap)).append(" MB");
+        if (!admission.fits)
+            sb.append(" (OVER BUDGET)");
+        return sb.toString();
+    }
+
+    /**
+     * @return peaks of the whole run
+     */
+    public synchronized String summary() {
+        return "Memory peak: estimated " + mb(peakEstimate) + " MB, heap " + mb(peakHeap) + " MB, budget " +
+                mb(budget) + " MB";
+    }
+
+    private static long mb(long bytes) {
+        return (bytes + (1 << 20) - 1) >> 20;
+    }
+}
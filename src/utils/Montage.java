@@ -3,7 +3,7 @@ package utils;
 import ij.ImagePlus;
 import ij.process.ColorProcessor;
 
-import java.util.*;
+import java.util.List;
 
 public class Montage extends ImagePlus {
 
@@ -21,35 +21,14 @@ public class Montage extends ImagePlus {
         }
     }
 
-    public static void showRandomMontages(ArrayList<CellPreview> total, int dim) {
-        ArrayList<ArrayList<CellPreview>> l = new ArrayList<>();
-        for (int i = 0; i < 3; i++) {
-            l.add(new ArrayList<>());
-        }
-        Collections.shuffle(total);
-        for (CellPreview cp : total) {
-            if (cp.density <= 1000) {
-                l.get(0).add(cp);
-            } else if (cp.density > 1000 && cp.density <= 3000) {
-                l.get(1).add(cp);
-            } else {
-                l.get(2).add(cp);
-            }
-        }
-
-        for (int i = 0; i < l.size(); i++) {
-            Montage m = new Montage(l.get(i).subList(0, Math.min(100, l.get(i).size())), dim);
-            String title;
-            if (i == 0) {
-                title = "Low density";
-            } else if (i == 1) {
-                title = "Mid density";
-            } else {
-                title = "High density";
-            }
-            m.setTitle(title);
+    /**
+     * Show a montage of the sampled previews for every density class
+     */
+    public static void showRandomMontages(PreviewSampler sampler, int dim) {
+        for (int i = 0; i < PreviewSampler.CLASS_NAMES.length; i++) {
+            Montage m = new Montage(sampler.getSamples(i), dim);
+            m.setTitle(PreviewSampler.CLASS_NAMES[i]);
             m.show();
         }
-
     }
 }
@@ -3,41 +3,113 @@ package utils;
 import org.apache.commons.cli.*;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Params {
 
     //  "/home/zemp/IdeaProjects/bcmeasurej/testbatch"
-    public static String SOURCE_DIR = "";
+    public static String SOURCE_DIR;
     //    private static final String TARGET_DIR = "/home/zemp/bcfind_GT";
-    public static int CUBE_DIM = 70;  // dim of cube as region of interest (ROI) around every cell center
-    public static double SCALE_Z = 0.33;  // approx proportion with xy axis, equals to resZ/resXY
-    public static boolean INVERT_Y = true;  // if the markers are in graphics coordinate system must be set to true
+    public static int CUBE_DIM;  // dim of cube as region of interest (ROI) around every cell center
+    public static int ADAPTIVE_CROP;  // first dim of the crop, grown up to CUBE_DIM when reached by the cell, 0 = off
+    public static double SCALE_Z;  // approx proportion with xy axis, equals to resZ/resXY
+    public static boolean INVERT_Y;  // if the markers are in graphics coordinate system must be set to true
 
     //  localMean params
     public static final int R0 = 13;
     public static final int R1 = 18;
     public static final int R2 = 40;
-    public static double MEAN_WEIGHT = 0.4;  // 0.5 perfect balance, less than 0.5 gives more weight to background values
+    public static double MEAN_WEIGHT;  // 0.5 perfect balance, less than 0.5 gives more weight to background values
+    public static int BACKGROUND_MAP;  // spacing of the background map replacing the background caps, 0 to disable
+
+    //  low contrast pre-test params
+    public static final int CONTRAST_CORE = 2;
+    public static final int CONTRAST_ANNULUS_INNER = 8;
+    public static final int CONTRAST_ANNULUS_OUTER = 12;
+    public static double MIN_CONTRAST;  // (core mean - annulus mean) / annulus std below which seeds are rejected
+    public static double MIN_CORE_INTENSITY;  // core mean below which seeds are rejected
+    public static String LOW_CONTRAST_MODE;  // skip: no output row, flag: seed listed in the [LOW].marker file
 
     //  filter params
-    public static String FILTER = "none";
+    public static String FILTER;
     public static final float FILTER_SIGMA = 2f;
 
     //  3d radial distribution params
-    public static int MAX_RADIUS = 40;
+    public static int MAX_RADIUS;
+    public static String SHELL_MAPS;  // first stage shells of all the seeds by FFT: auto (when cheaper), always, never
+
+    //  coarse-to-fine first radius params
+    public static int PYRAMID;  // downsampling factor of the first pass (2 or 4), 1 to work at full resolution
+    public static int PYRAMID_TOLERANCE;  // max distance in voxels between coarse and refined radius
+    public static int PYRAMID_CHECK;  // compare a cell every PYRAMID_CHECK with the full resolution path
 
     //  MeanShift params
     public static final double MS_SIGMA = 10;
 
     //  Look-Up-Table (alternatives: fire, default)
-    public static String COLOR_MAP = "default";
+    public static String COLOR_MAP;
+
+    //  duplicate seeds params
+    public static double DUPLICATE_DISTANCE;  // seeds closer than this (xy voxels) are measured once, 0 to disable
+    public static String DUPLICATE_MODE;  // fanout: duplicates get the result of their representative, flag: listed apart
+
+    //  output params
+    public static boolean BINARY_OUTPUT;  // write also the binary columnar [RAD].bcm file
+
+    //  execution params
+    public static int THREADS;  // workers processing the cells in parallel
+    public static int SPLIT_CELLS;  // crop voxels above which the work on a single cell is split in subtasks, 0 = never
+    public static int MEMORY_BUDGET;  // MB available to images, cell buffers and previews, 0 for 90% of the heap
+    public static boolean WATCH;  // keep watching the source dir for new images after the first pass
+    public static int WATCH_DEBOUNCE;  // seconds without changes before a new image is considered complete
+    public static boolean Z_SWEEP;  // read every image once from the first slice upward, keeping only a window
 
     //  display params
-    public static boolean DISCARD_EDGE_CELLS = true;
-    public static boolean DEBUG = false;
+    public static boolean DISCARD_EDGE_CELLS;
+    public static boolean DEBUG;
     public static Options options= new Options();
 
+    static {
+        reset();
+    }
+
+    /**
+     * Restore the default values, so that the same JVM can parse the arguments of several runs
+     */
+    public static void reset() {
+        SOURCE_DIR = "";
+        CUBE_DIM = 70;
+        ADAPTIVE_CROP = 0;
+        SCALE_Z = 0.33;
+        INVERT_Y = true;
+        MEAN_WEIGHT = 0.4;
+        BACKGROUND_MAP = 0;
+        FILTER = "none";
+        MIN_CONTRAST = 0;
+        MIN_CORE_INTENSITY = 0;
+        LOW_CONTRAST_MODE = "skip";
+        SHELL_MAPS = "auto";
+        MAX_RADIUS = 40;
+        PYRAMID = 1;
+        PYRAMID_TOLERANCE = 4;
+        PYRAMID_CHECK = 10;
+        COLOR_MAP = "default";
+        DUPLICATE_DISTANCE = 0;
+        DUPLICATE_MODE = "fanout";
+        BINARY_OUTPUT = false;
+        THREADS = Runtime.getRuntime().availableProcessors();
+        SPLIT_CELLS = 1000000;
+        MEMORY_BUDGET = 0;
+        WATCH = false;
+        WATCH_DEBOUNCE = 10;
+        Z_SWEEP = false;
+        DISCARD_EDGE_CELLS = true;
+        DEBUG = false;
+    }
+
     public static void parse(String[] args) throws ParseException {
+        reset();
 
         options.addOption(new Option("d", "debug", false, "Enable debug mode"));
         options.addOption(new Option("ec", "edge-cells", false, "Include cells on edges"));
@@ -45,6 +117,13 @@ public class Params {
                 "Specifies that the markers follow the matrix coordinate system instead of the graphic c.s."));
         options.addOption(new Option("fire", "fire-color-map", false,
                 "Apply different color map (LUT) than default"));
+        options.addOption(new Option("bin", "binary-output", false,
+                "Write also a binary columnar [RAD].bcm file next to the [RAD].marker"));
+        options.addOption(new Option("zs", "z-sweep", false,
+                "Read every image once from the first slice upward keeping only a window of slices in memory, " +
+                        "cells are measured as soon as their slices have been read"));
+        options.addOption(new Option("w", "watch", false,
+                "Keep watching the source dir and process new image/marker pairs as soon as they are complete"));
 
         Option filter = Option.builder("f")
                 .longOpt("filter")
@@ -60,6 +139,15 @@ public class Params {
                 .desc("Dimension of the cube containing the cell for local operations")
                 .build();
 
+        Option adaptiveCrop = Option.builder("ac")
+                .longOpt("adaptive-crop")
+                .hasArg()
+                .argName("int")
+                .desc("Crop the cells with this dimension first, sized on a cheap estimate of the radius and grown " +
+                        "up to the cube dimension only when the cell reaches its faces, default 0 always uses the " +
+                        "cube dimension")
+                .build();
+
         Option scaleZ = Option.builder("z")
                 .longOpt("scale-z")
                 .hasArg()
@@ -74,6 +162,38 @@ public class Params {
                 .desc("Give more weight to background (<0.5) or to the cell (>0.5)")
                 .build();
 
+        Option minContrast = Option.builder("minc")
+                .longOpt("min-contrast")
+                .hasArg()
+                .argName("float")
+                .desc("Reject before measuring the seeds whose core is not brighter than the surrounding annulus " +
+                        "by at least the given number of standard deviations of the annulus. Default 0 disables it")
+                .build();
+
+        Option minCore = Option.builder("mini")
+                .longOpt("min-core-intensity")
+                .hasArg()
+                .argName("float")
+                .desc("Reject before measuring the seeds whose core mean is below the given intensity. " +
+                        "Default 0 disables it")
+                .build();
+
+        Option lowContrastMode = Option.builder("lcm")
+                .longOpt("low-contrast-mode")
+                .hasArg()
+                .argName("mode")
+                .desc("Output of the rejected seeds. Possible values are: skip (no row), flag (listed in the [LOW].marker " +
+                        "file)")
+                .build();
+
+        Option backgroundMap = Option.builder("bgm")
+                .longOpt("background-map")
+                .hasArg()
+                .argName("int")
+                .desc("Take the background of the local means from a map computed once per image on blocks of the " +
+                        "given size (xy voxels) instead of measuring it around every cell. Default 0 disables it")
+                .build();
+
         Option maxRadius = Option.builder("maxr")
                 .longOpt("max-radius")
                 .hasArg()
@@ -81,6 +201,81 @@ public class Params {
                 .desc("Maximum radius of the cells")
                 .build();
 
+        Option shellMaps = Option.builder("sm")
+                .longOpt("shell-maps")
+                .hasArg()
+                .argName("mode")
+                .desc("Compute the first local mean and radial distribution of all the seeds at once by FFT instead " +
+                        "of cell by cell. Possible values are: auto (when estimated faster), always, never")
+                .build();
+
+        Option pyramid = Option.builder("pyr")
+                .longOpt("pyramid")
+                .hasArg()
+                .argName("factor")
+                .desc("Compute the first radius on a 2x or 4x downsampled cell and refine it at full resolution")
+                .build();
+
+        Option pyramidTolerance = Option.builder("pyrtol")
+                .longOpt("pyramid-tolerance")
+                .hasArg()
+                .argName("int")
+                .desc("Maximum distance between coarse and refined radius, beyond it the full resolution path is used")
+                .build();
+
+        Option pyramidCheck = Option.builder("pyrchk")
+                .longOpt("pyramid-check")
+                .hasArg()
+                .argName("int")
+                .desc("Compare a cell every n with the full resolution path to report the accuracy (0 to disable)")
+                .build();
+
+        Option duplicateDistance = Option.builder("dup")
+                .longOpt("duplicate-distance")
+                .hasArg()
+                .argName("float")
+                .desc("Measure only once seeds closer than the given distance (xy voxels, z is scaled by the " +
+                        "scale-z), default 0 disables it")
+                .build();
+
+        Option duplicateMode = Option.builder("dupm")
+                .longOpt("duplicate-mode")
+                .hasArg()
+                .argName("mode")
+                .desc("Output of the duplicate seeds. Possible values are: fanout (a row with the result of the " +
+                        "measured seed), flag (listed in the [DUP].marker file)")
+                .build();
+
+        Option threads = Option.builder("t")
+                .longOpt("threads")
+                .hasArg()
+                .argName("int")
+                .desc("Number of cells processed in parallel, default is the number of available processors")
+                .build();
+
+        Option splitCells = Option.builder("split")
+                .longOpt("split-cells")
+                .hasArg()
+                .argName("voxels")
+                .desc("Crop size (voxels) above which the steps of a cell are split among the idle workers, " +
+                        "default 1000000, 0 disables it")
+                .build();
+
+        Option memoryBudget = Option.builder("mem")
+                .longOpt("memory-budget")
+                .hasArg()
+                .argName("MB")
+                .desc("Memory available to the run, images which do not fit are processed by fewer workers or " +
+                        "read from disk one slice at a time. Default is 90% of the maximum heap size")
+                .build();
+
+        Option watchDebounce = Option.builder("wd")
+                .longOpt("watch-debounce")
+                .hasArg()
+                .argName("seconds")
+                .desc("Time without changes before a new pair is considered complete in watch mode")
+                .build();
+
         Option sourceDir = Option.builder("sd")
                 .longOpt("source-dir")
                 .hasArg()
@@ -91,9 +286,24 @@ public class Params {
 
         options.addOption(filter)
                 .addOption(dim)
+                .addOption(adaptiveCrop)
                 .addOption(scaleZ)
                 .addOption(meanWeight)
+                .addOption(backgroundMap)
+                .addOption(shellMaps)
                 .addOption(maxRadius)
+                .addOption(minContrast)
+                .addOption(minCore)
+                .addOption(lowContrastMode)
+                .addOption(pyramid)
+                .addOption(pyramidTolerance)
+                .addOption(pyramidCheck)
+                .addOption(duplicateDistance)
+                .addOption(duplicateMode)
+                .addOption(threads)
+                .addOption(splitCells)
+                .addOption(memoryBudget)
+                .addOption(watchDebounce)
                 .addOption(sourceDir);
 
         CommandLineParser parser = new DefaultParser();
@@ -109,6 +319,14 @@ public class Params {
             INVERT_Y = false;
         if (line.hasOption("fire"))
             COLOR_MAP = "fire";
+        if (line.hasOption("bin"))
+            BINARY_OUTPUT = true;
+        if (line.hasOption("w"))
+            WATCH = true;
+        if (line.hasOption("zs"))
+            Z_SWEEP = true;
+        if (line.hasOption("wd"))
+            WATCH_DEBOUNCE = Integer.parseInt(line.getOptionValue("wd"));
         if (line.hasOption("f")) {
             String choice = line.getOptionValue("f");
             if (choice.equals("mean") || choice.equals("gauss") || choice.equals("median") || choice.equals("none"))
@@ -118,12 +336,76 @@ public class Params {
         }
         if (line.hasOption("dim"))
             CUBE_DIM = Integer.parseInt(line.getOptionValue("dim"));
+        if (line.hasOption("ac")) {
+            ADAPTIVE_CROP = Integer.parseInt(line.getOptionValue("ac"));
+            if (ADAPTIVE_CROP < 0)
+                throw new ParseException("Adaptive crop dimension must not be negative");
+        }
         if (line.hasOption("z"))
             SCALE_Z = Double.parseDouble(line.getOptionValue("z"));
         if (line.hasOption("mw"))
             MEAN_WEIGHT = Double.parseDouble(line.getOptionValue("mw"));
+        if (line.hasOption("minc"))
+            MIN_CONTRAST = Double.parseDouble(line.getOptionValue("minc"));
+        if (line.hasOption("mini"))
+            MIN_CORE_INTENSITY = Double.parseDouble(line.getOptionValue("mini"));
+        if (line.hasOption("lcm")) {
+            String choice = line.getOptionValue("lcm");
+            if (choice.equals("skip") || choice.equals("flag"))
+                LOW_CONTRAST_MODE = choice;
+            else
+                throw new ParseException("Low contrast mode " + choice + " is not valid");
+        }
+        if (line.hasOption("sm")) {
+            String choice = line.getOptionValue("sm");
+            if (choice.equals("auto") || choice.equals("always") || choice.equals("never"))
+                SHELL_MAPS = choice;
+            else
+                throw new ParseException("Shell maps mode " + choice + " is not valid");
+        }
+        if (line.hasOption("bgm")) {
+            BACKGROUND_MAP = Integer.parseInt(line.getOptionValue("bgm"));
+            if (BACKGROUND_MAP < 0)
+                throw new ParseException("Background map spacing must not be negative");
+        }
         if (line.hasOption("maxr"))
             MAX_RADIUS = Integer.parseInt(line.getOptionValue("maxr"));
+        if (line.hasOption("pyr")) {
+            PYRAMID = Integer.parseInt(line.getOptionValue("pyr"));
+            if (PYRAMID != 1 && PYRAMID != 2 && PYRAMID != 4)
+                throw new ParseException("Pyramid factor " + PYRAMID + " is not valid, possible values are: 1, 2, 4");
+        }
+        if (line.hasOption("pyrtol"))
+            PYRAMID_TOLERANCE = Integer.parseInt(line.getOptionValue("pyrtol"));
+        if (line.hasOption("pyrchk"))
+            PYRAMID_CHECK = Integer.parseInt(line.getOptionValue("pyrchk"));
+        if (line.hasOption("dup")) {
+            DUPLICATE_DISTANCE = Double.parseDouble(line.getOptionValue("dup"));
+            if (DUPLICATE_DISTANCE < 0)
+                throw new ParseException("Duplicate distance must not be negative");
+        }
+        if (line.hasOption("dupm")) {
+            String choice = line.getOptionValue("dupm");
+            if (choice.equals("fanout") || choice.equals("flag"))
+                DUPLICATE_MODE = choice;
+            else
+                throw new ParseException("Duplicate mode " + choice + " is not valid");
+        }
+        if (line.hasOption("t")) {
+            THREADS = Integer.parseInt(line.getOptionValue("t"));
+            if (THREADS < 1)
+                throw new ParseException("Number of threads must be positive");
+        }
+        if (line.hasOption("split")) {
+            SPLIT_CELLS = Integer.parseInt(line.getOptionValue("split"));
+            if (SPLIT_CELLS < 0)
+                throw new ParseException("Split threshold must not be negative");
+        }
+        if (line.hasOption("mem")) {
+            MEMORY_BUDGET = Integer.parseInt(line.getOptionValue("mem"));
+            if (MEMORY_BUDGET < 1)
+                throw new ParseException("Memory budget must be positive");
+        }
 
         SOURCE_DIR = line.getOptionValue("sd");
         File source = new File(SOURCE_DIR);
@@ -131,4 +413,37 @@ public class Params {
             throw new ParseException("Source dir " + source.toString() + " is not valid");
         }
     }
+
+    /**
+     * @return parameters of the current run as key-value pairs, to be stored along with the results
+     */
+    public static Map<String, String> describe() {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("cube-dim", Integer.toString(CUBE_DIM));
+        if (ADAPTIVE_CROP > 0)
+            params.put("adaptive-crop", Integer.toString(ADAPTIVE_CROP));
+        params.put("scale-z", Double.toString(SCALE_Z));
+        params.put("invert-y", Boolean.toString(INVERT_Y));
+        params.put("local-mean-weight", Double.toString(MEAN_WEIGHT));
+        if (BACKGROUND_MAP > 0)
+            params.put("background-map", Integer.toString(BACKGROUND_MAP));
+        params.put("filter", FILTER);
+        params.put("max-radius", Integer.toString(MAX_RADIUS));
+        if (!SHELL_MAPS.equals("auto"))
+            params.put("shell-maps", SHELL_MAPS);
+        if (MIN_CONTRAST > 0 || MIN_CORE_INTENSITY > 0) {
+            params.put("min-contrast", Double.toString(MIN_CONTRAST));
+            params.put("min-core-intensity", Double.toString(MIN_CORE_INTENSITY));
+            params.put("low-contrast-mode", LOW_CONTRAST_MODE);
+        }
+        params.put("edge-cells", Boolean.toString(!DISCARD_EDGE_CELLS));
+        params.put("pyramid", Integer.toString(PYRAMID));
+        if (PYRAMID > 1)
+            params.put("pyramid-tolerance", Integer.toString(PYRAMID_TOLERANCE));
+        if (DUPLICATE_DISTANCE > 0) {
+            params.put("duplicate-distance", Double.toString(DUPLICATE_DISTANCE));
+            params.put("duplicate-mode", DUPLICATE_MODE);
+        }
+        return params;
+    }
 }
@@ -0,0 +1,69 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Uniform random sample of the debug previews of a run, a fixed number for each density class (reservoir
+ * sampling). The decision is taken before the preview is built, so only the previews that may be shown are
+ * converted and kept in memory
+ */
+public class PreviewSampler {
+
+    public static final int PER_CLASS = 100;
+    public static final String[] CLASS_NAMES = {"Low density", "Mid density", "High density"};
+
+    private final CellPreview[][] samples = new CellPreview[CLASS_NAMES.length][PER_CLASS];
+    private final long[][] owners = new long[CLASS_NAMES.length][PER_CLASS];  // cell which reserved each slot
+    private final long[] seen = new long[CLASS_NAMES.length];
+    private final Random random = new Random();
+
+    /**
+     * @return 0 for density up to 1000, 1 up to 3000, 2 above
+     */
+    public static int densityClass(double density) {
+        if (density <= 1000)
+            return 0;
+        else if (density <= 3000)
+            return 1;
+        return 2;
+    }
+
+    /**
+     * Count a cell of the given density and decide whether it enters the sample
+     *
+     * @return ticket to be passed to put, -1 if the preview of the cell is not needed
+     */
+    public synchronized long reserve(double density) {
+        int c = densityClass(density);
+        long n = seen[c]++;
+        long slot = n < PER_CLASS ? n : (long) (random.nextDouble() * (n + 1));
+        if (slot >= PER_CLASS)
+            return -1;
+        owners[c][(int) slot] = n;
+        //  slot and cell index of the class in a single value
+        return n * PER_CLASS + slot;
+    }
+
+    /**
+     * Store the preview of a reserved cell, unless its slot has been reserved again by a later cell meanwhile
+     */
+    public synchronized void put(double density, long ticket, CellPreview preview) {
+        int c = densityClass(density);
+        int slot = (int) (ticket % PER_CLASS);
+        if (owners[c][slot] == ticket / PER_CLASS)
+            samples[c][slot] = preview;
+    }
+
+    /**
+     * @return previews sampled for the given class
+     */
+    public synchronized List<CellPreview> getSamples(int densityClass) {
+        List<CellPreview> previews = new ArrayList<>();
+        for (CellPreview preview : samples[densityClass])
+            if (preview != null)
+                previews.add(preview);
+        return previews;
+    }
+}
@@ -11,31 +11,46 @@ public class Progress {
     private int cellTotal;
 
     private String img;
+    private boolean silent;  // no output on the console
 
     public Progress(int imgTotal) {
         this.imgTotal = imgTotal;
     }
 
-    public void show() {
+    public synchronized void show() {
+        if (silent)
+            return;
         System.out.print("'" + img + "' " + imgCount + "/" + imgTotal + " - cell n. " + cellCount + " of " + cellTotal +
                 "                 \r");
     }
 
-    public void stepImg() {
+    public synchronized void stepImg() {
         this.imgCount++;
     }
 
-    public void stepCell() {
+    public synchronized void stepCell() {
         this.cellCount++;
     }
 
-    public void resetCellCount(int newCellTotal, String img) {
+    public synchronized void resetCellCount(int newCellTotal, String img) {
         this.cellTotal = newCellTotal;
         this.cellCount = 0;
         this.img = img;
     }
 
+    /**
+     * @return one line summary of the progress
+     */
+    public synchronized String getStatus() {
+        return imgCount + "/" + imgTotal + " images, cell " + cellCount + " of " + cellTotal +
+                (img != null ? " in '" + img + "'" : "");
+    }
+
     //    SETTER
+    public void setSilent(boolean silent) {
+        this.silent = silent;
+    }
+
     public void setImgCount(int imgCount) {
         this.imgCount = imgCount;
     }
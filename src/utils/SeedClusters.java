@@ -0,0 +1,95 @@
+package utils;
+
+import java.util.Arrays;
+
+import geom.CellIndex;
+
+/**
+ * Clusters of duplicate seeds, i.e. seeds emitted by the detector for the same cell. Seeds are visited in order,
+ * the first one not yet assigned becomes the representative of all the unassigned seeds within the given distance
+ * (found with a CellIndex over the seeds), so every seed is at most that distance from its representative and the
+ * representative always comes first. The distance is anisotropic as the image: it is measured in xy voxels with z
+ * converted through the z scale, i.e. it spans distance * scaleZ slices. Only the representatives need to be measured
+ */
+public class SeedClusters {
+
+    private final int from;
+    private final int[] representative;  // for every seed, index (relative to from) of its representative
+    private final int[] lastDuplicate;  // for every representative, index of its last duplicate, -1 if none
+    private int representatives;
+
+    /**
+     * @param seeds    seeds of the image
+     * @param from     first seed to be clustered
+     * @param to       end (excluded) of the seeds to be clustered
+     * @param distance max distance in xy voxels between a duplicate and its representative
+     * @param scaleZ   scale of the z axis (resZ/resXY)
+     */
+    public SeedClusters(MarkerParser.SeedArray seeds, int from, int to, double distance, double scaleZ) {
+        this.from = from;
+        int n = to - from;
+        representative = new int[n];
+        lastDuplicate = new int[n];
+        Arrays.fill(representative, -1);
+        Arrays.fill(lastDuplicate, -1);
+
+        CellIndex index = new CellIndex(seeds.getRange(from, to), 3, n, scaleZ);
+        for (int i = 0; i < n; i++) {
+            if (representative[i] >= 0)
+                continue;
+            int rep = i;
+            representative[rep] = rep;
+            representatives++;
+            //  seeds before i are all assigned already
+            index.within(seeds.getX(from + i), seeds.getY(from + i), seeds.getZ(from + i), distance, id -> {
+                if (representative[id] < 0) {
+                    representative[id] = rep;
+                    lastDuplicate[rep] = Math.max(lastDuplicate[rep], id);
+                }
+            });
+        }
+    }
+
+    public boolean isRepresentative(int seed) {
+        return representative[seed - from] == seed - from;
+    }
+
+    /**
+     * @return index of the seed measured in place of the given one (the seed itself if it is a representative)
+     */
+    public int getRepresentative(int seed) {
+        return representative[seed - from] + from;
+    }
+
+    /**
+     * @return index of the last duplicate of the given representative, -1 if it has no duplicates
+     */
+    public int getLastDuplicate(int seed) {
+        int last = lastDuplicate[seed - from];
+        return last < 0 ? -1 : last + from;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return from + representative.length;
+    }
+
+    public int getRepresentatives() {
+        return representatives;
+    }
+
+    public int getDuplicates() {
+        return representative.length - representatives;
+    }
+
+    /**
+     * @return summary of the collapsed seeds, for the log
+     */
+    public String report() {
+        return "Duplicate seeds: " + getDuplicates() + " of " + representative.length + " collapsed into " +
+                representatives + " measured seeds";
+    }
+}
@@ -0,0 +1,328 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Work manifest of a sharded run: the bcmeasure arguments of the run and the list of shards, every shard being a
+ * range of seeds of a single image. Shards are claimed by the workers through lock files created atomically in a
+ * directory next to the manifest, so any number of worker processes (on one box or on machines sharing the
+ * storage) can take part in the run.
+ * <p>
+ * Manifest layout (tab separated):
+ * <pre>
+ *   #bcshard manifest
+ *   args  arg1  arg2 ...
+ *   shard id  imgPath  from  to
+ * </pre>
+ * Files of the shard directory ([manifest].shards):
+ * <pre>
+ *   id.lock  shard claimed by a worker (contains its name, touched while the shard is processed)
+ *   id.part  measured cells of the shard, one row x,y,z,r,oldx,oldy,oldz,density,threshold per cell
+ *   id.dup   duplicate seeds of the shard flagged by -dupm flag, one row x,y,z,repx,repy,repz per seed
+ *   id.low   seeds of the shard rejected by the contrast pre-test with -lcm flag, one row x,y,z,core,annulus,contrast
+ *   id.stats counts of the shard which are not in the rows (see CellStatistics.countsRow)
+ *   id.log   log messages of the shard
+ * </pre>
+ * Results of a shard do not depend on the worker, so a shard measured twice (e.g. after its lock was considered
+ * stale) only wastes time: parts are moved in place atomically and the last one wins.
+ */
+public class ShardManifest {
+
+    private static final String HEADER = "#bcshard manifest";
+
+    private final Path path;
+    private final List<String> args;
+    private final List<Shard> shards;
+
+    /**
+     * Range [from, to) of the seeds of an image
+     */
+    public static class Shard {
+        public final int id;
+        public final String imgPath;
+        public final int from;
+        public final int to;
+
+        Shard(int id, String imgPath, int from, int to) {
+            this.id = id;
+            this.imgPath = imgPath;
+            this.from = from;
+            this.to = to;
+        }
+
+        public int size() {
+            return to - from;
+        }
+    }
+
+    private ShardManifest(Path path, List<String> args, List<Shard> shards) {
+        this.path = path;
+        this.args = args;
+        this.shards = shards;
+    }
+
+    /**
+     * Split the seeds of the given images in shards of cellsPerShard seeds. With duplicate seeds collapsed the seeds
+     * of each image are clustered and a shard is extended until no cluster crosses its end, so that clustering the
+     * seeds of each shard apart gives the same clusters of the whole image
+     *
+     * @param path              where the manifest will be written
+     * @param args              bcmeasure arguments of the run
+     * @param imgPaths          images of the run, each one with its .marker
+     * @param cellsPerShard     number of seeds of a shard, more only to keep clusters of duplicates whole
+     * @param duplicateDistance distance of the duplicate seeds (see SeedClusters), 0 if they are not collapsed
+     * @param scaleZ            scale of the z axis (resZ/resXY)
+     * @return the new manifest, not yet written
+     * @throws IOException if a marker cannot be read
+     */
+    public static ShardManifest plan(Path path, List<String> args, List<String> imgPaths, int cellsPerShard,
+                                     double duplicateDistance, double scaleZ) throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        for (String imgPath : imgPaths) {
+            SeedClusters clusters = null;
+            int seeds;
+            if (duplicateDistance > 0) {
+                //  distances do not change with the inversion of y
+                MarkerParser.SeedArray seedArray = Marker.readSeeds(imgPath + ".marker", 0);
+                seeds = seedArray.size();
+                if (seeds > 0)
+                    clusters = new SeedClusters(seedArray, 0, seeds, duplicateDistance, scaleZ);
+            } else {
+                seeds = (int) MarkerParser.parse(imgPath + ".marker", 3, row -> { });
+            }
+            //  images without seeds get an empty shard too, so that their (empty) [RAD].marker is written
+            int from = 0;
+            int reach = -1;  // last duplicate of the clusters started so far
+            do {
+                int to = Math.min(from + cellsPerShard, seeds);
+                if (clusters != null)
+                    for (int i = from; i < to; i++) {
+                        reach = Math.max(reach, clusters.getLastDuplicate(clusters.getRepresentative(i)));
+                        to = Math.max(to, reach + 1);
+                    }
+                shards.add(new Shard(shards.size(), imgPath, from, to));
+                from = to;
+            } while (from < seeds);
+        }
+        return new ShardManifest(path, args, shards);
+    }
+
+    public static ShardManifest read(Path path) throws IOException {
+        List<String> args = null;
+        List<Shard> shards = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER))
+                throw new IOException(path + " is not a shard manifest");
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals("args")) {
+                    args = new ArrayList<>(Arrays.asList(fields).subList(1, fields.length));
+                } else if (fields[0].equals("shard") && fields.length == 5) {
+                    try {
+                        shards.add(new Shard(Integer.parseInt(fields[1]), fields[2], Integer.parseInt(fields[3]),
+                                Integer.parseInt(fields[4])));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid shard at line " + lineNumber + " of " + path);
+                    }
+                } else if (!line.isEmpty()) {
+                    throw new IOException("Invalid line " + lineNumber + " of " + path);
+                }
+            }
+        }
+        if (args == null)
+            throw new IOException("Missing bcmeasure arguments in " + path);
+        return new ShardManifest(path, args, shards);
+    }
+
+    public void write() throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write("args");
+            for (String arg : args)
+                writer.append('\t').append(arg);
+            writer.newLine();
+            for (Shard shard : shards) {
+                writer.write("shard\t" + shard.id + "\t" + shard.imgPath + "\t" + shard.from + "\t" + shard.to);
+                writer.newLine();
+            }
+        }
+        Files.createDirectories(getShardDir());
+    }
+
+    /**
+     * Claim a shard for the given worker. A lock left by a worker which did not touch it for staleMs is removed
+     * and the shard claimed again
+     *
+     * @param staleMs age in ms after which a lock is considered abandoned (0 to never take over a lock)
+     * @return true if the shard is not measured yet and now belongs to the worker
+     * @throws IOException if the lock cannot be created for other reasons than an existing claim
+     */
+    public boolean claim(Shard shard, String worker, long staleMs) throws IOException {
+        if (isDone(shard))
+            return false;
+        Path lock = getLockPath(shard);
+        try {
+            //  CREATE_NEW fails if the file exists, check and creation are a single atomic operation
+            Files.write(lock, worker.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            try {
+                long age = System.currentTimeMillis() - Files.getLastModifiedTime(lock).toMillis();
+                if (staleMs > 0 && age > staleMs) {
+                    Files.deleteIfExists(lock);
+                    return claim(shard, worker, 0);
+                }
+            } catch (NoSuchFileException released) {
+                //  the owner has just finished, the part is there now
+            }
+            return false;
+        }
+        //  the previous owner may have finished between the first check and the creation of the lock
+        if (isDone(shard)) {
+            release(shard);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tell the other workers that the shard is still being processed
+     */
+    public void touch(Shard shard) {
+        try {
+            Files.setLastModifiedTime(getLockPath(shard), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            //  lock considered stale and removed by another worker, both will write the same part
+        }
+    }
+
+    public void release(Shard shard) throws IOException {
+        Files.deleteIfExists(getLockPath(shard));
+    }
+
+    /**
+     * Store the measured cells of a shard and release it
+     *
+     * @param rows       one row of the binary marker schema for each cell, in the order of the seeds
+     * @param duplicates  rows of the flagged duplicate seeds (see Marker.duplicateRows), null if not flagged
+     * @param lowContrast rows of the flagged low contrast seeds (see Marker.lowContrastRow), null if not flagged
+     * @param counts      counts of the shard (see CellStatistics.countsRow)
+     */
+    public void writePart(Shard shard, List<String> rows, List<String> duplicates, List<String> lowContrast,
+                          String counts, String worker) throws IOException {
+        String suffix = "." + worker.replaceAll("[^A-Za-z0-9.-]", "_") + ".tmp";
+        //  flagged seeds are in place before the part, which marks the shard as done
+        if (duplicates != null)
+            move(duplicates, getShardDir().resolve(shard.id + ".dup" + suffix), getDuplicatesPath(shard));
+        if (lowContrast != null)
+            move(lowContrast, getShardDir().resolve(shard.id + ".low" + suffix), getLowContrastPath(shard));
+        move(Collections.singletonList(counts), getShardDir().resolve(shard.id + ".stats" + suffix),
+                getStatsPath(shard));
+        move(rows, getShardDir().resolve(shard.id + ".part" + suffix), getPartPath(shard));
+        release(shard);
+    }
+
+    private static void move(List<String> rows, Path tmp, Path target) throws IOException {
+        Files.write(tmp, rows, StandardCharsets.UTF_8);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return rows of the part of the shard, split in their values
+     */
+    public List<String[]> readPart(Shard shard) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        for (String line : Files.readAllLines(getPartPath(shard), StandardCharsets.UTF_8))
+            if (!line.isEmpty())
+                rows.add(line.split(","));
+        return rows;
+    }
+
+    /**
+     * @return rows of the flagged duplicate seeds of the shard, empty if there are none
+     */
+    public List<String> readDuplicates(Shard shard) throws IOException {
+        return readRows(getDuplicatesPath(shard));
+    }
+
+    /**
+     * @return rows of the flagged low contrast seeds of the shard, empty if there are none
+     */
+    public List<String> readLowContrast(Shard shard) throws IOException {
+        return readRows(getLowContrastPath(shard));
+    }
+
+    /**
+     * @return counts of the shard (see CellStatistics.countsRow), null if the part has been written without them
+     */
+    public String readCounts(Shard shard) throws IOException {
+        List<String> rows = readRows(getStatsPath(shard));
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    private static List<String> readRows(Path path) throws IOException {
+        List<String> rows = new ArrayList<>();
+        if (Files.isRegularFile(path))
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8))
+                if (!line.isEmpty())
+                    rows.add(line);
+        return rows;
+    }
+
+    public boolean isDone(Shard shard) {
+        return Files.isRegularFile(getPartPath(shard));
+    }
+
+    public boolean isClaimed(Shard shard) {
+        return Files.exists(getLockPath(shard));
+    }
+
+    public Path getShardDir() {
+        return path.resolveSibling(path.getFileName() + ".shards");
+    }
+
+    public Path getPartPath(Shard shard) {
+        return getShardDir().resolve(shard.id + ".part");
+    }
+
+    public Path getDuplicatesPath(Shard shard) {
+        return getShardDir().resolve(shard.id + ".dup");
+    }
+
+    public Path getLowContrastPath(Shard shard) {
+        return getShardDir().resolve(shard.id + ".low");
+    }
+
+    public Path getStatsPath(Shard shard) {
+        return getShardDir().resolve(shard.id + ".stats");
+    }
+
+    public Path getLockPath(Shard shard) {
+        return getShardDir().resolve(shard.id + ".lock");
+    }
+
+    public Path getLogPath(Shard shard) {
+        return getShardDir().resolve(shard.id + ".log");
+    }
+
+    public String[] getArgs() {
+        return args.toArray(new String[0]);
+    }
+
+    public List<Shard> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+}
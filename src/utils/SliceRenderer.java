@@ -0,0 +1,203 @@
+package utils;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import geom.CellIndex;
+
+/**
+ * Headless renderer of the measured cells: spheres are rasterized slice by slice, either blended over the original
+ * image (RGB PNG, same colors of the bcdraw overlay) or as a label volume (one TIFF per slice, the label of a cell is
+ * its row number starting from 1). The cells of every slice are found with a CellIndex slab query, slices are
+ * rendered in parallel and written as soon as they are ready, so neither the whole image nor the whole output is
+ * ever kept in memory
+ */
+public class SliceRenderer {
+
+    public static final int STRIDE = 7;  // values of a cell: x,y,z,r,oldx,oldy,oldz as in [RAD].marker
+
+    private static final int FILL = 0xff7f00;  // sphere cross sections
+    private static final int FILL_ALPHA = 102;
+    private static final int NEW_CENTER = 0x00ff00;
+    private static final int OLD_CENTER = 0xff0000;
+
+    private final int[] cells;
+    private final int nCells;
+    private final int width, height, depth;
+    private final double scaleZ;
+
+    private final CellIndex index;
+    private final int reachZ;  // max distance in slices between a cell center and the slices it is drawn on
+
+    /**
+     * @param cells  STRIDE values for every cell
+     * @param nCells number of cells
+     * @param scaleZ scale of the z axis, used to compute the cross sections
+     */
+    public SliceRenderer(int[] cells, int nCells, int width, int height, int depth, double scaleZ) {
+        this.cells = cells;
+        this.nCells = nCells;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.scaleZ = scaleZ;
+
+        index = new CellIndex(cells, STRIDE, nCells, scaleZ);
+        int reach = 0;
+        for (int i = 0; i < nCells; i++) {
+            int c = i * STRIDE;
+            reach = Math.max(reach, Math.max((int) (cells[c + 3] * scaleZ), Math.abs(cells[c + 6] - cells[c + 2])));
+        }
+        reachZ = reach;
+    }
+
+    /**
+     * @return ids of the cells which may be drawn on slice z (sphere or old center), in the order of the rows
+     */
+    private int[] sliceCells(int z) {
+        int[][] found = {new int[64]};
+        int[] size = {0};
+        index.range(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, z - reachZ,
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, z + reachZ, id -> {
+                    if (size[0] == found[0].length)
+                        found[0] = Arrays.copyOf(found[0], size[0] * 2);
+                    found[0][size[0]++] = id;
+                });
+        int[] ids = Arrays.copyOf(found[0], size[0]);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Blend the cells over the original slices and write them as slice_NNNN.png
+     *
+     * @param original source image (a virtual stack is enough), displayed with its current display range
+     */
+    public void renderRGB(ImagePlus original, String outDir, int threads) throws IOException {
+        double min = original.getDisplayRangeMin();
+        double max = original.getDisplayRangeMax();
+        render(outDir, threads, z -> {
+            ImageProcessor ip = original.getStack().getProcessor(z + 1);
+            ip.setMinAndMax(min, max);
+            ColorProcessor cp = (ColorProcessor) ip.convertToRGB();
+            int[] pixels = (int[]) cp.getPixels();
+
+            int[] ids = sliceCells(z);
+            for (int i : ids)
+                fillCrossSection(i, z, p -> pixels[p] = blend(pixels[p]));
+            //  centers on top of all the spheres
+            for (int i : ids) {
+                int c = i * STRIDE;
+                if (cells[c + 6] == z)
+                    drawPoint(pixels, cells[c + 4], cells[c + 5], OLD_CENTER);
+                if (cells[c + 2] == z)
+                    drawPoint(pixels, cells[c], cells[c + 1], NEW_CENTER);
+            }
+            new FileSaver(new ImagePlus("slice " + (z + 1), cp))
+                    .saveAsPng(outDir + File.separator + String.format("slice_%04d.png", z + 1));
+        });
+    }
+
+    /**
+     * Write the label volume as label_NNNN.tif, 16-bit if the labels fit, 32-bit otherwise.
+     * Where spheres overlap the cell listed last wins
+     */
+    public void renderLabels(String outDir, int threads) throws IOException {
+        render(outDir, threads, z -> {
+            ImageProcessor ip = nCells < 65536 ?
+                    new ShortProcessor(width, height) : new FloatProcessor(width, height);
+            for (int i : sliceCells(z))
+                fillCrossSection(i, z, p -> ip.setf(p, i + 1));
+            new FileSaver(new ImagePlus("labels " + (z + 1), ip))
+                    .saveAsTiff(outDir + File.separator + String.format("label_%04d.tif", z + 1));
+        });
+    }
+
+    private interface SliceTask {
+        void render(int z) throws IOException;
+    }
+
+    private interface PixelVisitor {
+        void visit(int index);
+    }
+
+    private void render(String outDir, int threads, SliceTask task) throws IOException {
+        new File(outDir).mkdirs();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicInteger done = new AtomicInteger();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int z = 0; z < depth; z++) {
+                int slice = z;
+                results.add(pool.submit(() -> {
+                    task.render(slice);
+                    System.out.print("Rendered slice " + done.incrementAndGet() + " of " + depth + "     \r");
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+                result.get();
+            System.out.println();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Rendering interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Rendering failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Visit the pixels of the cross section of the sphere of cell i with slice z
+     */
+    private void fillCrossSection(int i, int z, PixelVisitor visitor) {
+        int c = i * STRIDE;
+        int x0 = cells[c];
+        int y0 = cells[c + 1];
+        double radius = cells[c + 3];
+        double dz = (z - cells[c + 2]) / scaleZ;
+        double r2 = radius * radius - dz * dz;
+        if (r2 < 0)
+            return;
+        int r = (int) Math.sqrt(r2);
+        for (int y = Math.max(y0 - r, 0); y <= Math.min(y0 + r, height - 1); y++) {
+            int dy = y - y0;
+            int dx = (int) Math.sqrt(r2 - dy * dy);
+            int offset = y * width;
+            for (int x = Math.max(x0 - dx, 0); x <= Math.min(x0 + dx, width - 1); x++)
+                visitor.visit(offset + x);
+        }
+    }
+
+    private static int blend(int rgb) {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+        r += ((FILL >> 16 & 0xff) - r) * FILL_ALPHA / 255;
+        g += ((FILL >> 8 & 0xff) - g) * FILL_ALPHA / 255;
+        b += ((FILL & 0xff) - b) * FILL_ALPHA / 255;
+        return 0xff000000 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * 3x3 point, as the PointRoi of the overlay
+     */
+    private void drawPoint(int[] pixels, int x0, int y0, int color) {
+        for (int y = Math.max(y0 - 1, 0); y <= Math.min(y0 + 1, height - 1); y++)
+            for (int x = Math.max(x0 - 1, 0); x <= Math.min(x0 + 1, width - 1); x++)
+                pixels[y * width + x] = 0xff000000 | color;
+    }
+}
@@ -0,0 +1,587 @@
+package utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.plugin.FileInfoVirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Loader of grayscale TIFF stacks decoding the strips of all the slices concurrently: the IFDs are read first, the
+ * slice arrays are allocated upfront and every strip is read, decompressed (none, LZW or Deflate, with or without
+ * horizontal differencing) and written in place by a fork-join pool. Only compressed plain 8 and 16-bit unsigned
+ * stacks whose slices have the same size are read, for anything else (uncompressed, tiles, colors, palettes,
+ * BigTIFF...) open returns null and the image must be opened by ImageJ.
+ * The same stacks are opened virtual by openVirtual, decoding a slice when it is asked for, so that images larger
+ * than the memory get the same voxels (ImageJ 1.52p ignores the predictor of Deflate strips)
+ */
+public class TiffReader {
+
+    private static final int NONE = 1;
+    private static final int LZW = 5;
+    private static final int DEFLATE = 8;
+    private static final int DEFLATE_OLD = 32946;
+
+    private final FileChannel channel;  // open while the directories are read
+    private final ByteOrder order;
+    private final List<Slice> slices = new ArrayList<>();
+    private int width, height, bitDepth;
+    private String description;
+    private double pixelWidth, pixelHeight;
+    private int resolutionUnit = 2;
+
+    /**
+     * Strips of a slice, as listed by its IFD
+     */
+    private static class Slice {
+        long[] offsets;
+        long[] lengths;
+        int rowsPerStrip;
+        int compression = NONE;
+        int predictor = 1;
+    }
+
+    private TiffReader(FileChannel channel, ByteOrder order) {
+        this.channel = channel;
+        this.order = order;
+    }
+
+    /**
+     * Read a compressed TIFF with the given number of threads, any other image with ImageJ
+     *
+     * @return the image or null if it cannot be opened
+     */
+    public static ImagePlus load(String path, int threads) {
+        String name = path.toLowerCase();
+        if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+            try {
+                ImagePlus imp = open(path, threads);
+                if (imp != null)
+                    return imp;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Parallel decoding of " + path + " failed, reading it with ImageJ");
+            }
+        }
+        return IJ.openImage(path);
+    }
+
+    /**
+     * Read the image with the given number of threads
+     *
+     * @return the image or null if the TIFF variant is not supported
+     * @throws IOException if the file cannot be read or a strip cannot be decoded
+     */
+    public static ImagePlus open(String path, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            TiffReader reader = readHeader(channel);
+            if (reader == null)
+                return null;
+            return reader.decode(channel, Paths.get(path).getFileName().toString(), threads);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Open a compressed TIFF as a virtual stack whose slices are decoded one at a time, any other TIFF as a virtual
+     * stack of ImageJ
+     *
+     * @return the image or null if it cannot be opened
+     */
+    public static ImagePlus openVirtual(String path) {
+        TiffReader reader = null;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            reader = readHeader(channel);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot read the directories of " + path + ", opening it with ImageJ");
+        }
+        if (reader == null)
+            return FileInfoVirtualStack.openVirtual(path);
+        ImagePlus imp = new ImagePlus(Paths.get(path).getFileName().toString(), reader.new Stack(path));
+        reader.setCalibration(imp.getCalibration());
+        return imp;
+    }
+
+    /**
+     * Read the header and all the IFDs
+     *
+     * @return the reader or null if the TIFF variant is not supported or not compressed
+     */
+    private static TiffReader readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, 8);
+        ByteOrder order;
+        if (header.get(0) == 'I' && header.get(1) == 'I')
+            order = ByteOrder.LITTLE_ENDIAN;
+        else if (header.get(0) == 'M' && header.get(1) == 'M')
+            order = ByteOrder.BIG_ENDIAN;
+        else
+            return null;
+        header.order(order);
+        if (header.getShort(2) != 42)  //  BigTIFF (43) is left to ImageJ
+            return null;
+        TiffReader reader = new TiffReader(channel, order);
+        if (!reader.readDirectories(header.getInt(4) & 0xffffffffL) || !reader.isCompressed())
+            return null;
+        return reader;
+    }
+
+    /**
+     * Read all the IFDs
+     *
+     * @return false if a directory is not supported
+     */
+    private boolean readDirectories(long offset) throws IOException {
+        Set<Long> visited = new HashSet<>();
+        while (offset != 0) {
+            if (!visited.add(offset) || offset >= channel.size())
+                return false;
+            ByteBuffer count = read(channel, offset, 2).order(order);
+            int entries = count.getShort(0) & 0xffff;
+            ByteBuffer ifd = read(channel, offset + 2, entries * 12 + 4).order(order);
+            Slice slice = new Slice();
+            int sliceWidth = 0, sliceHeight = 0, bits = 1, samples = 1, photometric = 1, sampleFormat = 1;
+            for (int i = 0; i < entries; i++) {
+                int base = i * 12;
+                int tag = ifd.getShort(base) & 0xffff;
+                int type = ifd.getShort(base + 2) & 0xffff;
+                int n = ifd.getInt(base + 4);
+                switch (tag) {
+                    case 254:  //  NewSubfileType, thumbnails and reduced resolutions are not slices
+                        if (value(ifd, base, type) != 0)
+                            return false;
+                        break;
+                    case 256:
+                        sliceWidth = (int) value(ifd, base, type);
+                        break;
+                    case 257:
+                        sliceHeight = (int) value(ifd, base, type);
+                        break;
+                    case 258:
+                        bits = (int) values(ifd, base, type, n)[0];
+                        break;
+                    case 259:
+                        slice.compression = (int) value(ifd, base, type);
+                        break;
+                    case 262:
+                        photometric = (int) value(ifd, base, type);
+                        break;
+                    case 270:
+                        if (slices.isEmpty())
+                            description = ascii(ifd, base, n);
+                        break;
+                    case 273:
+                        slice.offsets = values(ifd, base, type, n);
+                        break;
+                    case 277:
+                        samples = (int) value(ifd, base, type);
+                        break;
+                    case 278:
+                        slice.rowsPerStrip = (int) value(ifd, base, type);
+                        break;
+                    case 279:
+                        slice.lengths = values(ifd, base, type, n);
+                        break;
+                    case 282:
+                        pixelWidth = rational(ifd, base);
+                        break;
+                    case 283:
+                        pixelHeight = rational(ifd, base);
+                        break;
+                    case 296:
+                        resolutionUnit = (int) value(ifd, base, type);
+                        break;
+                    case 317:
+                        slice.predictor = (int) value(ifd, base, type);
+                        break;
+                    case 320:  //  palette
+                    case 322:  //  tiles
+                        return false;
+                    case 339:
+                        sampleFormat = (int) value(ifd, base, type);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (slices.isEmpty()) {
+                width = sliceWidth;
+                height = sliceHeight;
+                bitDepth = bits;
+            }
+            if (sliceWidth != width || sliceHeight != height || bits != bitDepth || (bits != 8 && bits != 16) ||
+                    samples != 1 || photometric != 1 || sampleFormat != 1 || slice.offsets == null ||
+                    slice.lengths == null || slice.offsets.length != slice.lengths.length ||
+                    (slice.predictor != 1 && slice.predictor != 2) || (slice.compression != NONE &&
+                    slice.compression != LZW && slice.compression != DEFLATE && slice.compression != DEFLATE_OLD))
+                return false;
+            if (slice.rowsPerStrip <= 0 || slice.rowsPerStrip > height)
+                slice.rowsPerStrip = height;
+            slices.add(slice);
+            offset = ifd.getInt(entries * 12) & 0xffffffffL;
+        }
+        return !slices.isEmpty() && width > 0 && height > 0;
+    }
+
+    /**
+     * @return true if some strip is compressed, uncompressed stacks are read faster by ImageJ in a single stream
+     */
+    private boolean isCompressed() {
+        for (Slice slice : slices)
+            if (slice.compression != NONE)
+                return true;
+        return false;
+    }
+
+    /**
+     * Allocate the slices and decode all the strips in place
+     */
+    private ImagePlus decode(FileChannel channel, String title, int threads) throws IOException {
+        int size = width * height;
+        Object[] pixels = new Object[slices.size()];
+        List<int[]> strips = new ArrayList<>();
+        for (int z = 0; z < slices.size(); z++) {
+            pixels[z] = bitDepth == 8 ? new byte[size] : new short[size];
+            for (int s = 0; s < slices.get(z).offsets.length; s++)
+                strips.add(new int[]{z, s});
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            pool.submit(() -> IntStream.range(0, strips.size()).parallel().forEach(i -> {
+                int[] strip = strips.get(i);
+                try {
+                    decodeStrip(channel, slices.get(strip[0]), strip[1], pixels[strip[0]]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Decoding of " + title + " interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        ImageStack stack = new ImageStack(width, height);
+        for (Object slice : pixels)
+            stack.addSlice(null, slice);
+        ImagePlus imp = new ImagePlus(title, stack);
+        setCalibration(imp.getCalibration());
+        return imp;
+    }
+
+    /**
+     * Read, decompress and copy a strip into its rows of the slice
+     */
+    private void decodeStrip(FileChannel channel, Slice slice, int strip, Object pixels) throws IOException {
+        int bytesPerPixel = bitDepth / 8;
+        int firstRow = strip * slice.rowsPerStrip;
+        int rows = Math.min(slice.rowsPerStrip, height - firstRow);
+        if (rows <= 0)
+            return;
+        int length = rows * width * bytesPerPixel;
+        int stored = (int) Math.min(slice.lengths[strip], Integer.MAX_VALUE);
+        if (slice.compression == NONE)
+            stored = Math.min(stored, length);
+        ByteBuffer input = read(channel, slice.offsets[strip], stored);
+        byte[] data;
+        if (slice.compression == NONE) {
+            data = input.array();
+        } else {
+            data = new byte[length];
+            if (slice.compression == LZW)
+                lzw(input.array(), data);
+            else
+                inflate(input.array(), data);
+        }
+
+        if (bytesPerPixel == 1) {
+            if (slice.predictor == 2)
+                for (int y = 0; y < rows; y++)
+                    for (int x = 1; x < width; x++)
+                        data[y * width + x] += data[y * width + x - 1];
+            System.arraycopy(data, 0, pixels, firstRow * width, Math.min(data.length, length));
+        } else {
+            short[] shorts = (short[]) pixels;
+            int offset = firstRow * width;
+            ByteBuffer.wrap(data).order(order).asShortBuffer().get(shorts, offset, Math.min(data.length, length) / 2);
+            if (slice.predictor == 2)
+                for (int y = 0; y < rows; y++)
+                    for (int x = 1; x < width; x++)
+                        shorts[offset + y * width + x] += shorts[offset + y * width + x - 1];
+        }
+    }
+
+    /**
+     * TIFF flavour of LZW: MSB-first codes of 9 to 12 bits, the code width grows one code early
+     *
+     * @return number of bytes decoded, at most output.length
+     */
+    static int lzw(byte[] input, byte[] output) throws IOException {
+        int[] prefix = new int[4096];
+        byte[] suffix = new byte[4096];
+        byte[] first = new byte[4096];
+        int[] length = new int[4096];
+        for (int i = 0; i < 256; i++) {
+            suffix[i] = (byte) i;
+            first[i] = (byte) i;
+            length[i] = 1;
+        }
+        int next = 258, codeWidth = 9, old = -1, pos = 0;
+        int bitBuffer = 0, bits = 0, in = 0;
+        while (pos < output.length) {
+            while (bits < codeWidth && in < input.length) {
+                bitBuffer = (bitBuffer << 8) | (input[in++] & 0xff);
+                bits += 8;
+            }
+            if (bits < codeWidth)
+                break;
+            int code = (bitBuffer >>> (bits - codeWidth)) & ((1 << codeWidth) - 1);
+            bits -= codeWidth;
+            if (code == 256) {
+                next = 258;
+                codeWidth = 9;
+                old = -1;
+                continue;
+            }
+            if (code == 257)
+                break;
+            if (old == -1) {
+                if (code > 255)
+                    throw new IOException("Invalid LZW code " + code);
+                output[pos++] = (byte) code;
+                old = code;
+                continue;
+            }
+            byte head;
+            if (code < next) {
+                pos = writeString(code, prefix, suffix, length, output, pos);
+                head = first[code];
+            } else if (code == next) {
+                head = first[old];
+                pos = writeString(old, prefix, suffix, length, output, pos);
+                if (pos < output.length)
+                    output[pos++] = head;
+            } else {
+                throw new IOException("Invalid LZW code " + code);
+            }
+            if (next < 4096) {
+                prefix[next] = old;
+                suffix[next] = head;
+                first[next] = first[old];
+                length[next] = length[old] + 1;
+                next++;
+                if (next + 1 == (1 << codeWidth) && codeWidth < 12)
+                    codeWidth++;
+            }
+            old = code;
+        }
+        return pos;
+    }
+
+    /**
+     * Write the string of a code, truncated at the end of the output
+     */
+    private static int writeString(int code, int[] prefix, byte[] suffix, int[] length, byte[] output, int pos) {
+        int n = length[code];
+        for (int i = n - 1; i >= 0; i--) {
+            if (pos + i < output.length)
+                output[pos + i] = suffix[code];
+            code = prefix[code];
+        }
+        return Math.min(pos + n, output.length);
+    }
+
+    private static void inflate(byte[] input, byte[] output) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int pos = 0;
+            while (pos < output.length && !inflater.finished()) {
+                int n = inflater.inflate(output, pos, output.length - pos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                pos += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid Deflate strip: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Slices of the TIFF decoded when they are asked for, each one on the thread asking for it
+     */
+    private class Stack extends VirtualStack {
+
+        private final String path;
+
+        Stack(String path) {
+            super(width, height);
+            this.path = path;
+        }
+
+        @Override
+        public Object getPixels(int n) {
+            Slice slice = slices.get(n - 1);
+            Object pixels = bitDepth == 8 ? new byte[width * height] : new short[width * height];
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                for (int strip = 0; strip < slice.offsets.length; strip++)
+                    decodeStrip(channel, slice, strip, pixels);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read slice " + n + " of " + path, e);
+            }
+            return pixels;
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            Object pixels = getPixels(n);
+            if (pixels instanceof byte[])
+                return new ByteProcessor(width, height, (byte[]) pixels);
+            return new ShortProcessor(width, height, (short[]) pixels, null);
+        }
+
+        /**
+         * Slices are read-only, ImageJ writing back the processor of the current slice is ignored
+         */
+        @Override
+        public void setPixels(Object pixels, int n) {
+        }
+
+        @Override
+        public int getSize() {
+            return slices.size();
+        }
+
+        @Override
+        public int size() {
+            return slices.size();
+        }
+
+        @Override
+        public int getBitDepth() {
+            return bitDepth;
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return null;
+        }
+    }
+
+    /**
+     * Calibration as set by ImageJ: resolution tags and the unit and spacing of the ImageJ description
+     */
+    private void setCalibration(Calibration cal) {
+        String unit = getString("unit");
+        if (pixelWidth > 0 && (resolutionUnit != 1 || unit != null)) {
+            cal.pixelWidth = 1 / pixelWidth;
+            cal.pixelHeight = pixelHeight > 0 ? 1 / pixelHeight : cal.pixelWidth;
+            if (unit != null)
+                cal.setUnit(unit);
+            else if (resolutionUnit == 2)
+                cal.setUnit("inch");
+            else if (resolutionUnit == 3)
+                cal.setUnit("cm");
+        }
+        String spacing = getString("spacing");
+        if (spacing != null) {
+            try {
+                cal.pixelDepth = Double.parseDouble(spacing);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return the value of a key=value line of the ImageJ description or null
+     */
+    private String getString(String key) {
+        if (description == null || !description.startsWith("ImageJ"))
+            return null;
+        for (String line : description.split("\n"))
+            if (line.startsWith(key + "="))
+                return line.substring(key.length() + 1).trim();
+        return null;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    private long value(ByteBuffer ifd, int base, int type) throws IOException {
+        return values(ifd, base, type, 1)[0];
+    }
+
+    /**
+     * Values of an entry of type BYTE, SHORT or LONG, inline or at the offset it points to
+     */
+    private long[] values(ByteBuffer ifd, int base, int type, int n) throws IOException {
+        int bytes = type == 1 ? 1 : type == 3 ? 2 : 4;
+        ByteBuffer value = n * bytes <= 4 ? ByteBuffer.wrap(ifd.array(), base + 8, 4).slice().order(order) :
+                read(channel, ifd.getInt(base + 8) & 0xffffffffL, n * bytes).order(order);
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (bytes == 1)
+                values[i] = value.get(i) & 0xff;
+            else if (bytes == 2)
+                values[i] = value.getShort(2 * i) & 0xffff;
+            else
+                values[i] = value.getInt(4 * i) & 0xffffffffL;
+        }
+        return values;
+    }
+
+    private double rational(ByteBuffer ifd, int base) throws IOException {
+        ByteBuffer value = read(channel, ifd.getInt(base + 8) & 0xffffffffL, 8).order(order);
+        long denominator = value.getInt(4) & 0xffffffffL;
+        return denominator == 0 ? 0 : (value.getInt(0) & 0xffffffffL) / (double) denominator;
+    }
+
+    private String ascii(ByteBuffer ifd, int base, int n) throws IOException {
+        ByteBuffer value = n <= 4 ? ByteBuffer.wrap(ifd.array(), base + 8, n).slice() :
+                read(channel, ifd.getInt(base + 8) & 0xffffffffL, n);
+        byte[] bytes = new byte[n];
+        value.get(bytes);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0)
+            end--;
+        return new String(bytes, 0, end, StandardCharsets.ISO_8859_1);
+    }
+}